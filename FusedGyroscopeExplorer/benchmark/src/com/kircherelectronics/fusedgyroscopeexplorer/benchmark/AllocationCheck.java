@@ -0,0 +1,281 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.benchmark;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+import com.kircherelectronics.fusedgyroscopeexplorer.fusion.ComplementaryFilter;
+import com.kircherelectronics.fusedgyroscopeexplorer.fusion.FusionConfig;
+import com.kircherelectronics.fusedgyroscopeexplorer.fusion.OrientationFusion;
+import com.kircherelectronics.fusedgyroscopeexplorer.fusion.QuaternionComplementaryFilter;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.FusedGyroscopeSensor;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.FusedGyroscopeSensorObserver;
+
+/**
+ * Checks that fusing a measurement allocates nothing once the JIT has
+ * warmed up. Every case is run for WARM_UP_ROUNDS rounds and then for
+ * CHECKED_ROUNDS more, and any bytes the JVM's per-thread allocation
+ * counter reports for a checked round, beyond what reading the counter
+ * itself costs, fail the check.
+ *
+ * The process exits with status 1 if any case allocates, so the check can
+ * gate a build:
+ *
+ * Usage: AllocationCheck [samples per round]
+ *
+ * @author Kaleb
+ * @version %I%, %G%
+ */
+public class AllocationCheck
+{
+	// The sample rate of the synthetic sensor streams, SENSOR_DELAY_FASTEST
+	// on most devices.
+	private static final int RATE_HZ = 500;
+
+	private static final int DEFAULT_SAMPLES = 50000;
+
+	private static final int WARM_UP_ROUNDS = 5;
+
+	private static final int CHECKED_ROUNDS = 5;
+
+	// Consumes results so the work is not optimized away.
+	private static float sink;
+
+	private static com.sun.management.ThreadMXBean allocationBean;
+
+	private static long threadId;
+
+	// The bytes reading the allocation counter twice costs on its own.
+	private static long overhead;
+
+	/**
+	 * A sequence of measurements fed through the fusion.
+	 */
+	private static abstract class Case
+	{
+		private final String name;
+
+		Case(String name)
+		{
+			this.name = name;
+		}
+
+		/**
+		 * Fuse a number of samples.
+		 *
+		 * @param samples
+		 *            the number of samples to fuse.
+		 */
+		abstract void run(int samples);
+	}
+
+	public static void main(String[] args)
+	{
+		int samples = DEFAULT_SAMPLES;
+
+		if (args.length > 0)
+		{
+			samples = Integer.parseInt(args[0]);
+		}
+
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+		if (!(threadBean instanceof com.sun.management.ThreadMXBean))
+		{
+			System.err.println("This JVM can't count allocations per thread");
+			System.exit(1);
+		}
+
+		allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+		allocationBean.setThreadAllocatedMemoryEnabled(true);
+		threadId = Thread.currentThread().getId();
+
+		overhead = Long.MAX_VALUE;
+
+		for (int i = 0; i < CHECKED_ROUNDS; i++)
+		{
+			long bytes = allocatedBytes();
+			overhead = Math.min(overhead, allocatedBytes() - bytes);
+		}
+
+		SyntheticSensorStream stream = new SyntheticSensorStream(RATE_HZ,
+				samples);
+
+		FusionConfig tuned = new FusionConfig.Builder()
+				.setGyroscopeBiasEstimation(true)
+				.setCorrectionMode(FusionConfig.CORRECTION_MODE_INCREMENTAL)
+				.setAttitudeRate(25).setSynchronizationDelay(20).build();
+
+		Case[] cases = new Case[]
+		{
+				fusionCase(stream, "ComplementaryFilter",
+						new ComplementaryFilter()),
+				fusionCase(stream, "ComplementaryFilter (tuned)",
+						new ComplementaryFilter(tuned)),
+				fusionCase(stream, "QuaternionComplementaryFilter",
+						new QuaternionComplementaryFilter()),
+				sensorCase(stream, FusionConfig.DEFAULT,
+						FusedGyroscopeSensor.FUSION_MODE_MATRIX),
+				sensorCase(stream, FusionConfig.DEFAULT,
+						FusedGyroscopeSensor.FUSION_MODE_QUATERNION),
+				sensorCase(stream, tuned,
+						FusedGyroscopeSensor.FUSION_MODE_MATRIX),
+				sensorCase(stream, tuned,
+						FusedGyroscopeSensor.FUSION_MODE_QUATERNION) };
+
+		boolean failed = false;
+
+		for (int i = 0; i < cases.length; i++)
+		{
+			failed |= !check(cases[i], samples);
+		}
+
+		System.out.println("sink: " + sink);
+
+		if (failed)
+		{
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Warm up a case, then check that it doesn't allocate and print the
+	 * result.
+	 *
+	 * @return true if the case allocated nothing.
+	 */
+	private static boolean check(Case c, int samples)
+	{
+		for (int i = 0; i < WARM_UP_ROUNDS; i++)
+		{
+			c.run(samples);
+		}
+
+		long maxBytes = 0;
+
+		for (int i = 0; i < CHECKED_ROUNDS; i++)
+		{
+			long bytes = allocatedBytes();
+
+			c.run(samples);
+
+			bytes = allocatedBytes() - bytes - overhead;
+
+			maxBytes = Math.max(maxBytes, bytes);
+		}
+
+		boolean passed = maxBytes <= 0;
+
+		System.out.println(String.format(Locale.US,
+				"%-52s %s %d bytes in the worst round of %d samples",
+				c.name, passed ? "ok  " : "FAIL", Math.max(maxBytes, 0),
+				samples));
+
+		return passed;
+	}
+
+	private static long allocatedBytes()
+	{
+		return allocationBean.getThreadAllocatedBytes(threadId);
+	}
+
+	private static Case fusionCase(final SyntheticSensorStream stream,
+			String name, final OrientationFusion filter)
+	{
+		return new Case(name)
+		{
+			private final float[] values = new float[3];
+			private final float[] orientation = new float[3];
+
+			@Override
+			void run(int samples)
+			{
+				filter.reset();
+
+				for (int i = 0; i < samples; i++)
+				{
+					long timeStamp = stream.getTimeStamp(i);
+
+					stream.getGravity(i, values);
+					filter.updateGravity(values, timeStamp);
+					stream.getMagnetic(i, values);
+					filter.updateMagnetic(values, timeStamp);
+					stream.getGyroscope(i, values);
+
+					if (filter.updateGyroscope(values, timeStamp))
+					{
+						filter.getFusedOrientation(orientation);
+
+						sink += orientation[0];
+					}
+				}
+			}
+		};
+	}
+
+	private static Case sensorCase(final SyntheticSensorStream stream,
+			FusionConfig config, final int fusionMode)
+	{
+		// One sample is a gravity, a magnetic and a gyroscope measurement
+		// delivered through the observer interfaces, as the application
+		// does.
+		return new Case("FusedGyroscopeSensor ("
+				+ ((fusionMode == FusedGyroscopeSensor.FUSION_MODE_QUATERNION) ? "quaternion"
+						: "matrix")
+				+ ((config == FusionConfig.DEFAULT) ? ")" : ", tuned)"))
+		{
+			private final FusedGyroscopeSensor sensor = new FusedGyroscopeSensor(
+					config);
+			private final float[] values = new float[3];
+
+			{
+				sensor.setFusionMode(fusionMode);
+				sensor.registerObserver(new FusedGyroscopeSensorObserver()
+				{
+					@Override
+					public void onAngularVelocitySensorChanged(
+							float[] angularVelocity, long timeStamp)
+					{
+						sink += angularVelocity[0];
+					}
+				});
+			}
+
+			@Override
+			void run(int samples)
+			{
+				sensor.reset();
+
+				for (int i = 0; i < samples; i++)
+				{
+					long timeStamp = stream.getTimeStamp(i);
+
+					stream.getGravity(i, values);
+					sensor.onGravitySensorChanged(values, timeStamp);
+					stream.getMagnetic(i, values);
+					sensor.onMagneticSensorChanged(values, timeStamp);
+					stream.getGyroscope(i, values);
+					sensor.onGyroscopeSensorChanged(values, timeStamp);
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,423 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.benchmark;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.kircherelectronics.fusedgyroscopeexplorer.log.SensorLogFormat;
+import com.kircherelectronics.fusedgyroscopeexplorer.log.SensorLogWriter;
+import com.kircherelectronics.fusedgyroscopeexplorer.log.SensorReplay;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.FusedGyroscopeSensor;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.FusedGyroscopeSensorObserver;
+
+/**
+ * Re-runs the fusion over an archive of recorded sessions using every core.
+ * Each session is replayed through its own FusedGyroscopeSensor, the
+ * sessions share nothing, so they are spread over a fork/join pool and the
+ * job scales with the number of cores until the disk can't keep up.
+ * 
+ * For every session the fused orientations are written as an orientation
+ * sensor log to the same relative path under the output directory, and a row
+ * of summary statistics is added to summary.csv there.
+ * 
+ * Usage: BatchReprocessor [--threads n] [--quaternion] archive output
+ * 
+ * This runs on a desktop JVM, the fork/join pool isn't available on the
+ * Android versions the application supports.
+ * 
+ * @author Kaleb
+ * @version %I%, %G%
+ */
+public class BatchReprocessor
+{
+	/**
+	 * The summary statistics of a reprocessed session.
+	 */
+	private static class SessionSummary
+	{
+		String name;
+		long measurements;
+		long fused;
+
+		// The recorded time covered by the fused orientations.
+		double durationSeconds;
+
+		double meanAbsolutePitch;
+		double meanAbsoluteRoll;
+		float maxAbsolutePitch;
+		float maxAbsoluteRoll;
+		float finalAzimuth;
+
+		long cpuNanos;
+	}
+
+	/**
+	 * Writes the fused orientations of a session and gathers its statistics.
+	 */
+	private static class FusedOutput implements FusedGyroscopeSensorObserver
+	{
+		private final SensorLogWriter writer;
+		private final SessionSummary summary;
+
+		private IOException error;
+
+		private long firstTimeStamp = -1;
+		private long lastTimeStamp;
+
+		private double sumAbsolutePitch;
+		private double sumAbsoluteRoll;
+
+		FusedOutput(SensorLogWriter writer, SessionSummary summary)
+		{
+			this.writer = writer;
+			this.summary = summary;
+		}
+
+		@Override
+		public void onAngularVelocitySensorChanged(float[] angularVelocity,
+				long timeStamp)
+		{
+			if (error != null)
+			{
+				return;
+			}
+
+			try
+			{
+				writer.write(angularVelocity, timeStamp);
+			}
+			catch (IOException e)
+			{
+				error = e;
+			}
+
+			if (firstTimeStamp == -1)
+			{
+				firstTimeStamp = timeStamp;
+			}
+			lastTimeStamp = timeStamp;
+
+			float pitch = Math.abs(angularVelocity[1]);
+			float roll = Math.abs(angularVelocity[2]);
+
+			sumAbsolutePitch += pitch;
+			sumAbsoluteRoll += roll;
+
+			summary.maxAbsolutePitch = Math.max(summary.maxAbsolutePitch,
+					pitch);
+			summary.maxAbsoluteRoll = Math.max(summary.maxAbsoluteRoll, roll);
+			summary.finalAzimuth = angularVelocity[0];
+
+			summary.fused++;
+		}
+
+		void finish() throws IOException
+		{
+			if (error != null)
+			{
+				throw error;
+			}
+
+			if (summary.fused > 0)
+			{
+				summary.durationSeconds = (lastTimeStamp - firstTimeStamp) / 1e9;
+				summary.meanAbsolutePitch = sumAbsolutePitch / summary.fused;
+				summary.meanAbsoluteRoll = sumAbsoluteRoll / summary.fused;
+			}
+		}
+	}
+
+	/**
+	 * Reprocesses a range of sessions, splitting it until there is one
+	 * session per task so idle workers can steal the rest.
+	 */
+	private static class ReprocessTask extends
+			RecursiveTask<List<SessionSummary>>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final File archive;
+		private final File output;
+		private final List<File> sessions;
+		private final int fusionMode;
+
+		ReprocessTask(File archive, File output, List<File> sessions,
+				int fusionMode)
+		{
+			this.archive = archive;
+			this.output = output;
+			this.sessions = sessions;
+			this.fusionMode = fusionMode;
+		}
+
+		@Override
+		protected List<SessionSummary> compute()
+		{
+			if (sessions.size() == 1)
+			{
+				ArrayList<SessionSummary> summaries = new ArrayList<SessionSummary>();
+				summaries.add(reprocess(archive, output, sessions.get(0),
+						fusionMode));
+				return summaries;
+			}
+
+			int half = sessions.size() / 2;
+
+			ReprocessTask first = new ReprocessTask(archive, output,
+					sessions.subList(0, half), fusionMode);
+			ReprocessTask second = new ReprocessTask(archive, output,
+					sessions.subList(half, sessions.size()), fusionMode);
+
+			first.fork();
+
+			List<SessionSummary> summaries = new ArrayList<SessionSummary>(
+					second.compute());
+			summaries.addAll(0, first.join());
+
+			return summaries;
+		}
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		int threads = Runtime.getRuntime().availableProcessors();
+		int fusionMode = FusedGyroscopeSensor.FUSION_MODE_MATRIX;
+
+		ArrayList<String> paths = new ArrayList<String>();
+
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].equals("--threads") && i + 1 < args.length)
+			{
+				threads = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("--quaternion"))
+			{
+				fusionMode = FusedGyroscopeSensor.FUSION_MODE_QUATERNION;
+			}
+			else
+			{
+				paths.add(args[i]);
+			}
+		}
+
+		if (paths.size() != 2)
+		{
+			System.err.println("Usage: BatchReprocessor [--threads n] "
+					+ "[--quaternion] archive output");
+			System.exit(1);
+		}
+
+		File archive = new File(paths.get(0));
+		File output = new File(paths.get(1));
+
+		ArrayList<File> sessions = new ArrayList<File>();
+		findSessions(archive, sessions);
+
+		if (sessions.isEmpty())
+		{
+			System.err.println("No sessions found in " + archive);
+			System.exit(1);
+		}
+
+		if (!output.isDirectory() && !output.mkdirs())
+		{
+			throw new IOException("Can't create " + output);
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+
+		long start = System.nanoTime();
+
+		List<SessionSummary> summaries = pool.invoke(new ReprocessTask(
+				archive, output, sessions, fusionMode));
+
+		long elapsed = System.nanoTime() - start;
+
+		pool.shutdown();
+
+		writeSummary(new File(output, "summary.csv"), summaries);
+
+		long measurements = 0;
+		long cpuNanos = 0;
+
+		for (SessionSummary summary : summaries)
+		{
+			measurements += summary.measurements;
+			cpuNanos += summary.cpuNanos;
+		}
+
+		System.out.println(String.format(Locale.US,
+				"%d sessions, %d measurements in %.2f s on %d threads",
+				summaries.size(), measurements, elapsed / 1e9, threads));
+		System.out.println(String.format(Locale.US,
+				"%.0f measurements/s, %.0f measurements/s per busy core, "
+						+ "%.1f cores busy", measurements * 1e9 / elapsed,
+				measurements * 1e9 / Math.max(cpuNanos, 1), (double) cpuNanos
+						/ elapsed));
+	}
+
+	/**
+	 * Replay one session through a new FusedGyroscopeSensor and write its
+	 * fused orientations.
+	 */
+	private static SessionSummary reprocess(File archive, File output,
+			File session, int fusionMode)
+	{
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		long cpuStart = threadBean.getCurrentThreadCpuTime();
+
+		SessionSummary summary = new SessionSummary();
+		summary.name = getRelativePath(archive, session);
+
+		File outputDirectory = new File(output, summary.name);
+
+		try
+		{
+			if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs())
+			{
+				throw new IOException("Can't create " + outputDirectory);
+			}
+
+			SensorLogWriter writer = new SensorLogWriter(
+					new File(outputDirectory, SensorLogFormat
+							.getFileName(SensorLogFormat.SENSOR_TYPE_ORIENTATION)),
+					SensorLogFormat.SENSOR_TYPE_ORIENTATION, 0);
+
+			SensorReplay replay = null;
+
+			try
+			{
+				FusedGyroscopeSensor fusedGyroscopeSensor = new FusedGyroscopeSensor();
+				fusedGyroscopeSensor.setFusionMode(fusionMode);
+
+				FusedOutput fusedOutput = new FusedOutput(writer, summary);
+				fusedGyroscopeSensor.registerObserver(fusedOutput);
+
+				replay = new SensorReplay(session);
+
+				summary.measurements = replay.replay(fusedGyroscopeSensor,
+						fusedGyroscopeSensor, fusedGyroscopeSensor,
+						SensorReplay.MODE_THROUGHPUT);
+
+				fusedOutput.finish();
+			}
+			finally
+			{
+				if (replay != null)
+				{
+					replay.close();
+				}
+
+				writer.close();
+			}
+		}
+		catch (IOException e)
+		{
+			// One bad session shouldn't stop the whole archive.
+			System.err.println(summary.name + ": " + e.getMessage());
+		}
+
+		summary.cpuNanos = threadBean.getCurrentThreadCpuTime() - cpuStart;
+
+		return summary;
+	}
+
+	/**
+	 * Find the recording sessions, the directories with a gyroscope log, in
+	 * a directory tree.
+	 */
+	private static void findSessions(File directory, List<File> sessions)
+	{
+		File[] files = directory.listFiles();
+
+		if (files == null)
+		{
+			return;
+		}
+
+		Arrays.sort(files);
+
+		if (new File(directory, SensorLogFormat
+				.getFileName(SensorLogFormat.SENSOR_TYPE_GYROSCOPE)).isFile())
+		{
+			sessions.add(directory);
+		}
+
+		for (File file : files)
+		{
+			if (file.isDirectory())
+			{
+				findSessions(file, sessions);
+			}
+		}
+	}
+
+	private static String getRelativePath(File archive, File session)
+	{
+		String path = session.getAbsolutePath().substring(
+				archive.getAbsolutePath().length());
+
+		while (path.startsWith(File.separator))
+		{
+			path = path.substring(1);
+		}
+
+		return path.length() > 0 ? path : session.getName();
+	}
+
+	private static void writeSummary(File file, List<SessionSummary> summaries)
+			throws IOException
+	{
+		PrintWriter writer = new PrintWriter(new FileWriter(file));
+
+		try
+		{
+			writer.println("session,measurements,fused,duration_s,"
+					+ "mean_abs_pitch,max_abs_pitch,mean_abs_roll,"
+					+ "max_abs_roll,final_azimuth,cpu_ms");
+
+			for (SessionSummary summary : summaries)
+			{
+				writer.println(String.format(Locale.US,
+						"%s,%d,%d,%.3f,%.5f,%.5f,%.5f,%.5f,%.5f,%.1f",
+						summary.name, summary.measurements, summary.fused,
+						summary.durationSeconds, summary.meanAbsolutePitch,
+						summary.maxAbsolutePitch, summary.meanAbsoluteRoll,
+						summary.maxAbsoluteRoll, summary.finalAzimuth,
+						summary.cpuNanos / 1e6));
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,451 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.benchmark;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Locale;
+
+import com.kircherelectronics.fusedgyroscopeexplorer.filter.MeanFilter;
+import com.kircherelectronics.fusedgyroscopeexplorer.fusion.ComplementaryFilter;
+import com.kircherelectronics.fusedgyroscopeexplorer.fusion.FusionConfig;
+import com.kircherelectronics.fusedgyroscopeexplorer.fusion.OrientationFusion;
+import com.kircherelectronics.fusedgyroscopeexplorer.fusion.QuaternionComplementaryFilter;
+import com.kircherelectronics.fusedgyroscopeexplorer.fusion.RotationMath;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.FusedGyroscopeSensor;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.FusedGyroscopeSensorObserver;
+
+/**
+ * Measures the time and the heap allocation per sample of each stage of the
+ * orientation pipeline on a normal JVM. This is the regression baseline for
+ * any work on the sensor and fusion packages: run it before and after a
+ * change and compare the tables.
+ * 
+ * Every stage is warmed up before it is measured so the JIT has compiled the
+ * hot path, and is then measured over several rounds. The time of the best
+ * round is reported, and the allocation of the worst round, so allocation
+ * that only happens now and then still shows. Allocation is read from the
+ * JVM's per-thread allocation counter, so it is exact rather than estimated
+ * from the heap size. Results are fed into a sink that is printed at the end
+ * so the JIT can not discard the work.
+ * 
+ * Stages that are meant to be allocation free are marked as such, and if
+ * any of them allocates in a measured round the benchmark exits with status
+ * 1 after printing the table.
+ * 
+ * Usage: OrientationBenchmark [samples per round]
+ * 
+ * @author Kaleb
+ * @version %I%, %G%
+ */
+public class OrientationBenchmark
+{
+	// The sample rate of the synthetic sensor streams, SENSOR_DELAY_FASTEST
+	// on most devices.
+	private static final int RATE_HZ = 500;
+
+	private static final int DEFAULT_SAMPLES = 200000;
+
+	private static final int WARM_UP_ROUNDS = 5;
+
+	private static final int MEASURED_ROUNDS = 10;
+
+	// Consumes results so the measured work is not optimized away.
+	private static float sink;
+
+	/**
+	 * A stage of the pipeline that can be measured.
+	 */
+	private static abstract class Stage
+	{
+		private final String name;
+
+		// The stage must not allocate once warmed up.
+		private final boolean allocationFree;
+
+		Stage(String name)
+		{
+			this(name, true);
+		}
+
+		Stage(String name, boolean allocationFree)
+		{
+			this.name = name;
+			this.allocationFree = allocationFree;
+		}
+
+		String getName()
+		{
+			return name;
+		}
+
+		boolean isAllocationFree()
+		{
+			return allocationFree;
+		}
+
+		/**
+		 * Run the stage for a number of samples.
+		 * 
+		 * @param samples
+		 *            the number of samples to process.
+		 */
+		abstract void run(int samples);
+	}
+
+	public static void main(String[] args)
+	{
+		int samples = DEFAULT_SAMPLES;
+
+		if (args.length > 0)
+		{
+			samples = Integer.parseInt(args[0]);
+		}
+
+		SyntheticSensorStream stream = new SyntheticSensorStream(RATE_HZ,
+				samples);
+
+		ArrayList<Stage> stages = new ArrayList<Stage>();
+
+		stages.add(meanFilterStage(stream, 10));
+		stages.add(meanFilterStage(stream, 30));
+		stages.add(meanFilterStage(stream, 100));
+		stages.add(rotationVectorFromGyroStage(stream));
+		stages.add(matrixMultiplicationStage(stream));
+		stages.add(rotationMatrixFromOrientationStage(stream));
+		stages.add(fusedOrientationStage(stream));
+		stages.add(fusionStage(stream, "ComplementaryFilter.updateGyroscope",
+				new ComplementaryFilter()));
+		stages.add(fusionStage(stream,
+				"ComplementaryFilter.updateGyroscope (incremental)",
+				new ComplementaryFilter(new FusionConfig.Builder()
+						.setCorrectionMode(
+								FusionConfig.CORRECTION_MODE_INCREMENTAL)
+						.build())));
+		stages.add(fusionStage(stream,
+				"QuaternionComplementaryFilter.updateGyroscope",
+				new QuaternionComplementaryFilter()));
+		stages.add(pipelineStage(stream,
+				FusedGyroscopeSensor.FUSION_MODE_MATRIX));
+		stages.add(pipelineStage(stream,
+				FusedGyroscopeSensor.FUSION_MODE_QUATERNION));
+
+		System.out.println(String.format(Locale.US, "%-52s %12s %17s",
+				"stage", "ns/sample", "max bytes/sample"));
+
+		boolean failed = false;
+
+		for (int i = 0; i < stages.size(); i++)
+		{
+			failed |= !measure(stages.get(i), samples);
+		}
+
+		System.out.println("sink: " + sink);
+
+		if (failed)
+		{
+			System.err.println("An allocation free stage allocated");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Warm up and measure a stage and print the result.
+	 * 
+	 * @param stage
+	 *            the stage.
+	 * @param samples
+	 *            the number of samples per round.
+	 * @return false if the stage should be allocation free but allocated.
+	 */
+	private static boolean measure(Stage stage, int samples)
+	{
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+		com.sun.management.ThreadMXBean allocationBean = null;
+
+		if (threadBean instanceof com.sun.management.ThreadMXBean)
+		{
+			allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+		}
+
+		long threadId = Thread.currentThread().getId();
+
+		for (int i = 0; i < WARM_UP_ROUNDS; i++)
+		{
+			stage.run(samples);
+		}
+
+		long bestNanos = Long.MAX_VALUE;
+		long worstBytes = 0;
+
+		for (int i = 0; i < MEASURED_ROUNDS; i++)
+		{
+			long bytes = (allocationBean != null) ? allocationBean
+					.getThreadAllocatedBytes(threadId) : 0;
+			long start = System.nanoTime();
+
+			stage.run(samples);
+
+			long nanos = System.nanoTime() - start;
+
+			if (allocationBean != null)
+			{
+				bytes = allocationBean.getThreadAllocatedBytes(threadId)
+						- bytes;
+			}
+
+			bestNanos = Math.min(bestNanos, nanos);
+			worstBytes = Math.max(worstBytes, bytes);
+		}
+
+		String allocation = (allocationBean != null) ? String.format(
+				Locale.US, "%17.2f", (double) worstBytes / samples) : String
+				.format(Locale.US, "%17s", "n/a");
+
+		boolean passed = !stage.isAllocationFree() || worstBytes == 0;
+
+		System.out.println(String.format(Locale.US, "%-52s %12.1f %s%s",
+				stage.getName(), (double) bestNanos / samples, allocation,
+				passed ? "" : "  FAIL"));
+
+		return passed;
+	}
+
+	private static Stage meanFilterStage(final SyntheticSensorStream stream,
+			final int window)
+	{
+		return new Stage("MeanFilter.filterFloat (window " + window + ")")
+		{
+			private final MeanFilter filter = new MeanFilter();
+			private final float[] input = new float[3];
+			private final float[] output = new float[3];
+
+			{
+				filter.setWindowSize(window);
+			}
+
+			@Override
+			void run(int samples)
+			{
+				for (int i = 0; i < samples; i++)
+				{
+					stream.getGravity(i, input);
+					filter.filterFloat(input, output);
+				}
+
+				sink += output[0];
+			}
+		};
+	}
+
+	private static Stage rotationVectorFromGyroStage(
+			final SyntheticSensorStream stream)
+	{
+		return new Stage("RotationMath.getRotationVectorFromGyro")
+		{
+			private final float[] gyroscope = new float[3];
+			private final float[] deltaVector = new float[4];
+
+			@Override
+			void run(int samples)
+			{
+				float timeFactor = 0.5f / stream.getRateHz();
+
+				for (int i = 0; i < samples; i++)
+				{
+					stream.getGyroscope(i, gyroscope);
+					RotationMath.getRotationVectorFromGyro(gyroscope,
+							timeFactor, ComplementaryFilter.EPSILON,
+							deltaVector);
+				}
+
+				sink += deltaVector[3];
+			}
+		};
+	}
+
+	private static Stage matrixMultiplicationStage(
+			final SyntheticSensorStream stream)
+	{
+		return new Stage("RotationMath.matrixMultiplication")
+		{
+			private final float[] gyroscope = new float[3];
+			private final float[] deltaVector = new float[4];
+			private final float[] deltaMatrix = new float[9];
+			private final float[] matrix = new float[9];
+			private final float[] result = new float[9];
+
+			@Override
+			void run(int samples)
+			{
+				stream.getGyroscope(samples / 2, gyroscope);
+				RotationMath.getRotationVectorFromGyro(gyroscope,
+						0.5f / stream.getRateHz(),
+						ComplementaryFilter.EPSILON, deltaVector);
+				RotationMath.getRotationMatrixFromVector(deltaMatrix,
+						deltaVector);
+				RotationMath.setIdentity(matrix);
+
+				for (int i = 0; i < samples; i++)
+				{
+					RotationMath.matrixMultiplication(matrix, deltaMatrix,
+							result);
+					System.arraycopy(result, 0, matrix, 0, 9);
+				}
+
+				sink += matrix[0];
+			}
+		};
+	}
+
+	private static Stage rotationMatrixFromOrientationStage(
+			final SyntheticSensorStream stream)
+	{
+		return new Stage("RotationMath.getRotationMatrixFromOrientation")
+		{
+			private final float[] orientation = new float[3];
+			private final float[] matrix = new float[9];
+
+			@Override
+			void run(int samples)
+			{
+				for (int i = 0; i < samples; i++)
+				{
+					// Any smoothly varying angles will do.
+					stream.getGyroscope(i, orientation);
+					RotationMath.getRotationMatrixFromOrientation(orientation,
+							matrix);
+				}
+
+				sink += matrix[0];
+			}
+		};
+	}
+
+	private static Stage fusedOrientationStage(
+			final SyntheticSensorStream stream)
+	{
+		// Mirrors ComplementaryFilter.calculateFusedOrientation(): blend the
+		// two orientations and rebuild the gyroscope matrix from the result.
+		return new Stage("calculateFusedOrientation")
+		{
+			private final float[] gyroOrientation = new float[3];
+			private final float[] orientation = new float[3];
+			private final float[] fusedOrientation = new float[3];
+			private final float[] matrix = new float[9];
+
+			@Override
+			void run(int samples)
+			{
+				for (int i = 0; i < samples; i++)
+				{
+					stream.getGyroscope(i, gyroOrientation);
+					stream.getGyroscope(samples - 1 - i, orientation);
+
+					RotationMath.fuseOrientation(gyroOrientation, orientation,
+							ComplementaryFilter.FILTER_COEFFICIENT,
+							fusedOrientation);
+					RotationMath.getRotationMatrixFromOrientation(
+							fusedOrientation, matrix);
+				}
+
+				sink += matrix[0];
+			}
+		};
+	}
+
+	private static Stage fusionStage(final SyntheticSensorStream stream,
+			String name, final OrientationFusion filter)
+	{
+		return new Stage(name)
+		{
+			private final float[] values = new float[3];
+			private final float[] orientation = new float[3];
+
+			@Override
+			void run(int samples)
+			{
+				filter.reset();
+
+				stream.getMagnetic(0, values);
+				filter.updateMagnetic(values, stream.getTimeStamp(0));
+				stream.getGravity(0, values);
+				filter.updateGravity(values, stream.getTimeStamp(0));
+
+				for (int i = 0; i < samples; i++)
+				{
+					stream.getGyroscope(i, values);
+					filter.updateGyroscope(values, stream.getTimeStamp(i));
+				}
+
+				filter.getFusedOrientation(orientation);
+
+				sink += orientation[0];
+			}
+		};
+	}
+
+	private static Stage pipelineStage(final SyntheticSensorStream stream,
+			final int fusionMode)
+	{
+		// The full pipeline as the application runs it: every sensor at the
+		// same rate, delivered through the observer interfaces. One sample is
+		// a gravity, a magnetic and a gyroscope measurement.
+		return new Stage("FusedGyroscopeSensor pipeline ("
+				+ ((fusionMode == FusedGyroscopeSensor.FUSION_MODE_QUATERNION) ? "quaternion"
+						: "matrix") + ", " + stream.getRateHz() + " Hz)")
+		{
+			private final FusedGyroscopeSensor sensor = new FusedGyroscopeSensor();
+			private final float[] values = new float[3];
+
+			{
+				sensor.setFusionMode(fusionMode);
+				sensor.registerObserver(new FusedGyroscopeSensorObserver()
+				{
+					@Override
+					public void onAngularVelocitySensorChanged(
+							float[] angularVelocity, long timeStamp)
+					{
+						sink += angularVelocity[0];
+					}
+				});
+			}
+
+			@Override
+			void run(int samples)
+			{
+				sensor.reset();
+
+				for (int i = 0; i < samples; i++)
+				{
+					long timeStamp = stream.getTimeStamp(i);
+
+					stream.getGravity(i, values);
+					sensor.onGravitySensorChanged(values, timeStamp);
+					stream.getMagnetic(i, values);
+					sensor.onMagneticSensorChanged(values, timeStamp);
+					stream.getGyroscope(i, values);
+					sensor.onGyroscopeSensorChanged(values, timeStamp);
+				}
+			}
+		};
+	}
+}
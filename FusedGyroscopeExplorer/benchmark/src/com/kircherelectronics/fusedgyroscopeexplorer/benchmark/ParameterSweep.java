@@ -0,0 +1,753 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.benchmark;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.kircherelectronics.fusedgyroscopeexplorer.fusion.ComplementaryFilter;
+import com.kircherelectronics.fusedgyroscopeexplorer.fusion.FusionConfig;
+import com.kircherelectronics.fusedgyroscopeexplorer.fusion.OrientationFusion;
+import com.kircherelectronics.fusedgyroscopeexplorer.fusion.QuaternionComplementaryFilter;
+import com.kircherelectronics.fusedgyroscopeexplorer.log.SensorLogFormat;
+import com.kircherelectronics.fusedgyroscopeexplorer.log.SensorLogReader;
+
+/**
+ * Tunes the complementary filter against a recorded session. The session is
+ * decoded once into flat arrays that every configuration shares, then a grid
+ * of filter coefficients and mean filter windows is fused in parallel and
+ * each configuration is scored against a reference orientation.
+ *
+ * The configurations are split into small chunks over a fork/join pool. A
+ * chunk walks the samples once and steps all of its filters on each sample,
+ * so the decoded measurement and the reference lookup are shared by the
+ * whole chunk while they are still in the cache, rather than walking the
+ * session once per configuration.
+ *
+ * The reference is an orientation log, by default the orientation.fgl that
+ * BatchReprocessor writes next to the session. Without one the default
+ * configuration is used as the reference and the scores are relative to it.
+ *
+ * Usage: ParameterSweep [--threads n] [--quaternion] [--bias]
+ * [--incremental] [--attitude-rate hz] [--coefficients c1,c2,...]
+ * [--windows w1,w2,...] [--reference orientation.fgl] [--output csv]
+ * session
+ *
+ * @author Kaleb
+ * @version %I%, %G%
+ */
+public class ParameterSweep
+{
+	private static final float[] DEFAULT_COEFFICIENTS =
+	{ 0.5f, 0.6f, 0.7f, 0.8f, 0.9f, 0.95f, 0.98f, 0.99f };
+
+	private static final int[] DEFAULT_WINDOWS =
+	{ 1, 2, 5, 10, 20, 40 };
+
+	// The number of configurations a task fuses together.
+	private static final int CHUNK_SIZE = 4;
+
+	private static final double TWO_PI = 2.0 * Math.PI;
+
+	/**
+	 * A recorded session decoded into the order SensorReplay delivers it.
+	 */
+	private static class Session
+	{
+		int count;
+
+		// The sensor type of each measurement.
+		byte[] types;
+
+		long[] timeStamps;
+
+		// The x, y, z of each measurement.
+		float[] values;
+	}
+
+	/**
+	 * An orientation log decoded into flat arrays.
+	 */
+	private static class Reference
+	{
+		int count;
+
+		long[] timeStamps;
+
+		// The azimuth, pitch and roll of each orientation.
+		float[] orientations;
+	}
+
+	/**
+	 * A filter configuration and its score.
+	 */
+	private static class Configuration
+	{
+		float coefficient;
+		int window;
+
+		// The whole configuration, the coefficient and window plus the
+		// options common to the sweep.
+		FusionConfig config;
+
+		long fused;
+
+		// Compared against the reference.
+		long compared;
+
+		double rmsError;
+		double maxError;
+
+		// The slope of the azimuth error in degrees per minute.
+		double drift;
+
+		Configuration(float coefficient, int window, FusionConfig config)
+		{
+			this.coefficient = coefficient;
+			this.window = window;
+			this.config = config;
+		}
+	}
+
+	/**
+	 * Fuses a range of the configurations, splitting it until a chunk is
+	 * small enough to step together.
+	 */
+	private static class SweepTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final Session session;
+		private final Reference reference;
+		private final Configuration[] configurations;
+		private final int from;
+		private final int to;
+		private final boolean quaternion;
+
+		SweepTask(Session session, Reference reference,
+				Configuration[] configurations, int from, int to,
+				boolean quaternion)
+		{
+			this.session = session;
+			this.reference = reference;
+			this.configurations = configurations;
+			this.from = from;
+			this.to = to;
+			this.quaternion = quaternion;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (to - from <= CHUNK_SIZE)
+			{
+				sweep(session, reference, configurations, from, to,
+						quaternion);
+				return;
+			}
+
+			int middle = (from + to) >>> 1;
+
+			invokeAll(new SweepTask(session, reference, configurations, from,
+					middle, quaternion), new SweepTask(session, reference,
+					configurations, middle, to, quaternion));
+		}
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean quaternion = false;
+		FusionConfig.Builder common = new FusionConfig.Builder();
+		float[] coefficients = DEFAULT_COEFFICIENTS;
+		int[] windows = DEFAULT_WINDOWS;
+		String referencePath = null;
+		String outputPath = null;
+
+		ArrayList<String> paths = new ArrayList<String>();
+
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].equals("--threads") && i + 1 < args.length)
+			{
+				threads = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("--quaternion"))
+			{
+				quaternion = true;
+			}
+			else if (args[i].equals("--bias"))
+			{
+				common.setGyroscopeBiasEstimation(true);
+			}
+			else if (args[i].equals("--incremental"))
+			{
+				common.setCorrectionMode(FusionConfig.CORRECTION_MODE_INCREMENTAL);
+			}
+			else if (args[i].equals("--attitude-rate") && i + 1 < args.length)
+			{
+				common.setAttitudeRate(Float.parseFloat(args[++i]));
+			}
+			else if (args[i].equals("--coefficients") && i + 1 < args.length)
+			{
+				String[] tokens = args[++i].split(",");
+				coefficients = new float[tokens.length];
+
+				for (int j = 0; j < tokens.length; j++)
+				{
+					coefficients[j] = Float.parseFloat(tokens[j]);
+				}
+			}
+			else if (args[i].equals("--windows") && i + 1 < args.length)
+			{
+				String[] tokens = args[++i].split(",");
+				windows = new int[tokens.length];
+
+				for (int j = 0; j < tokens.length; j++)
+				{
+					windows[j] = Integer.parseInt(tokens[j]);
+				}
+			}
+			else if (args[i].equals("--reference") && i + 1 < args.length)
+			{
+				referencePath = args[++i];
+			}
+			else if (args[i].equals("--output") && i + 1 < args.length)
+			{
+				outputPath = args[++i];
+			}
+			else
+			{
+				paths.add(args[i]);
+			}
+		}
+
+		if (paths.size() != 1)
+		{
+			System.err.println("Usage: ParameterSweep [--threads n] "
+					+ "[--quaternion] [--bias] [--incremental] "
+					+ "[--attitude-rate hz] "
+					+ "[--coefficients c1,c2,...] "
+					+ "[--windows w1,w2,...] [--reference orientation.fgl] "
+					+ "[--output csv] session");
+			System.exit(1);
+		}
+
+		File directory = new File(paths.get(0));
+
+		long start = System.nanoTime();
+
+		Session session = decodeSession(directory);
+
+		File referenceFile = referencePath != null ? new File(referencePath)
+				: new File(directory,
+						SensorLogFormat
+								.getFileName(SensorLogFormat.SENSOR_TYPE_ORIENTATION));
+
+		Reference reference;
+
+		if (referenceFile.isFile())
+		{
+			reference = decodeReference(referenceFile);
+			System.out.println("Reference: " + referenceFile);
+		}
+		else
+		{
+			reference = fuseReference(session, quaternion);
+			System.out.println(String.format(Locale.US,
+					"Reference: default configuration (%.2f, %d)",
+					FusionConfig.DEFAULT.getFilterCoefficient(),
+					FusionConfig.DEFAULT.getMeanFilterWindow()));
+		}
+
+		long decoded = System.nanoTime();
+
+		Configuration[] configurations = new Configuration[coefficients.length
+				* windows.length];
+
+		FusionConfig commonConfig = common.build();
+
+		for (int i = 0; i < coefficients.length; i++)
+		{
+			for (int j = 0; j < windows.length; j++)
+			{
+				configurations[i * windows.length + j] = new Configuration(
+						coefficients[i], windows[j], new FusionConfig.Builder(
+								commonConfig)
+								.setFilterCoefficient(coefficients[i])
+								.setMeanFilterWindow(windows[j]).build());
+			}
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+
+		pool.invoke(new SweepTask(session, reference, configurations, 0,
+				configurations.length, quaternion));
+
+		pool.shutdown();
+
+		long finished = System.nanoTime();
+
+		List<Configuration> ranked = new ArrayList<Configuration>(
+				Arrays.asList(configurations));
+
+		Collections.sort(ranked, new Comparator<Configuration>()
+		{
+			@Override
+			public int compare(Configuration lhs, Configuration rhs)
+			{
+				return Double.compare(lhs.rmsError, rhs.rmsError);
+			}
+		});
+
+		System.out.println(String.format(Locale.US, "%11s %6s %10s %10s %12s",
+				"coefficient", "window", "rms_deg", "max_deg", "drift_deg/min"));
+
+		for (Configuration configuration : ranked)
+		{
+			System.out.println(String.format(Locale.US,
+					"%11.3f %6d %10.4f %10.4f %12.4f",
+					configuration.coefficient, configuration.window,
+					configuration.rmsError, configuration.maxError,
+					configuration.drift));
+		}
+
+		System.out.println(String.format(Locale.US,
+				"%d measurements decoded in %.2f s, %d configurations "
+						+ "fused in %.2f s on %d threads, %.0f "
+						+ "measurements/s", session.count,
+				(decoded - start) / 1e9, configurations.length,
+				(finished - decoded) / 1e9, threads, (double) session.count
+						* configurations.length * 1e9 / (finished - decoded)));
+
+		if (outputPath != null)
+		{
+			writeResults(new File(outputPath), ranked);
+		}
+	}
+
+	/**
+	 * Fuse the session with a chunk of the configurations, stepping all of
+	 * them on each measurement, and score them against the reference.
+	 */
+	private static void sweep(Session session, Reference reference,
+			Configuration[] configurations, int from, int to,
+			boolean quaternion)
+	{
+		int size = to - from;
+
+		OrientationFusion[] filters = new OrientationFusion[size];
+
+		for (int i = 0; i < size; i++)
+		{
+			filters[i] = createFilter(configurations[from + i].config,
+					quaternion);
+		}
+
+		long[] fused = new long[size];
+		long[] compared = new long[size];
+		double[] sumSquares = new double[size];
+		double[] maxError = new double[size];
+
+		// Least squares sums of the azimuth error against time.
+		double[] sumTime = new double[size];
+		double[] sumTimeSquared = new double[size];
+		double[] sumAzimuth = new double[size];
+		double[] sumTimeAzimuth = new double[size];
+
+		float[] sample = new float[3];
+		float[] orientation = new float[3];
+		float[] expected = new float[3];
+
+		long firstTimeStamp = session.count > 0 ? session.timeStamps[0] : 0;
+
+		int next = 0;
+		int current = -1;
+
+		for (int n = 0; n < session.count; n++)
+		{
+			long timeStamp = session.timeStamps[n];
+			byte type = session.types[n];
+
+			sample[0] = session.values[n * 3];
+			sample[1] = session.values[n * 3 + 1];
+			sample[2] = session.values[n * 3 + 2];
+
+			if (type == SensorLogFormat.SENSOR_TYPE_MAGNETIC_FIELD)
+			{
+				for (int i = 0; i < size; i++)
+				{
+					filters[i].updateMagnetic(sample, timeStamp);
+				}
+
+				continue;
+			}
+
+			if (type == SensorLogFormat.SENSOR_TYPE_GRAVITY)
+			{
+				for (int i = 0; i < size; i++)
+				{
+					filters[i].updateGravity(sample, timeStamp);
+				}
+
+				continue;
+			}
+
+			// The latest reference orientation at or before this measurement,
+			// found once for the whole chunk.
+			while (next < reference.count
+					&& reference.timeStamps[next] <= timeStamp)
+			{
+				current = next++;
+			}
+
+			if (current >= 0)
+			{
+				System.arraycopy(reference.orientations, current * 3,
+						expected, 0, 3);
+			}
+
+			double time = (timeStamp - firstTimeStamp) / 60e9;
+
+			for (int i = 0; i < size; i++)
+			{
+				if (!filters[i].updateGyroscope(sample, timeStamp))
+				{
+					continue;
+				}
+
+				fused[i]++;
+
+				if (current < 0)
+				{
+					continue;
+				}
+
+				filters[i].getFusedOrientation(orientation);
+
+				double azimuth = angleDifference(orientation[0], expected[0]);
+				double pitch = angleDifference(orientation[1], expected[1]);
+				double roll = angleDifference(orientation[2], expected[2]);
+
+				double error = Math.sqrt(azimuth * azimuth + pitch * pitch
+						+ roll * roll);
+
+				compared[i]++;
+				sumSquares[i] += error * error;
+				maxError[i] = Math.max(maxError[i], error);
+
+				sumTime[i] += time;
+				sumTimeSquared[i] += time * time;
+				sumAzimuth[i] += azimuth;
+				sumTimeAzimuth[i] += time * azimuth;
+			}
+		}
+
+		for (int i = 0; i < size; i++)
+		{
+			Configuration configuration = configurations[from + i];
+
+			configuration.fused = fused[i];
+			configuration.compared = compared[i];
+
+			if (compared[i] == 0)
+			{
+				configuration.rmsError = Double.NaN;
+				configuration.maxError = Double.NaN;
+				configuration.drift = Double.NaN;
+				continue;
+			}
+
+			configuration.rmsError = Math.toDegrees(Math.sqrt(sumSquares[i]
+					/ compared[i]));
+			configuration.maxError = Math.toDegrees(maxError[i]);
+
+			double denominator = compared[i] * sumTimeSquared[i] - sumTime[i]
+					* sumTime[i];
+
+			configuration.drift = denominator > 0 ? Math
+					.toDegrees((compared[i] * sumTimeAzimuth[i] - sumTime[i]
+							* sumAzimuth[i])
+							/ denominator) : 0;
+		}
+	}
+
+	/**
+	 * Fuse the session with the default configuration to use as the
+	 * reference.
+	 */
+	private static Reference fuseReference(Session session, boolean quaternion)
+	{
+		OrientationFusion filter = createFilter(FusionConfig.DEFAULT,
+				quaternion);
+
+		Reference reference = new Reference();
+		reference.timeStamps = new long[session.count];
+		reference.orientations = new float[session.count * 3];
+
+		float[] sample = new float[3];
+		float[] orientation = new float[3];
+
+		for (int n = 0; n < session.count; n++)
+		{
+			long timeStamp = session.timeStamps[n];
+
+			System.arraycopy(session.values, n * 3, sample, 0, 3);
+
+			switch (session.types[n])
+			{
+			case SensorLogFormat.SENSOR_TYPE_MAGNETIC_FIELD:
+				filter.updateMagnetic(sample, timeStamp);
+				break;
+			case SensorLogFormat.SENSOR_TYPE_GRAVITY:
+				filter.updateGravity(sample, timeStamp);
+				break;
+			default:
+				if (filter.updateGyroscope(sample, timeStamp))
+				{
+					filter.getFusedOrientation(orientation);
+
+					reference.timeStamps[reference.count] = timeStamp;
+					System.arraycopy(orientation, 0, reference.orientations,
+							reference.count * 3, 3);
+
+					reference.count++;
+				}
+			}
+		}
+
+		return reference;
+	}
+
+	private static OrientationFusion createFilter(FusionConfig config,
+			boolean quaternion)
+	{
+		if (quaternion)
+		{
+			return new QuaternionComplementaryFilter(config);
+		}
+
+		return new ComplementaryFilter(config);
+	}
+
+	/**
+	 * Decode the sensor logs of a session and merge them by time stamp, with
+	 * ties in the same order as SensorReplay.
+	 */
+	private static Session decodeSession(File directory) throws IOException
+	{
+		SensorLogReader gyroscopeReader = openReader(directory,
+				SensorLogFormat.SENSOR_TYPE_GYROSCOPE);
+		SensorLogReader gravityReader = openReader(directory,
+				SensorLogFormat.SENSOR_TYPE_GRAVITY);
+		SensorLogReader magneticReader = openReader(directory,
+				SensorLogFormat.SENSOR_TYPE_MAGNETIC_FIELD);
+
+		try
+		{
+			long capacity = getRecordCount(gyroscopeReader)
+					+ getRecordCount(gravityReader)
+					+ getRecordCount(magneticReader);
+
+			if (capacity > Integer.MAX_VALUE / 3)
+			{
+				throw new IOException("Session is too large to decode: "
+						+ directory);
+			}
+
+			Session session = new Session();
+			session.types = new byte[(int) capacity];
+			session.timeStamps = new long[(int) capacity];
+			session.values = new float[(int) capacity * 3];
+
+			long gyroscopeTime = advance(gyroscopeReader);
+			long gravityTime = advance(gravityReader);
+			long magneticTime = advance(magneticReader);
+
+			float[] values = new float[3];
+
+			while (session.count < capacity)
+			{
+				long timeStamp = Math.min(gyroscopeTime,
+						Math.min(gravityTime, magneticTime));
+
+				if (timeStamp == Long.MAX_VALUE)
+				{
+					break;
+				}
+
+				int type;
+
+				if (magneticTime == timeStamp)
+				{
+					type = SensorLogFormat.SENSOR_TYPE_MAGNETIC_FIELD;
+					magneticReader.getValues(values);
+					magneticTime = advance(magneticReader);
+				}
+				else if (gravityTime == timeStamp)
+				{
+					type = SensorLogFormat.SENSOR_TYPE_GRAVITY;
+					gravityReader.getValues(values);
+					gravityTime = advance(gravityReader);
+				}
+				else
+				{
+					type = SensorLogFormat.SENSOR_TYPE_GYROSCOPE;
+					gyroscopeReader.getValues(values);
+					gyroscopeTime = advance(gyroscopeReader);
+				}
+
+				session.types[session.count] = (byte) type;
+				session.timeStamps[session.count] = timeStamp;
+				System.arraycopy(values, 0, session.values, session.count * 3,
+						3);
+
+				session.count++;
+			}
+
+			return session;
+		}
+		finally
+		{
+			close(gyroscopeReader);
+			close(gravityReader);
+			close(magneticReader);
+		}
+	}
+
+	private static Reference decodeReference(File file) throws IOException
+	{
+		SensorLogReader reader = new SensorLogReader(file);
+
+		try
+		{
+			long capacity = reader.getRecordCount();
+
+			if (capacity > Integer.MAX_VALUE / 3)
+			{
+				throw new IOException("Reference is too large to decode: "
+						+ file);
+			}
+
+			Reference reference = new Reference();
+			reference.timeStamps = new long[(int) capacity];
+			reference.orientations = new float[(int) capacity * 3];
+
+			float[] values = new float[3];
+
+			while (reference.count < capacity && reader.next())
+			{
+				reader.getValues(values);
+
+				reference.timeStamps[reference.count] = reader.getTimeStamp();
+				System.arraycopy(values, 0, reference.orientations,
+						reference.count * 3, 3);
+
+				reference.count++;
+			}
+
+			return reference;
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	private static SensorLogReader openReader(File directory, int sensorType)
+			throws IOException
+	{
+		File file = new File(directory, SensorLogFormat.getFileName(sensorType));
+
+		if (!file.isFile())
+		{
+			return null;
+		}
+
+		return new SensorLogReader(file);
+	}
+
+	private static long getRecordCount(SensorLogReader reader)
+	{
+		return reader != null ? reader.getRecordCount() : 0;
+	}
+
+	private static long advance(SensorLogReader reader) throws IOException
+	{
+		if (reader == null || !reader.next())
+		{
+			return Long.MAX_VALUE;
+		}
+
+		return reader.getTimeStamp();
+	}
+
+	private static void close(SensorLogReader reader) throws IOException
+	{
+		if (reader != null)
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * The difference between two angles, wrapped to -pi..pi so the
+	 * transition between 179 and -179 degrees isn't an error.
+	 */
+	private static double angleDifference(float a, float b)
+	{
+		return Math.IEEEremainder(a - b, TWO_PI);
+	}
+
+	private static void writeResults(File file, List<Configuration> ranked)
+			throws IOException
+	{
+		PrintWriter writer = new PrintWriter(new FileWriter(file));
+
+		try
+		{
+			writer.println("coefficient,window,fused,compared,rms_deg,"
+					+ "max_deg,drift_deg_per_min");
+
+			for (Configuration configuration : ranked)
+			{
+				writer.println(String.format(Locale.US,
+						"%.4f,%d,%d,%d,%.5f,%.5f,%.5f",
+						configuration.coefficient, configuration.window,
+						configuration.fused, configuration.compared,
+						configuration.rmsError, configuration.maxError,
+						configuration.drift));
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.benchmark;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Locale;
+
+import com.kircherelectronics.fusedgyroscopeexplorer.log.SensorReplay;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.FusedGyroscopeSensor;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.FusedGyroscopeSensorObserver;
+
+/**
+ * Replays recorded sessions through FusedGyroscopeSensor on a normal JVM.
+ * For each session it prints the number of measurements, the measurements
+ * per second on one core and a digest of every fused orientation, so the
+ * output of two versions of the fusion can be compared at a glance. The
+ * fused orientations can also be written out to compare them in detail.
+ * 
+ * Usage: ReplayBenchmark [--realtime] [--quaternion] [--output file]
+ * session...
+ * 
+ * @author Kaleb
+ * @version %I%, %G%
+ */
+public class ReplayBenchmark
+{
+	/**
+	 * Collects the fused orientations of a replay.
+	 */
+	private static class FusedOutput implements FusedGyroscopeSensorObserver
+	{
+		private final PrintWriter writer;
+
+		private long count = 0;
+
+		// FNV-1a over the bits of every orientation.
+		private long digest = 0xcbf29ce484222325L;
+
+		private float[] orientation = new float[3];
+
+		FusedOutput(PrintWriter writer)
+		{
+			this.writer = writer;
+		}
+
+		@Override
+		public void onAngularVelocitySensorChanged(float[] angularVelocity,
+				long timeStamp)
+		{
+			for (int i = 0; i < 3; i++)
+			{
+				digest = (digest ^ Float.floatToIntBits(angularVelocity[i]))
+						* 0x100000001b3L;
+			}
+
+			System.arraycopy(angularVelocity, 0, orientation, 0, 3);
+
+			count++;
+
+			if (writer != null)
+			{
+				writer.println(timeStamp + "," + angularVelocity[0] + ","
+						+ angularVelocity[1] + "," + angularVelocity[2]);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		int mode = SensorReplay.MODE_THROUGHPUT;
+		int fusionMode = FusedGyroscopeSensor.FUSION_MODE_MATRIX;
+		File output = null;
+
+		ArrayList<File> sessions = new ArrayList<File>();
+
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].equals("--realtime"))
+			{
+				mode = SensorReplay.MODE_REALTIME;
+			}
+			else if (args[i].equals("--quaternion"))
+			{
+				fusionMode = FusedGyroscopeSensor.FUSION_MODE_QUATERNION;
+			}
+			else if (args[i].equals("--output") && i + 1 < args.length)
+			{
+				output = new File(args[++i]);
+			}
+			else
+			{
+				sessions.add(new File(args[i]));
+			}
+		}
+
+		if (sessions.isEmpty())
+		{
+			System.err.println("Usage: ReplayBenchmark [--realtime] "
+					+ "[--quaternion] [--output file] session...");
+			System.exit(1);
+		}
+
+		PrintWriter writer = null;
+
+		if (output != null)
+		{
+			writer = new PrintWriter(new FileWriter(output));
+			writer.println("timestamp,azimuth,pitch,roll");
+		}
+
+		System.out.println(String.format(Locale.US,
+				"%-32s %12s %10s %14s %18s", "session", "measurements",
+				"fused", "per second", "digest"));
+
+		try
+		{
+			for (File session : sessions)
+			{
+				replay(session, mode, fusionMode, writer);
+			}
+		}
+		finally
+		{
+			if (writer != null)
+			{
+				writer.close();
+			}
+		}
+	}
+
+	/**
+	 * Replay a session and print the results.
+	 */
+	private static void replay(File session, int mode, int fusionMode,
+			PrintWriter writer) throws IOException
+	{
+		FusedGyroscopeSensor fusedGyroscopeSensor = new FusedGyroscopeSensor();
+		fusedGyroscopeSensor.setFusionMode(fusionMode);
+
+		FusedOutput fusedOutput = new FusedOutput(writer);
+		fusedGyroscopeSensor.registerObserver(fusedOutput);
+
+		SensorReplay replay = new SensorReplay(session);
+
+		long measurements;
+		long elapsed;
+
+		try
+		{
+			long start = System.nanoTime();
+
+			measurements = replay.replay(fusedGyroscopeSensor,
+					fusedGyroscopeSensor, fusedGyroscopeSensor, mode);
+
+			elapsed = System.nanoTime() - start;
+		}
+		finally
+		{
+			replay.close();
+		}
+
+		double rate = measurements * 1e9 / Math.max(elapsed, 1);
+
+		System.out.println(String.format(Locale.US,
+				"%-32s %12d %10d %14.0f %18s", session.getName(),
+				measurements, fusedOutput.count, rate,
+				Long.toHexString(fusedOutput.digest)));
+	}
+}
@@ -0,0 +1,180 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.benchmark;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import com.kircherelectronics.fusedgyroscopeexplorer.fusion.RotationMath;
+
+/**
+ * Generates gyroscope, gravity and magnetic measurements for a device that is
+ * slowly tumbling about all three axes. All of the samples are computed up
+ * front so generating them is never part of a measurement.
+ * 
+ * @author Kaleb
+ * @version %I%, %G%
+ */
+public class SyntheticSensorStream
+{
+	// The local magnetic field in world coordinates (x east, y north, z up),
+	// in micro-Tesla.
+	private static final float[] MAGNETIC_FIELD = new float[]
+	{ 0.0f, 22.0f, -42.0f };
+
+	private final int rateHz;
+	private final int length;
+
+	// Samples are stored one after another, (x, y, z) per sample.
+	private final float[] gyroscope;
+	private final float[] gravity;
+	private final float[] magnetic;
+	private final long[] timeStamps;
+
+	/**
+	 * Generate a new stream.
+	 * 
+	 * @param rateHz
+	 *            the sample rate of every sensor.
+	 * @param length
+	 *            the number of samples per sensor.
+	 */
+	public SyntheticSensorStream(int rateHz, int length)
+	{
+		this.rateHz = rateHz;
+		this.length = length;
+
+		gyroscope = new float[length * 3];
+		gravity = new float[length * 3];
+		magnetic = new float[length * 3];
+		timeStamps = new long[length];
+
+		generate();
+	}
+
+	public int getRateHz()
+	{
+		return rateHz;
+	}
+
+	public int getLength()
+	{
+		return length;
+	}
+
+	/**
+	 * Copy a gyroscope sample.
+	 * 
+	 * @param index
+	 *            the sample index.
+	 * @param values
+	 *            the angular speeds (x, y, z).
+	 */
+	public void getGyroscope(int index, float[] values)
+	{
+		System.arraycopy(gyroscope, index * 3, values, 0, 3);
+	}
+
+	/**
+	 * Copy a gravity sample.
+	 * 
+	 * @param index
+	 *            the sample index.
+	 * @param values
+	 *            the gravity (x, y, z).
+	 */
+	public void getGravity(int index, float[] values)
+	{
+		System.arraycopy(gravity, index * 3, values, 0, 3);
+	}
+
+	/**
+	 * Copy a magnetic sample.
+	 * 
+	 * @param index
+	 *            the sample index.
+	 * @param values
+	 *            the magnetic field (x, y, z).
+	 */
+	public void getMagnetic(int index, float[] values)
+	{
+		System.arraycopy(magnetic, index * 3, values, 0, 3);
+	}
+
+	/**
+	 * Get the time stamp of a sample.
+	 * 
+	 * @param index
+	 *            the sample index.
+	 * @return the time stamp in nanoseconds.
+	 */
+	public long getTimeStamp(int index)
+	{
+		return timeStamps[index];
+	}
+
+	/**
+	 * Integrate a smooth angular velocity profile and derive the gravity and
+	 * magnetic measurements from the resulting device rotation.
+	 */
+	private void generate()
+	{
+		float[] rotation = new float[9];
+		float[] delta = new float[9];
+		float[] deltaVector = new float[4];
+		float[] result = new float[9];
+		float[] omega = new float[3];
+
+		RotationMath.setIdentity(rotation);
+
+		long periodNs = 1000000000L / rateHz;
+		float dT = 1.0f / rateHz;
+
+		for (int i = 0; i < length; i++)
+		{
+			float t = i * dT;
+
+			omega[0] = 0.6f * (float) Math.sin(0.7 * t);
+			omega[1] = 0.4f * (float) Math.sin(1.1 * t + 1.0);
+			omega[2] = 0.8f * (float) Math.sin(0.3 * t + 2.0);
+
+			RotationMath.getRotationVectorFromGyro(omega, dT / 2.0f,
+					0.000000001f, deltaVector);
+			RotationMath.getRotationMatrixFromVector(delta, deltaVector);
+			RotationMath.matrixMultiplication(rotation, delta, result);
+			System.arraycopy(result, 0, rotation, 0, 9);
+
+			int offset = i * 3;
+
+			System.arraycopy(omega, 0, gyroscope, offset, 3);
+
+			// The rotation matrix takes device coordinates to world
+			// coordinates, so its transpose takes the world's gravity and
+			// magnetic field into device coordinates.
+			for (int j = 0; j < 3; j++)
+			{
+				gravity[offset + j] = rotation[6 + j]
+						* RotationMath.GRAVITY_EARTH;
+
+				magnetic[offset + j] = rotation[j] * MAGNETIC_FIELD[0]
+						+ rotation[3 + j] * MAGNETIC_FIELD[1]
+						+ rotation[6 + j] * MAGNETIC_FIELD[2];
+			}
+
+			timeStamps[i] = (i + 1) * periodNs;
+		}
+	}
+}
@@ -1,6 +1,11 @@
 package com.kircherelectronics.fusedgyroscopeexplorer;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
 
 /*
  * Copyright 2013, Kaleb Kircher - Boki Software, Kircher Electronics
@@ -19,24 +24,49 @@ import java.text.DecimalFormat;
  */
 
 
+import android.annotation.TargetApi;
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.app.AlertDialog;
+import android.content.Context;
 import android.content.DialogInterface;
+import android.hardware.Sensor;
 import android.hardware.SensorManager;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.View;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.kircherelectronics.fusedgyroscopeexplorer.filter.MeanFilter;
+import com.kircherelectronics.fusedgyroscopeexplorer.fusion.FusionConfig;
+import com.kircherelectronics.fusedgyroscopeexplorer.fusion.GyroscopeBiasEstimator;
+import com.kircherelectronics.fusedgyroscopeexplorer.fusion.GyroscopeIntegrator;
+import com.kircherelectronics.fusedgyroscopeexplorer.fusion.OrientationHandoff;
+import com.kircherelectronics.fusedgyroscopeexplorer.fusion.RotationMath;
 import com.kircherelectronics.fusedgyroscopeexplorer.gauge.GaugeBearing;
 import com.kircherelectronics.fusedgyroscopeexplorer.gauge.GaugeRotation;
+import com.kircherelectronics.fusedgyroscopeexplorer.gauge.RenderStats;
+import com.kircherelectronics.fusedgyroscopeexplorer.log.SensorRecorder;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.AxisRemap;
 import com.kircherelectronics.fusedgyroscopeexplorer.sensor.FusedGyroscopeSensor;
 import com.kircherelectronics.fusedgyroscopeexplorer.sensor.GravitySensor;
 import com.kircherelectronics.fusedgyroscopeexplorer.sensor.GyroscopeSensor;
 import com.kircherelectronics.fusedgyroscopeexplorer.sensor.MagneticSensor;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.MountCalibration;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.OrientationComparison;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.OrientationSource;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.RotationVectorSensor;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.SensorMetrics;
 import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.FusedGyroscopeSensorObserver;
 import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.GravitySensorObserver;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.GyroscopeSensorBatchObserver;
 import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.GyroscopeSensorObserver;
 import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.MagneticSensorObserver;
 
@@ -63,25 +93,75 @@ import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.MagneticSen
  * the rotation using a sensor fusion comprised of the gyroscope, acceleration
  * and magnetic sensors via complementary filter.
  * 
+ * The fused gauges show the rotation vector sensor of the device where it has
+ * one, since the vendor fusion costs the application next to nothing, and
+ * the complementary filter otherwise. Either can be picked from the menu, and
+ * the two can be compared while the app runs.
+ * 
+ * The sensors are registered, and all of the maths is done, on a dedicated
+ * sensor thread. The orientations are handed to the UI thread, which samples
+ * the latest of them about once per frame.
+ * 
  * @author Kaleb
  * 
  */
 public class FusedGyroscopeActivity extends Activity implements
 		GyroscopeSensorObserver, GravitySensorObserver, MagneticSensorObserver,
-		FusedGyroscopeSensorObserver
+		FusedGyroscopeSensorObserver, GyroscopeSensorBatchObserver
 {
 
-	public static final float EPSILON = 0.000000001f;
-
 	private static final String tag = FusedGyroscopeActivity.class
 			.getSimpleName();
-	
-	private static final float NS2S = 1.0f / 1000000000.0f;
-	private static final int MEAN_FILTER_WINDOW = 10;
-	private static final int MIN_SAMPLE_COUNT = 30;
+
+
+	// How long the sensors may hold measurements in their FIFO when batching.
+	private static final int BATCH_LATENCY_US = 100000;
+
+	// Orientations that changed less than this, in radians, are not redrawn.
+	// Half of the last digit shown in the text views.
+	private static final float DISPLAY_EPSILON = 0.005f;
+
+	// How many frames to wait between updates of the render statistics.
+	private static final int STATS_INTERVAL_FRAMES = 30;
+
+	// The gauges can't show fused orientations faster than the display
+	// refreshes.
+	private static final float DISPLAY_RATE = 60;
+
+	// How often, in Hz, the acceleration/magnetic orientation is solved. The
+	// gyroscope carries the orientation between solves.
+	private static final float ATTITUDE_RATE = 25;
+
+	// How long, in milliseconds, a gyroscope measurement may wait for the
+	// gravity and magnetic measurements around it.
+	private static final int SYNCHRONIZATION_DELAY = 20;
+
+	// How often the comparison of the fusions is written to the log.
+	private static final long COMPARISON_INTERVAL_MS = 5000;
+
+	// How often the sensor metrics overlay is updated.
+	private static final long METRICS_INTERVAL_MS = 1000;
 
 	private boolean hasInitialOrientation = false;
-	private boolean stateInitializedAndroid = false;
+
+	// Observe the sensors in batches instead of one measurement at a time.
+	private boolean batchMode = false;
+
+	// Record the sensors, as seen by the UI thread.
+	private boolean recording = false;
+
+	// Compare the vendor fusion with the complementary filter.
+	private boolean comparing = false;
+
+	// Show how regularly the sensors deliver their measurements.
+	private boolean showingMetrics = false;
+
+	// Records the sensors, only touched on the sensor thread.
+	private SensorRecorder sensorRecorder;
+
+	// Captures the sensors to calibrate the mounting of the device, only
+	// touched on the sensor thread.
+	private MountCalibration mountCalibration;
 
 	// The gauge views. Note that these are views and UI hogs since they run in
 	// the UI thread, not ideal, but easy to use.
@@ -92,10 +172,84 @@ public class FusedGyroscopeActivity extends Activity implements
 
 	private DecimalFormat df;
 
+	// The sensors are registered and processed on this thread.
+	private HandlerThread sensorThread;
+	private Handler sensorHandler;
+
+	// Samples the orientations on the UI thread once per frame.
+	private RenderLoop renderLoop;
+
+	// Hand the orientations from the sensor thread to the UI thread.
+	private OrientationHandoff handoffAndroid;
+	private OrientationHandoff handoffFused;
+
+	// The orientations as last seen by the UI thread.
+	private float[] displayOrientationAndroid;
+	private float[] displayOrientationFused;
+
+	// The orientations as last drawn by the UI thread.
+	private float[] drawnOrientationAndroid;
+	private float[] drawnOrientationFused;
+
+	// Orientations that were sampled but not drawn because they hardly
+	// changed.
+	private long droppedCount = 0;
+
+	private int statsFrameCount = 0;
+
+	private TextView renderStats;
+	private TextView sensorMetrics;
+
+	private Runnable restartSensors = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			restart();
+		}
+	};
+
+	private Runnable resetSensors = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			reset();
+		}
+	};
+
+	private Runnable logComparison = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			logComparison();
+
+			sensorHandler.postDelayed(this, COMPARISON_INTERVAL_MS);
+		}
+	};
+
+	private Runnable updateSensorMetrics = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			final String text = formatSensorMetrics();
+
+			runOnUiThread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					sensorMetrics.setText(text);
+				}
+			});
+
+			sensorHandler.postDelayed(this, METRICS_INTERVAL_MS);
+		}
+	};
+
 	// Calibrated maths.
-	private float[] currentRotationMatrixAndroid;
-	private float[] deltaRotationMatrixAndroid;
-	private float[] deltaRotationVectorAndroid;
 	private float[] gyroscopeOrientationAndroid;
 
 	// accelerometer and magnetometer based rotation matrix
@@ -107,15 +261,35 @@ public class FusedGyroscopeActivity extends Activity implements
 	// magnetic field vector
 	private float[] magnetic;
 
+	// a gyroscope measurement unpacked from a batch
+	private float[] gyroscopeSample;
+
 	private int accelerationSampleCount = 0;
 	private int magneticSampleCount = 0;
 
-	private long timestampOldCalibrated = 0;
-
 	private MeanFilter gravityFilter;
 	private MeanFilter magneticFilter;
 
+	// The tuning of the fusion, picked for the device when it is created.
+	private FusionConfig fusionConfig;
+
+	private GyroscopeIntegrator gyroscopeIntegrator;
+
+	// Removes the gyroscope bias before it is integrated, if the tuning asks
+	// for it.
+	private GyroscopeBiasEstimator gyroscopeBiasEstimator;
+
 	private FusedGyroscopeSensor fusedGyroscopeSensor;
+	private RotationVectorSensor rotationVectorSensor;
+
+	// The source of the fused gauges, either fusedGyroscopeSensor or
+	// rotationVectorSensor.
+	private OrientationSource orientationSource;
+
+	// Measures the vendor fusion against the complementary filter, only
+	// touched on the sensor thread.
+	private OrientationComparison orientationComparison;
+
 	private GravitySensor gravitySensor;
 	private GyroscopeSensor gyroscopeSensor;
 	private MagneticSensor magneticSensor;
@@ -135,12 +309,30 @@ public class FusedGyroscopeActivity extends Activity implements
 
 		setContentView(R.layout.activity_fused_gyroscope);
 
+		fusionConfig = createFusionConfig();
+
 		initUI();
 		initMaths();
 		initSensors();
 		initFilters();
 	};
 
+	@Override
+	protected void onDestroy()
+	{
+		super.onDestroy();
+
+		// Quit once the sensors have been reset.
+		sensorHandler.post(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				sensorThread.quit();
+			}
+		});
+	}
+
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu)
 	{
@@ -149,6 +341,20 @@ public class FusedGyroscopeActivity extends Activity implements
 		return true;
 	}
 
+	@Override
+	public boolean onPrepareOptionsMenu(Menu menu)
+	{
+		// Recording stops when the activity is paused.
+		menu.findItem(R.id.action_record_sensors).setChecked(recording);
+
+		menu.findItem(R.id.action_vendor_fusion)
+				.setChecked(orientationSource == rotationVectorSensor)
+				.setEnabled(rotationVectorSensor.isAvailable());
+		menu.findItem(R.id.action_compare_fusion).setEnabled(
+				rotationVectorSensor.isAvailable());
+		return true;
+	}
+
 	/**
 	 * Event Handling for Individual menu item selected Identify single menu
 	 * item by it's id
@@ -161,8 +367,94 @@ public class FusedGyroscopeActivity extends Activity implements
 
 		// Reset everything
 		case R.id.action_reset:
-			reset();
-			restart();
+			sensorHandler.post(resetSensors);
+			sensorHandler.post(restartSensors);
+			return true;
+
+		// Switch between the matrix and quaternion fusions
+		case R.id.action_quaternion_fusion:
+			item.setChecked(!item.isChecked());
+			final int fusionMode = item.isChecked() ? FusedGyroscopeSensor.FUSION_MODE_QUATERNION
+					: FusedGyroscopeSensor.FUSION_MODE_MATRIX;
+			sensorHandler.post(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					fusedGyroscopeSensor.setFusionMode(fusionMode);
+				}
+			});
+			return true;
+
+		// Switch between the vendor fusion and the complementary filter
+		case R.id.action_vendor_fusion:
+			sensorHandler.post(resetSensors);
+			item.setChecked(!item.isChecked());
+			orientationSource = item.isChecked() ? rotationVectorSensor
+					: fusedGyroscopeSensor;
+			sensorHandler.post(restartSensors);
+			return true;
+
+		// Start or stop comparing the vendor fusion with the complementary
+		// filter
+		case R.id.action_compare_fusion:
+			sensorHandler.post(resetSensors);
+			comparing = !item.isChecked();
+			item.setChecked(comparing);
+			sensorHandler.post(restartSensors);
+			return true;
+
+		// Switch between per measurement and batched sensor delivery
+		case R.id.action_batch_sensors:
+			sensorHandler.post(resetSensors);
+			batchMode = !item.isChecked();
+			item.setChecked(batchMode);
+			sensorHandler.post(restartSensors);
+			return true;
+
+		// Start or stop recording the sensors
+		case R.id.action_record_sensors:
+			recording = !item.isChecked();
+			item.setChecked(recording);
+
+			if (recording)
+			{
+				startRecording();
+			}
+			else
+			{
+				stopRecording();
+			}
+			return true;
+
+		// Estimate how the device is mounted in the vehicle
+		case R.id.action_calibrate_mount:
+			startMountCalibration();
+			return true;
+
+		// Go back to the axes of the device
+		case R.id.action_clear_mount:
+			MountCalibration.clear(this);
+			setMountCalibration(null);
+			Toast.makeText(this, R.string.mount_calibration_cleared,
+					Toast.LENGTH_SHORT).show();
+			return true;
+
+		// Benchmark the rendering of the gauges
+		case R.id.action_render_stats:
+			item.setChecked(!item.isChecked());
+			setRenderStatsEnabled(item.isChecked());
+			return true;
+
+		// Show how regularly the sensors deliver their measurements
+		case R.id.action_sensor_metrics:
+			sensorHandler.post(resetSensors);
+			showingMetrics = !item.isChecked();
+			item.setChecked(showingMetrics);
+			sensorMetrics.setText(null);
+			sensorMetrics.setVisibility(showingMetrics ? View.VISIBLE
+					: View.GONE);
+			sensorHandler.post(restartSensors);
 			return true;
 
 		default:
@@ -170,28 +462,350 @@ public class FusedGyroscopeActivity extends Activity implements
 		}
 	}
 
+	/**
+	 * Start or stop benchmarking the rendering of the gauges. The results are
+	 * written to the log.
+	 * 
+	 * @param enabled
+	 *            true to benchmark the gauges.
+	 */
+	private void setRenderStatsEnabled(boolean enabled)
+	{
+		if (enabled)
+		{
+			RenderStats.startAllocCounting();
+
+			gaugeBearingAndroid.setRenderStats(new RenderStats(
+					"Bearing Android"));
+			gaugeBearingFused.setRenderStats(new RenderStats("Bearing Fused"));
+			gaugeTiltAndroid.setRenderStats(new RenderStats("Tilt Android"));
+			gaugeTiltFused.setRenderStats(new RenderStats("Tilt Fused"));
+		}
+		else
+		{
+			gaugeBearingAndroid.setRenderStats(null);
+			gaugeBearingFused.setRenderStats(null);
+			gaugeTiltAndroid.setRenderStats(null);
+			gaugeTiltFused.setRenderStats(null);
+
+			RenderStats.stopAllocCounting();
+		}
+	}
+
+	/**
+	 * Start capturing the sensors to calibrate the mounting of the device.
+	 * The user is asked to keep the vehicle still and then drive off in a
+	 * straight line, and to tap done when finished.
+	 */
+	private void startMountCalibration()
+	{
+		sensorHandler.post(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if (!mountCalibration.start())
+				{
+					showToast(R.string.mount_calibration_unavailable);
+				}
+			}
+		});
+
+		new AlertDialog.Builder(this)
+				.setTitle(R.string.mount_calibration_title)
+				.setMessage(R.string.mount_calibration_message)
+				.setCancelable(false)
+				.setPositiveButton(R.string.mount_calibration_done,
+						new DialogInterface.OnClickListener()
+						{
+							public void onClick(DialogInterface dialog, int id)
+							{
+								finishMountCalibration(true);
+							}
+						})
+				.setNegativeButton(android.R.string.cancel,
+						new DialogInterface.OnClickListener()
+						{
+							public void onClick(DialogInterface dialog, int id)
+							{
+								finishMountCalibration(false);
+							}
+						}).show();
+	}
+
+	/**
+	 * Stop capturing the sensors and, if the capture is kept and good enough,
+	 * store and apply the calibration.
+	 * 
+	 * @param keep
+	 *            false to discard the capture.
+	 */
+	private void finishMountCalibration(final boolean keep)
+	{
+		sensorHandler.post(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				AxisRemap axisRemap = mountCalibration.stop();
+
+				if (!keep)
+				{
+					return;
+				}
+
+				if (axisRemap == null)
+				{
+					showToast(R.string.mount_calibration_failed);
+					return;
+				}
+
+				MountCalibration.save(FusedGyroscopeActivity.this, axisRemap);
+				setMountCalibration(axisRemap);
+
+				showToast(R.string.mount_calibration_saved);
+			}
+		});
+	}
+
+	/**
+	 * Rotate the gyroscope, gravity and magnetic measurements into the axes
+	 * of the vehicle and start the fusion over in them.
+	 * 
+	 * @param axisRemap
+	 *            the remap from the device axes to the vehicle axes, null for
+	 *            the device axes.
+	 */
+	private void setMountCalibration(AxisRemap axisRemap)
+	{
+		gyroscopeSensor.setAxisRemap(axisRemap);
+		gravitySensor.setAxisRemap(axisRemap);
+		magneticSensor.setAxisRemap(axisRemap);
+		rotationVectorSensor.setAxisRemap(axisRemap);
+
+		sensorHandler.post(resetSensors);
+		sensorHandler.post(restartSensors);
+	}
+
+	private void showToast(final int resId)
+	{
+		runOnUiThread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				Toast.makeText(FusedGyroscopeActivity.this, resId,
+						Toast.LENGTH_SHORT).show();
+			}
+		});
+	}
+
+	/**
+	 * Write how far apart the vendor fusion and the complementary filter are,
+	 * and what each of them costs per orientation, to the log. Only call this
+	 * on the sensor thread.
+	 */
+	private void logComparison()
+	{
+		Log.i(tag, String.format(Locale.US,
+				"Vendor vs complementary filter: %d samples, difference "
+						+ "rms %.2f max %.2f degrees, %d vs %d ns/sample",
+				orientationComparison.getSampleCount(),
+				Math.toDegrees(orientationComparison.getRmsDifference()),
+				Math.toDegrees(orientationComparison.getMaxDifference()),
+				orientationComparison.getCandidateNanosPerSample(),
+				orientationComparison.getReferenceNanosPerSample()));
+	}
+
+	/**
+	 * Describe how regularly each sensor has delivered its measurements since
+	 * the sensors were restarted. Only call this on the sensor thread.
+	 */
+	private String formatSensorMetrics()
+	{
+		StringBuilder text = new StringBuilder();
+
+		appendSensorMetrics(text, R.string.sensor_metrics_gyroscope,
+				gyroscopeSensor.getMetrics());
+		appendSensorMetrics(text, R.string.sensor_metrics_gravity,
+				gravitySensor.getMetrics());
+		appendSensorMetrics(text, R.string.sensor_metrics_magnetic,
+				magneticSensor.getMetrics());
+		appendSensorMetrics(text, R.string.sensor_metrics_rotation_vector,
+				rotationVectorSensor.getMetrics());
+
+		return text.toString();
+	}
+
+	/**
+	 * Append a line of metrics for a sensor that has delivered measurements.
+	 */
+	private void appendSensorMetrics(StringBuilder text, int name,
+			SensorMetrics metrics)
+	{
+		if (metrics.getCount() == 0)
+		{
+			return;
+		}
+
+		if (text.length() > 0)
+		{
+			text.append('\n');
+		}
+
+		text.append(getString(R.string.sensor_metrics, getString(name),
+				metrics.getRate(), metrics.getIntervalPercentile(50) / 1e6,
+				metrics.getIntervalPercentile(99) / 1e6,
+				metrics.getMaxInterval() / 1e6, metrics.getGapCount(),
+				metrics.getOutOfOrderCount(),
+				metrics.getLatencyPercentile(50) / 1e6,
+				metrics.getLatencyPercentile(99) / 1e6));
+	}
+
+	/**
+	 * Start recording the sensors into a new session in the external files
+	 * directory of the application.
+	 */
+	private void startRecording()
+	{
+		SensorManager sensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
+
+		final File directory = new File(new File(getExternalFilesDir(null),
+				"recordings"), new SimpleDateFormat("yyyyMMdd-HHmmss",
+				Locale.US).format(new Date()));
+
+		final float gyroscopeRate = getRate(sensorManager
+				.getDefaultSensor(Sensor.TYPE_GYROSCOPE));
+		final float gravityRate = getRate(sensorManager
+				.getDefaultSensor(Sensor.TYPE_GRAVITY));
+		final float magneticRate = getRate(sensorManager
+				.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD));
+
+		sensorHandler.post(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					sensorRecorder = new SensorRecorder(directory,
+							gyroscopeRate, gravityRate, magneticRate);
+
+					registerRecorder();
+
+					Log.i(tag, "Recording to " + directory);
+				}
+				catch (IOException e)
+				{
+					Log.e(tag, "Can't record to " + directory, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop recording the sensors and close the session.
+	 */
+	private void stopRecording()
+	{
+		sensorHandler.post(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if (sensorRecorder == null)
+				{
+					return;
+				}
+
+				removeRecorder();
+
+				if (sensorRecorder.getError() != null)
+				{
+					Log.e(tag, "Recording failed", sensorRecorder.getError());
+				}
+
+				try
+				{
+					sensorRecorder.close();
+				}
+				catch (IOException e)
+				{
+					Log.e(tag, "Can't close the recording", e);
+				}
+
+				sensorRecorder = null;
+			}
+		});
+	}
+
+	/**
+	 * Get the fastest rate of a sensor.
+	 * 
+	 * @param sensor
+	 *            the sensor, may be null.
+	 * @return the rate in Hz, 0 if unknown.
+	 */
+	private float getRate(Sensor sensor)
+	{
+		if (sensor == null || sensor.getMinDelay() <= 0)
+		{
+			return 0;
+		}
+
+		return 1000000f / sensor.getMinDelay();
+	}
+
 	public void onStart()
 	{
 		super.onStart();
 
-		restart();
+		sensorHandler.post(restartSensors);
+	}
+
+	public void onResume()
+	{
+		super.onResume();
+
+		// Stopped again in onPause().
+		renderLoop.start();
 	}
 
 	public void onPause()
 	{
 		super.onPause();
 
-		reset();
+		renderLoop.stop();
+
+		if (recording)
+		{
+			recording = false;
+			stopRecording();
+		}
+
+		// Don't leave the calibration listening in the background.
+		sensorHandler.post(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				mountCalibration.stop();
+			}
+		});
+
+		sensorHandler.post(resetSensors);
 	}
 
 	@Override
 	public void onGravitySensorChanged(float[] gravity, long timeStamp)
 	{
-		// Get a local copy of the raw magnetic values from the device sensor.
-		System.arraycopy(gravity, 0, this.gravity, 0, gravity.length);
+		if (fusionConfig.isGyroscopeBiasEstimation())
+		{
+			gyroscopeBiasEstimator.updateGravity(gravity);
+		}
 
-		// Use a mean filter to smooth the sensor inputs
-		this.gravity = gravityFilter.filterFloat(this.gravity);
+		// Use a mean filter to smooth the sensor inputs into a local copy
+		gravityFilter.filterFloat(gravity, this.gravity);
 
 		// Count the number of samples received.
 		accelerationSampleCount++;
@@ -200,8 +814,8 @@ public class FusedGyroscopeActivity extends Activity implements
 		// and magnetic sensor have had enough time to be smoothed by the mean
 		// filters. Also, only do this if the orientation hasn't already been
 		// determined since we only need it once.
-		if (accelerationSampleCount > MIN_SAMPLE_COUNT
-				&& magneticSampleCount > MIN_SAMPLE_COUNT
+		if (accelerationSampleCount > fusionConfig.getMinSampleCount()
+				&& magneticSampleCount > fusionConfig.getMinSampleCount()
 				&& !hasInitialOrientation)
 		{
 			calculateOrientation();
@@ -211,6 +825,10 @@ public class FusedGyroscopeActivity extends Activity implements
 	@Override
 	public void onGyroscopeSensorChanged(float[] gyroscope, long timestamp)
 	{
+		System.arraycopy(gyroscope, 0, gyroscopeSample, 0, 3);
+
+		removeGyroscopeBias(gyroscopeSample);
+
 		// don't start until first accelerometer/magnetometer orientation has
 		// been acquired
 		if (!hasInitialOrientation)
@@ -219,92 +837,160 @@ public class FusedGyroscopeActivity extends Activity implements
 		}
 
 		// Initialization of the gyroscope based rotation matrix
-		if (!stateInitializedAndroid)
+		if (!gyroscopeIntegrator.isInitialized())
 		{
-			currentRotationMatrixAndroid = matrixMultiplication(
-					currentRotationMatrixAndroid, initialRotationMatrix);
-
-			stateInitializedAndroid = true;
+			gyroscopeIntegrator.setInitialRotationMatrix(initialRotationMatrix);
 		}
 
-		// This timestep's delta rotation to be multiplied by the current
-		// rotation after computing it from the gyro sample data.
-		if (timestampOldCalibrated != 0 && stateInitializedAndroid)
-		{
-			final float dT = (timestamp - timestampOldCalibrated) * NS2S;
-
-			// Axis of the rotation sample, not normalized yet.
-			float axisX = gyroscope[0];
-			float axisY = gyroscope[1];
-			float axisZ = gyroscope[2];
+		gyroscopeIntegrator.updateGyroscope(gyroscopeSample, timestamp);
 
-			// Calculate the angular speed of the sample
-			float omegaMagnitude = (float) Math.sqrt(axisX * axisX + axisY
-					* axisY + axisZ * axisZ);
+		updateGyroscopeOrientation(timestamp);
+	}
 
-			// Normalize the rotation vector if it's big enough to get the axis
-			if (omegaMagnitude > EPSILON)
+	@Override
+	public void onGyroscopeSensorBatch(float[] gyroscope, long[] timeStamps,
+			int count)
+	{
+		// don't start until first accelerometer/magnetometer orientation has
+		// been acquired
+		if (!hasInitialOrientation)
+		{
+			// Keep learning the bias in the meantime.
+			for (int i = 0; i < count; i++)
 			{
-				axisX /= omegaMagnitude;
-				axisY /= omegaMagnitude;
-				axisZ /= omegaMagnitude;
-			}
+				System.arraycopy(gyroscope, i * 3, gyroscopeSample, 0, 3);
 
-			// Integrate around this axis with the angular speed by the timestep
-			// in order to get a delta rotation from this sample over the
-			// timestep. We will convert this axis-angle representation of the
-			// delta rotation into a quaternion before turning it into the
-			// rotation matrix.
-			float thetaOverTwo = omegaMagnitude * dT / 2.0f;
+				removeGyroscopeBias(gyroscopeSample);
+			}
 
-			float sinThetaOverTwo = (float) Math.sin(thetaOverTwo);
-			float cosThetaOverTwo = (float) Math.cos(thetaOverTwo);
+			return;
+		}
 
-			deltaRotationVectorAndroid[0] = sinThetaOverTwo * axisX;
-			deltaRotationVectorAndroid[1] = sinThetaOverTwo * axisY;
-			deltaRotationVectorAndroid[2] = sinThetaOverTwo * axisZ;
-			deltaRotationVectorAndroid[3] = cosThetaOverTwo;
+		// Initialization of the gyroscope based rotation matrix
+		if (!gyroscopeIntegrator.isInitialized())
+		{
+			gyroscopeIntegrator.setInitialRotationMatrix(initialRotationMatrix);
+		}
 
-			SensorManager.getRotationMatrixFromVector(
-					deltaRotationMatrixAndroid, deltaRotationVectorAndroid);
+		for (int i = 0; i < count; i++)
+		{
+			System.arraycopy(gyroscope, i * 3, gyroscopeSample, 0, 3);
 
-			currentRotationMatrixAndroid = matrixMultiplication(
-					currentRotationMatrixAndroid, deltaRotationMatrixAndroid);
+			removeGyroscopeBias(gyroscopeSample);
 
-			SensorManager.getOrientation(currentRotationMatrixAndroid,
-					gyroscopeOrientationAndroid);
+			gyroscopeIntegrator.updateGyroscope(gyroscopeSample, timeStamps[i]);
 		}
 
-		timestampOldCalibrated = timestamp;
+		// Only the last orientation of the batch is worth drawing.
+		updateGyroscopeOrientation(timeStamps[count - 1]);
+	}
+
+	/**
+	 * Learn the gyroscope bias from a measurement and remove it, if the
+	 * tuning asks for it.
+	 * 
+	 * @param gyroscope
+	 *            the angular speeds (x, y, z), corrected in place.
+	 */
+	private void removeGyroscopeBias(float[] gyroscope)
+	{
+		if (fusionConfig.isGyroscopeBiasEstimation())
+		{
+			gyroscopeBiasEstimator.updateGyroscope(gyroscope);
+			gyroscopeBiasEstimator.removeBias(gyroscope, gyroscope);
+		}
+	}
 
-		gaugeBearingAndroid.updateBearing(gyroscopeOrientationAndroid[0]);
-		gaugeTiltAndroid.updateRotation(gyroscopeOrientationAndroid);
+	/**
+	 * Hand the orientation integrated from the gyroscope alone to the UI.
+	 */
+	private void updateGyroscopeOrientation(long timeStamp)
+	{
+		gyroscopeIntegrator.getOrientation(gyroscopeOrientationAndroid);
 
-		xAxisAndroid.setText(df.format(gyroscopeOrientationAndroid[0]));
-		yAxisAndroid.setText(df.format(gyroscopeOrientationAndroid[1]));
-		zAxisAndroid.setText(df.format(gyroscopeOrientationAndroid[2]));
+		handoffAndroid.publish(gyroscopeOrientationAndroid, timeStamp);
 	}
 
 	@Override
 	public void onAngularVelocitySensorChanged(float[] angularVelocity,
 			long timeStamp)
 	{
-		gaugeBearingFused.updateBearing(angularVelocity[0]);
-		gaugeTiltFused.updateRotation(angularVelocity);
+		handoffFused.publish(angularVelocity, timeStamp);
+	}
+
+	/**
+	 * Show the latest orientations, if there are new ones that differ enough
+	 * from what is already drawn. Called on the UI thread once per frame.
+	 */
+	private void updateUI()
+	{
+		if (handoffAndroid.consume(displayOrientationAndroid)
+				&& isRedrawNeeded(displayOrientationAndroid,
+						drawnOrientationAndroid))
+		{
+			gaugeBearingAndroid.updateBearing(displayOrientationAndroid[0]);
+			gaugeTiltAndroid.updateRotation(displayOrientationAndroid);
+
+			xAxisAndroid.setText(df.format(displayOrientationAndroid[0]));
+			yAxisAndroid.setText(df.format(displayOrientationAndroid[1]));
+			zAxisAndroid.setText(df.format(displayOrientationAndroid[2]));
+		}
+
+		if (handoffFused.consume(displayOrientationFused)
+				&& isRedrawNeeded(displayOrientationFused,
+						drawnOrientationFused))
+		{
+			gaugeBearingFused.updateBearing(displayOrientationFused[0]);
+			gaugeTiltFused.updateRotation(displayOrientationFused);
+
+			xAxisFused.setText(df.format(displayOrientationFused[0]));
+			yAxisFused.setText(df.format(displayOrientationFused[1]));
+			zAxisFused.setText(df.format(displayOrientationFused[2]));
+		}
+
+		if (++statsFrameCount >= STATS_INTERVAL_FRAMES)
+		{
+			statsFrameCount = 0;
+
+			renderStats.setText(getString(R.string.render_stats,
+					handoffFused.getCoalescedCount()
+							+ handoffAndroid.getCoalescedCount(),
+					droppedCount));
+		}
+	}
+
+	/**
+	 * Determine if an orientation has changed enough since it was last drawn
+	 * to be drawn again, remembering it as drawn if it has.
+	 * 
+	 * @param orientation
+	 *            the new orientation.
+	 * @param drawn
+	 *            the orientation that was last drawn.
+	 * @return true if the orientation should be drawn.
+	 */
+	private boolean isRedrawNeeded(float[] orientation, float[] drawn)
+	{
+		for (int i = 0; i < 3; i++)
+		{
+			if (Math.abs(orientation[i] - drawn[i]) >= DISPLAY_EPSILON)
+			{
+				System.arraycopy(orientation, 0, drawn, 0, 3);
+
+				return true;
+			}
+		}
+
+		droppedCount++;
 
-		xAxisFused.setText(df.format(angularVelocity[0]));
-		yAxisFused.setText(df.format(angularVelocity[1]));
-		zAxisFused.setText(df.format(angularVelocity[2]));
+		return false;
 	}
 
 	@Override
 	public void onMagneticSensorChanged(float[] magnetic, long timeStamp)
 	{
-		// Get a local copy of the raw magnetic values from the device sensor.
-		System.arraycopy(magnetic, 0, this.magnetic, 0, magnetic.length);
-
-		// Use a mean filter to smooth the sensor inputs
-		this.magnetic = magneticFilter.filterFloat(this.magnetic);
+		// Use a mean filter to smooth the sensor inputs into a local copy
+		magneticFilter.filterFloat(magnetic, this.magnetic);
 
 		// Count the number of samples received.
 		magneticSampleCount++;
@@ -319,8 +1005,8 @@ public class FusedGyroscopeActivity extends Activity implements
 	 */
 	private void calculateOrientation()
 	{
-		hasInitialOrientation = SensorManager.getRotationMatrix(
-				initialRotationMatrix, null, gravity, magnetic);
+		hasInitialOrientation = RotationMath.getRotationMatrix(
+				initialRotationMatrix, gravity, magnetic);
 
 		// Remove the sensor observers since they are no longer required.
 		if (hasInitialOrientation)
@@ -330,16 +1016,49 @@ public class FusedGyroscopeActivity extends Activity implements
 		}
 	}
 
+	/**
+	 * Pick the tuning of the fusion for the device. Every device has the
+	 * gyroscope bias removed and the drift corrected incrementally. Low
+	 * memory devices tend to have the slowest CPUs, so they get smaller mean
+	 * filter windows and only every other fused orientation is published to
+	 * the UI.
+	 * 
+	 * @return the configuration of the fusion.
+	 */
+	private FusionConfig createFusionConfig()
+	{
+		FusionConfig.Builder builder = new FusionConfig.Builder(
+				FusionConfig.DEFAULT).setGyroscopeBiasEstimation(true)
+				.setCorrectionMode(FusionConfig.CORRECTION_MODE_INCREMENTAL)
+				.setAttitudeRate(ATTITUDE_RATE)
+				.setSynchronizationDelay(SYNCHRONIZATION_DELAY);
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+				&& isLowRamDevice())
+		{
+			builder.setMeanFilterWindow(5).setOutputDecimation(2);
+		}
+
+		return builder.build();
+	}
+
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private boolean isLowRamDevice()
+	{
+		return ((ActivityManager) getSystemService(Context.ACTIVITY_SERVICE))
+				.isLowRamDevice();
+	}
+
 	/**
 	 * Initialize the mean filters.
 	 */
 	private void initFilters()
 	{
 		gravityFilter = new MeanFilter();
-		gravityFilter.setWindowSize(MEAN_FILTER_WINDOW);
+		gravityFilter.setWindowSize(fusionConfig.getMeanFilterWindow());
 
 		magneticFilter = new MeanFilter();
-		magneticFilter.setWindowSize(MEAN_FILTER_WINDOW);
+		magneticFilter.setWindowSize(fusionConfig.getMeanFilterWindow());
 	}
 
 	/**
@@ -350,17 +1069,29 @@ public class FusedGyroscopeActivity extends Activity implements
 		gravity = new float[3];
 		magnetic = new float[3];
 
+		gyroscopeSample = new float[3];
+
 		initialRotationMatrix = new float[9];
 
-		deltaRotationVectorAndroid = new float[4];
-		deltaRotationMatrixAndroid = new float[9];
-		currentRotationMatrixAndroid = new float[9];
 		gyroscopeOrientationAndroid = new float[3];
 
-		// Initialize the current rotation matrix as an identity matrix...
-		currentRotationMatrixAndroid[0] = 1.0f;
-		currentRotationMatrixAndroid[4] = 1.0f;
-		currentRotationMatrixAndroid[8] = 1.0f;
+		if (gyroscopeIntegrator == null)
+		{
+			gyroscopeIntegrator = new GyroscopeIntegrator();
+		}
+		else
+		{
+			gyroscopeIntegrator.reset();
+		}
+
+		if (gyroscopeBiasEstimator == null)
+		{
+			gyroscopeBiasEstimator = new GyroscopeBiasEstimator();
+		}
+		else
+		{
+			gyroscopeBiasEstimator.reset();
+		}
 	}
 
 	/**
@@ -368,10 +1099,38 @@ public class FusedGyroscopeActivity extends Activity implements
 	 */
 	private void initSensors()
 	{
-		fusedGyroscopeSensor = new FusedGyroscopeSensor();
-		gravitySensor = new GravitySensor(this);
-		magneticSensor = new MagneticSensor(this);
-		gyroscopeSensor = new GyroscopeSensor(this);
+		sensorThread = new HandlerThread("SensorThread",
+				Process.THREAD_PRIORITY_DISPLAY);
+		sensorThread.start();
+
+		sensorHandler = new Handler(sensorThread.getLooper());
+
+		handoffAndroid = new OrientationHandoff(3);
+		handoffFused = new OrientationHandoff(3);
+
+		fusedGyroscopeSensor = new FusedGyroscopeSensor(fusionConfig);
+		gravitySensor = new GravitySensor(this, sensorHandler);
+		magneticSensor = new MagneticSensor(this, sensorHandler);
+		gyroscopeSensor = new GyroscopeSensor(this, sensorHandler);
+
+		// One calibration shared by every sensor.
+		AxisRemap axisRemap = MountCalibration.load(this);
+
+		gyroscopeSensor.setAxisRemap(axisRemap);
+		gravitySensor.setAxisRemap(axisRemap);
+		magneticSensor.setAxisRemap(axisRemap);
+
+		// Prefer the vendor fusion, it is all but free for the application.
+		rotationVectorSensor = new RotationVectorSensor(this, sensorHandler);
+		rotationVectorSensor.setAxisRemap(axisRemap);
+
+		orientationSource = rotationVectorSensor.isAvailable() ? rotationVectorSensor
+				: fusedGyroscopeSensor;
+
+		orientationComparison = new OrientationComparison(fusedGyroscopeSensor,
+				rotationVectorSensor);
+
+		mountCalibration = new MountCalibration(this, sensorHandler);
 	}
 
 	/**
@@ -382,6 +1141,27 @@ public class FusedGyroscopeActivity extends Activity implements
 		// Get a decimal formatter for the text views
 		df = new DecimalFormat("#.##");
 
+		renderLoop = new RenderLoop(new RenderLoop.Renderer()
+		{
+			@Override
+			public void onFrame(long frameTimeNanos)
+			{
+				updateUI();
+			}
+		});
+
+		displayOrientationAndroid = new float[3];
+		displayOrientationFused = new float[3];
+
+		// Make sure the first orientations are drawn.
+		drawnOrientationAndroid = new float[]
+		{ Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+		drawnOrientationFused = new float[]
+		{ Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+
+		renderStats = (TextView) this.findViewById(R.id.value_render_stats);
+		sensorMetrics = (TextView) this.findViewById(R.id.value_sensor_metrics);
+
 		// Initialize the raw (uncalibrated) text views
 		xAxisAndroid = (TextView) this.findViewById(R.id.value_x_axis_raw);
 		yAxisAndroid = (TextView) this.findViewById(R.id.value_y_axis_raw);
@@ -402,54 +1182,121 @@ public class FusedGyroscopeActivity extends Activity implements
 	}
 
 	/**
-	 * Multiply matrix a by b. Android gives us matrices results in
-	 * one-dimensional arrays instead of two, so instead of using some (O)2 to
-	 * transfer to a two-dimensional array and then an (O)3 algorithm to
-	 * multiply, we just use a static linear time method.
-	 * 
-	 * @param a
-	 * @param b
-	 * @return a*b
+	 * Restarts all of the sensor observers and resets the activity to the
+	 * initial state. This should only be called *after* a call to reset(), and
+	 * only on the sensor thread.
 	 */
-	private float[] matrixMultiplication(float[] a, float[] b)
+	private void restart()
 	{
-		float[] result = new float[9];
+		gravitySensor.registerGravityObserver(this);
+		magneticSensor.registerMagneticObserver(this);
+
+		// Only run the complementary filter if somebody is looking at it.
+		boolean complementaryFilter = orientationSource == fusedGyroscopeSensor
+				|| comparing;
+
+		if (batchMode)
+		{
+			gyroscopeSensor.registerGyroscopeBatchObserver(this,
+					BATCH_LATENCY_US);
+
+			if (complementaryFilter)
+			{
+				gravitySensor.registerGravityBatchObserver(
+						fusedGyroscopeSensor, BATCH_LATENCY_US);
+				magneticSensor.registerMagneticBatchObserver(
+						fusedGyroscopeSensor, BATCH_LATENCY_US);
+				gyroscopeSensor.registerGyroscopeBatchObserver(
+						fusedGyroscopeSensor, BATCH_LATENCY_US);
+			}
+		}
+		else
+		{
+			gyroscopeSensor.registerGyroscopeObserver(this);
+
+			if (complementaryFilter)
+			{
+				gravitySensor.registerGravityObserver(fusedGyroscopeSensor);
+				magneticSensor.registerMagneticObserver(fusedGyroscopeSensor);
+				gyroscopeSensor
+						.registerGyroscopeObserver(fusedGyroscopeSensor);
+			}
+		}
 
-		result[0] = a[0] * b[0] + a[1] * b[3] + a[2] * b[6];
-		result[1] = a[0] * b[1] + a[1] * b[4] + a[2] * b[7];
-		result[2] = a[0] * b[2] + a[1] * b[5] + a[2] * b[8];
+		if (orientationSource == fusedGyroscopeSensor)
+		{
+			fusedGyroscopeSensor.registerObserver(this, DISPLAY_RATE);
+		}
+		else
+		{
+			orientationSource.registerObserver(this);
+		}
 
-		result[3] = a[3] * b[0] + a[4] * b[3] + a[5] * b[6];
-		result[4] = a[3] * b[1] + a[4] * b[4] + a[5] * b[7];
-		result[5] = a[3] * b[2] + a[4] * b[5] + a[5] * b[8];
+		if (comparing)
+		{
+			orientationComparison.start();
+
+			sensorHandler.postDelayed(logComparison, COMPARISON_INTERVAL_MS);
+		}
+
+		if (showingMetrics)
+		{
+			gyroscopeSensor.getMetrics().reset();
+			gravitySensor.getMetrics().reset();
+			magneticSensor.getMetrics().reset();
+			rotationVectorSensor.getMetrics().reset();
 
-		result[6] = a[6] * b[0] + a[7] * b[3] + a[8] * b[6];
-		result[7] = a[6] * b[1] + a[7] * b[4] + a[8] * b[7];
-		result[8] = a[6] * b[2] + a[7] * b[5] + a[8] * b[8];
+			sensorHandler.postDelayed(updateSensorMetrics,
+					METRICS_INTERVAL_MS);
+		}
 
-		return result;
+		if (sensorRecorder != null)
+		{
+			registerRecorder();
+		}
 	}
 
 	/**
-	 * Restarts all of the sensor observers and resets the activity to the
-	 * initial state. This should only be called *after* a call to reset().
+	 * Register the recorder with the sensors. Only call this on the sensor
+	 * thread.
 	 */
-	private void restart()
+	private void registerRecorder()
 	{
-		gravitySensor.registerGravityObserver(this);
-		magneticSensor.registerMagneticObserver(this);
-		gyroscopeSensor.registerGyroscopeObserver(this);
+		if (batchMode)
+		{
+			gyroscopeSensor.registerGyroscopeBatchObserver(sensorRecorder,
+					BATCH_LATENCY_US);
+			gravitySensor.registerGravityBatchObserver(sensorRecorder,
+					BATCH_LATENCY_US);
+			magneticSensor.registerMagneticBatchObserver(sensorRecorder,
+					BATCH_LATENCY_US);
+		}
+		else
+		{
+			gyroscopeSensor.registerGyroscopeObserver(sensorRecorder);
+			gravitySensor.registerGravityObserver(sensorRecorder);
+			magneticSensor.registerMagneticObserver(sensorRecorder);
+		}
+	}
 
-		gravitySensor.registerGravityObserver(fusedGyroscopeSensor);
-		magneticSensor.registerMagneticObserver(fusedGyroscopeSensor);
-		gyroscopeSensor.registerGyroscopeObserver(fusedGyroscopeSensor);
+	/**
+	 * Remove the recorder from the sensors. Only call this on the sensor
+	 * thread.
+	 */
+	private void removeRecorder()
+	{
+		gyroscopeSensor.removeGyroscopeObserver(sensorRecorder);
+		gravitySensor.removeGravityObserver(sensorRecorder);
+		magneticSensor.removeMagneticObserver(sensorRecorder);
 
-		fusedGyroscopeSensor.registerObserver(this);
+		gyroscopeSensor.removeGyroscopeBatchObserver(sensorRecorder);
+		gravitySensor.removeGravityBatchObserver(sensorRecorder);
+		magneticSensor.removeMagneticBatchObserver(sensorRecorder);
 	}
 
 	/**
 	 * Removes all of the sensor observers and resets the activity to the
-	 * initial state.
+	 * initial state. This should only be called on the sensor thread.
 	 */
 	private void reset()
 	{
@@ -461,7 +1308,26 @@ public class FusedGyroscopeActivity extends Activity implements
 		magneticSensor.removeMagneticObserver(fusedGyroscopeSensor);
 		gyroscopeSensor.removeGyroscopeObserver(fusedGyroscopeSensor);
 
+		gyroscopeSensor.removeGyroscopeBatchObserver(this);
+
+		gravitySensor.removeGravityBatchObserver(fusedGyroscopeSensor);
+		magneticSensor.removeMagneticBatchObserver(fusedGyroscopeSensor);
+		gyroscopeSensor.removeGyroscopeBatchObserver(fusedGyroscopeSensor);
+
 		fusedGyroscopeSensor.removeObserver(this);
+		fusedGyroscopeSensor.reset();
+
+		rotationVectorSensor.removeObserver(this);
+		rotationVectorSensor.reset();
+
+		orientationComparison.stop();
+		sensorHandler.removeCallbacks(logComparison);
+		sensorHandler.removeCallbacks(updateSensorMetrics);
+
+		if (sensorRecorder != null)
+		{
+			removeRecorder();
+		}
 
 		initMaths();
 
@@ -469,6 +1335,5 @@ public class FusedGyroscopeActivity extends Activity implements
 		magneticSampleCount = 0;
 
 		hasInitialOrientation = false;
-		stateInitializedAndroid = false;
 	}
 }
@@ -0,0 +1,168 @@
+package com.kircherelectronics.fusedgyroscopeexplorer;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.view.Choreographer;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Calls a Renderer once per display frame on the UI thread. On Jelly Bean and
+ * later the frames are driven by the Choreographer so the Renderer runs right
+ * after vsync, older devices fall back to a Handler that posts itself about
+ * every 16ms.
+ * 
+ * @author Kaleb
+ * @version %I%, %G%
+ */
+public class RenderLoop
+{
+	/**
+	 * Draws a frame.
+	 */
+	public interface Renderer
+	{
+		/**
+		 * Draw a frame.
+		 * 
+		 * @param frameTimeNanos
+		 *            the time the frame started in nanoseconds.
+		 */
+		public void onFrame(long frameTimeNanos);
+	}
+
+	// The interval used when there is no Choreographer.
+	private static final int FRAME_INTERVAL_MS = 16;
+
+	private Renderer renderer;
+
+	private boolean running = false;
+
+	// A Choreographer.FrameCallback, kept as an Object so the class still
+	// loads on devices that don't have the Choreographer.
+	private Object frameCallback;
+
+	private Handler handler;
+	private Runnable frameRunnable;
+
+	/**
+	 * Initialize a new render loop. Must be called on the UI thread.
+	 * 
+	 * @param renderer
+	 *            the Renderer to call once per frame.
+	 */
+	public RenderLoop(Renderer renderer)
+	{
+		this.renderer = renderer;
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+		{
+			frameCallback = createFrameCallback();
+		}
+		else
+		{
+			handler = new Handler();
+			frameRunnable = new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					if (running)
+					{
+						RenderLoop.this.renderer.onFrame(System.nanoTime());
+
+						handler.postDelayed(this, FRAME_INTERVAL_MS);
+					}
+				}
+			};
+		}
+	}
+
+	/**
+	 * Start calling the Renderer.
+	 */
+	public void start()
+	{
+		if (running)
+		{
+			return;
+		}
+
+		running = true;
+
+		if (frameCallback != null)
+		{
+			postFrameCallback();
+		}
+		else
+		{
+			handler.post(frameRunnable);
+		}
+	}
+
+	/**
+	 * Stop calling the Renderer.
+	 */
+	public void stop()
+	{
+		running = false;
+
+		if (frameCallback != null)
+		{
+			removeFrameCallback();
+		}
+		else
+		{
+			handler.removeCallbacks(frameRunnable);
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private Object createFrameCallback()
+	{
+		return new Choreographer.FrameCallback()
+		{
+			@Override
+			public void doFrame(long frameTimeNanos)
+			{
+				if (running)
+				{
+					renderer.onFrame(frameTimeNanos);
+
+					postFrameCallback();
+				}
+			}
+		};
+	}
+
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private void postFrameCallback()
+	{
+		Choreographer.getInstance().postFrameCallback(
+				(Choreographer.FrameCallback) frameCallback);
+	}
+
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private void removeFrameCallback()
+	{
+		Choreographer.getInstance().removeFrameCallback(
+				(Choreographer.FrameCallback) frameCallback);
+	}
+}
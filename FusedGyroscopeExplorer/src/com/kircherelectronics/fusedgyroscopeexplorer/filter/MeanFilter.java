@@ -1,9 +1,5 @@
 package com.kircherelectronics.fusedgyroscopeexplorer.filter;
 
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
-
 /*
  * Fused Gyroscope Explorer
  * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
@@ -25,93 +21,189 @@ import java.util.List;
 /**
  * Implements a mean filter designed to smooth the data points based on a mean.
  * 
+ * Each axis keeps its window in a fixed ring of primitive floats along with a
+ * running sum, so an update costs O(1) regardless of the window size and does
+ * not box or allocate. The running sums are re-computed from the rings with
+ * Kahan summation every so often so rounding errors from the add/subtract
+ * updates can not accumulate over long sessions.
+ * 
  * @author Kaleb
  * @version %I%, %G%
  * 
  */
 public class MeanFilter
 {
+	// The number of updates between exact re-computations of the running sums.
+	private static final int RENORMALIZE_INTERVAL = 1000;
+
 	// The size of the mean filters rolling window.
 	private int filterWindow = 30;
 
 	private boolean dataInit;
 
-	private ArrayList<LinkedList<Number>> dataLists;
+	// The number of axes being filtered.
+	private int axes;
+
+	// The number of samples currently in the window.
+	private int count;
+
+	// The ring position the next sample will be written to.
+	private int head;
+
+	private int updatesSinceRenormalize;
+
+	// The rolling windows of each axis, laid out one axis after the other.
+	private float[] ring;
+
+	// The running sum of each axis's window.
+	private double[] sums;
 
 	/**
 	 * Initialize a new MeanFilter object.
 	 */
 	public MeanFilter()
 	{
-		dataLists = new ArrayList<LinkedList<Number>>();
 		dataInit = false;
 	}
 
 	/**
-	 * Filter the data.
+	 * Filter the data. This allocates a new output array on every call, use
+	 * filterFloat(float[], float[]) on hot paths.
 	 * 
-	 * @param iterator
+	 * @param data
 	 *            contains input the data.
 	 * @return the filtered output data.
 	 */
 	public float[] filterFloat(float[] data)
 	{
-		for (int i = 0; i < data.length; i++)
+		float[] means = new float[data.length];
+
+		filterFloat(data, means);
+
+		return means;
+	}
+
+	/**
+	 * Filter the data.
+	 * 
+	 * @param data
+	 *            contains input the data.
+	 * @param means
+	 *            the filtered output data, at least as long as the input. This
+	 *            can be the same array as the input.
+	 */
+	public void filterFloat(float[] data, float[] means)
+	{
+		// Initialize the data structures for the data set.
+		if (!dataInit || axes != data.length)
 		{
-			// Initialize the data structures for the data set.
-			if (!dataInit)
-			{
-				dataLists.add(new LinkedList<Number>());
-			}
+			init(data.length);
+		}
 
-			dataLists.get(i).addLast(data[i]);
+		int offset = head;
 
-			if (dataLists.get(i).size() > filterWindow)
+		for (int i = 0; i < axes; i++)
+		{
+			if (count == filterWindow)
 			{
-				dataLists.get(i).removeFirst();
+				sums[i] -= ring[offset];
 			}
+
+			ring[offset] = data[i];
+			sums[i] += data[i];
+
+			offset += filterWindow;
 		}
 
-		dataInit = true;
+		if (++head == filterWindow)
+		{
+			head = 0;
+		}
 
-		float[] means = new float[dataLists.size()];
+		if (count < filterWindow)
+		{
+			count++;
+		}
 
-		for (int i = 0; i < dataLists.size(); i++)
+		if (++updatesSinceRenormalize >= RENORMALIZE_INTERVAL)
 		{
-			means[i] = (float) getMean(dataLists.get(i));
+			renormalize();
 		}
 
-		return means;
+		for (int i = 0; i < axes; i++)
+		{
+			means[i] = (float) (sums[i] / count);
+		}
 	}
 
 	/**
-	 * Get the mean of the data set.
+	 * Set the size of the rolling window. Changing the size discards the
+	 * samples that have been collected so far.
 	 * 
-	 * @param data
-	 *            the data set.
-	 * @return the mean of the data set.
+	 * @param size
+	 *            the number of samples in the window.
 	 */
-	private float getMean(List<Number> data)
+	public void setWindowSize(int size)
 	{
-		float m = 0;
-		float count = 0;
-
-		for (int i = 0; i < data.size(); i++)
+		if (size < 1)
 		{
-			m += data.get(i).floatValue();
-			count++;
+			throw new IllegalArgumentException("Window size must be positive");
 		}
 
-		if (count != 0)
+		if (size != this.filterWindow)
 		{
-			m = m / count;
+			this.filterWindow = size;
+
+			dataInit = false;
 		}
+	}
 
-		return m;
+	/**
+	 * Allocate the rings and sums for the data set.
+	 * 
+	 * @param axes
+	 *            the number of axes in the data set.
+	 */
+	private void init(int axes)
+	{
+		this.axes = axes;
+
+		ring = new float[axes * filterWindow];
+		sums = new double[axes];
+
+		count = 0;
+		head = 0;
+		updatesSinceRenormalize = 0;
+
+		dataInit = true;
 	}
 
-	public void setWindowSize(int size)
+	/**
+	 * Re-compute the running sums from the rings with Kahan summation to
+	 * discard the rounding errors collected by the incremental updates.
+	 */
+	private void renormalize()
 	{
-		this.filterWindow = size;
+		for (int i = 0; i < axes; i++)
+		{
+			int offset = i * filterWindow;
+
+			double sum = 0;
+			double compensation = 0;
+
+			// The slots that have not been written yet are zero, so summing
+			// the whole ring is correct even before it has filled up.
+			for (int j = 0; j < filterWindow; j++)
+			{
+				double y = ring[offset + j] - compensation;
+				double t = sum + y;
+				compensation = (t - sum) - y;
+				sum = t;
+			}
+
+			sums[i] = sum;
+		}
+
+		updatesSinceRenormalize = 0;
 	}
 }
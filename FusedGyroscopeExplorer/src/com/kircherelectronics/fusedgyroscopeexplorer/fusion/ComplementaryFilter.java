@@ -0,0 +1,544 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.fusion;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Copyright (c) 2012 Paul Lawitzki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ * 
+ * 
+ * The above copyright notice and this permission notice shall be included
+ * in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
+ * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
+ * OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+import com.kircherelectronics.fusedgyroscopeexplorer.filter.MeanFilter;
+
+/**
+ * ComplementaryFilter attempts to fuse magnetometer, gravity and
+ * gyroscope sensors together to produce an accurate measurement of the rotation
+ * of the device. The magnetometer and acceleration sensors are used to
+ * determine the orientation of the device, but these readings are noisy and are
+ * subject to the constraint that the device must not be accelerating. The
+ * gyroscope is much more accurate and has a shorter response time, however it
+ * experiences drift and has to be compensated periodically to remain accurate.
+ * 
+ * The gyroscope provides the angular rotation speeds for all three axes. To
+ * find the orientation of the device, the rotation speeds must be integrated
+ * over time. This can be accomplished by multiplying the angular speeds by the
+ * time intervals between sensor updates. The calculation produces the rotation
+ * increment. Integrating these values again produces the absolute orientation
+ * of the device. Small errors are produced at each iteration causing the gyro
+ * to drift away from the true orientation.
+ * 
+ * To eliminate both the drift and noise from the orientation, the gyro
+ * measurements are applied only for orientation changes in short time
+ * intervals. The magnetometer/acceleration fusion is used for long time
+ * intervals. This is equivalent to low-pass filtering of the accelerometer and
+ * magnetic field sensor signals and high-pass filtering of the gyroscope
+ * signals.
+ * 
+ * Note: The fusion algorithm itself was written by Paul @
+ * http://www.thousand-thoughts.com/2012/03/android-sensor-fusion-tutorial/ and
+ * taken from his SensorFusion1.zip project. J.W. Alexandar Qiu has credit for
+ * the transitions between 179 <> -179 fix. I have optimized some of the code
+ * and made it slightly easier to follow and read. I have also changed the
+ * SensorManager.getRotationMatrix() to use the gravity sensor instead of the
+ * acceleration sensor.
+ * 
+ * The filter is plain Java so it can run, and be benchmarked, off of the
+ * device. FusedGyroscopeSensor adapts it to the Android sensor observers.
+ * 
+ * At SENSOR_DELAY_FASTEST the filter sees 200-500 measurements a second, and
+ * any garbage created per measurement ends up as GC pauses in the UI. All of
+ * its working arrays are therefore fields, and fusing a measurement never
+ * allocates.
+ * 
+ * @author Kaleb
+ * @version %I%, %G%
+ * @see http://web.mit.edu/scolton/www/filter.pdf
+ * @see http 
+ *      ://developer.android.com/reference/android/hardware/SensorEvent.html#
+ *      values
+ * @see http://www.thousand-thoughts.com/2012/03/android-sensor-fusion-tutorial/
+ * 
+ */
+public class ComplementaryFilter implements OrientationFusion
+{
+	public static final float FILTER_COEFFICIENT = 0.5f;
+
+	public static final float EPSILON = 0.000000001f;
+
+	// The size of the mean filters rolling windows.
+	public static final int MEAN_FILTER_WINDOW = 10;
+
+	// private static final float NS2S = 1.0f / 10000.0f;
+	// Nano-second to second conversion
+	private static final float NS2S = 1.0f / 1000000000.0f;
+
+	private boolean hasOrientation = false;
+
+	private boolean initState = false;
+
+	private float dT = 0;
+
+	private float[] gravity = new float[]
+	{ 0, 0, 0 };
+
+	// rotation matrix from gyro data
+	private float[] gyroMatrix = new float[9];
+
+	// orientation angles from gyro matrix, stale in the incremental mode
+	private float[] gyroOrientation = new float[3];
+
+	// magnetic field vector
+	private float[] magnetic = new float[3];
+
+	// orientation angles from accel and magnet, kept with rotationMatrix
+	private float[] orientation = new float[3];
+
+	// final orientation angles from sensor fusion
+	private float[] fusedOrientation = new float[3];
+
+	// accelerometer and magnetometer based rotation matrix, carried forward
+	// by the gyroscope between solves at a lower attitude rate
+	private float[] rotationMatrix = new float[9];
+
+	// convert the raw gyro data into a rotation vector
+	private float[] deltaVector = new float[4];
+
+	// convert rotation vector into rotation matrix
+	private float[] deltaMatrix = new float[9];
+
+	// scratch matrix for the products
+	private float[] resultMatrix = new float[9];
+
+	private long timeStamp;
+
+	// The weight of the gyroscope orientation in the fused orientation.
+	private float filterCoefficient;
+
+	// The angular speed below which the gyroscope is not rotating.
+	private float epsilon;
+
+	// How the gyroscope drift is corrected, and in the incremental mode how
+	// often the rotation matrix is re-orthonormalized.
+	private int correctionMode;
+	private int orthonormalizationInterval;
+
+	// The number of incremental corrections since the last
+	// re-orthonormalization.
+	private int correctionCount;
+
+	private MeanFilter meanFilterAcceleration;
+	private MeanFilter meanFilterMagnetic;
+
+	// Learns the gyroscope bias while the device is stationary.
+	private GyroscopeBiasEstimator biasEstimator = new GyroscopeBiasEstimator();
+	private boolean biasEstimation;
+
+	// The gyroscope measurement with the bias removed.
+	private float[] unbiasedGyroscope = new float[3];
+
+	// Schedules the acceleration/magnetic orientation solves.
+	private RateLimiter attitudeLimiter = new RateLimiter();
+
+	/**
+	 * Initialize a new instance.
+	 */
+	public ComplementaryFilter()
+	{
+		this(FusionConfig.DEFAULT);
+	}
+
+	/**
+	 * Initialize a new instance with a custom tuning.
+	 * 
+	 * @param config
+	 *            the configuration of the fusion.
+	 */
+	public ComplementaryFilter(FusionConfig config)
+	{
+		super();
+
+		meanFilterAcceleration = new MeanFilter();
+		meanFilterMagnetic = new MeanFilter();
+
+		setConfig(config);
+
+		reset();
+	}
+
+	/**
+	 * Change the tuning of the filter. Changing the mean filter window
+	 * discards the gravity and magnetic samples smoothed so far.
+	 * 
+	 * @param config
+	 *            the new configuration.
+	 */
+	@Override
+	public void setConfig(FusionConfig config)
+	{
+		filterCoefficient = config.getFilterCoefficient();
+		epsilon = config.getEpsilon();
+		biasEstimation = config.isGyroscopeBiasEstimation();
+
+		attitudeLimiter.setRate(config.getAttitudeRate());
+		orthonormalizationInterval = config.getOrthonormalizationInterval();
+
+		// The incremental correction doesn't keep the acceleration and
+		// magnetic Euler angles up to date.
+		if (correctionMode != config.getCorrectionMode() && hasOrientation)
+		{
+			RotationMath.getOrientation(rotationMatrix, orientation);
+		}
+
+		correctionMode = config.getCorrectionMode();
+
+		meanFilterAcceleration.setWindowSize(config.getMeanFilterWindow());
+		meanFilterMagnetic.setWindowSize(config.getMeanFilterWindow());
+	}
+
+	/**
+	 * Reset the filter to its initial state. The next orientation from the
+	 * acceleration and magnetic sensors will re-initialize the gyroscope.
+	 */
+	@Override
+	public void reset()
+	{
+		hasOrientation = false;
+		initState = false;
+
+		biasEstimator.reset();
+
+		attitudeLimiter.reset();
+
+		timeStamp = 0;
+		correctionCount = 0;
+
+		gyroOrientation[0] = 0.0f;
+		gyroOrientation[1] = 0.0f;
+		gyroOrientation[2] = 0.0f;
+
+		deltaVector[0] = 0.0f;
+		deltaVector[1] = 0.0f;
+		deltaVector[2] = 0.0f;
+		deltaVector[3] = 1.0f;
+
+		// Initialize gyroMatrix with identity matrix
+		RotationMath.setIdentity(gyroMatrix);
+	}
+
+	/**
+	 * Get the most recent fused orientation.
+	 * 
+	 * @param orientation
+	 *            the fused orientation (azimuth, pitch, roll) in radians.
+	 */
+	@Override
+	public void getFusedOrientation(float[] orientation)
+	{
+		// The incremental correction only needs the angles when they are
+		// asked for.
+		if (correctionMode == FusionConfig.CORRECTION_MODE_INCREMENTAL)
+		{
+			RotationMath.getOrientation(gyroMatrix, orientation);
+
+			return;
+		}
+
+		System.arraycopy(gyroOrientation, 0, orientation, 0, 3);
+	}
+
+	/**
+	 * Get the time stamp of the most recent gyroscope measurement.
+	 * 
+	 * @return the time stamp in nanoseconds.
+	 */
+	public long getTimeStamp()
+	{
+		return timeStamp;
+	}
+
+	/**
+	 * Indicates if the acceleration and magnetic sensors have produced an
+	 * orientation yet. Gyroscope measurements are ignored until they have.
+	 * 
+	 * @return true if there is an orientation to fuse with.
+	 */
+	public boolean hasOrientation()
+	{
+		return hasOrientation;
+	}
+
+	/**
+	 * Add a magnetic measurement.
+	 * 
+	 * @param magnetic
+	 *            the magnetic measurements (x, y, z).
+	 * @param timeStamp
+	 *            the time stamp of the measurement.
+	 */
+	@Override
+	public void updateMagnetic(float[] magnetic, long timeStamp)
+	{
+		// Smooth the raw magnetic values from the device sensor into the local
+		// copy.
+		meanFilterMagnetic.filterFloat(magnetic, this.magnetic);
+	}
+
+	/**
+	 * Add a gravity measurement and update the orientation from the
+	 * acceleration and magnetic sensors.
+	 * 
+	 * @param gravity
+	 *            the gravity values (x, y, z).
+	 * @param timeStamp
+	 *            the time stamp of the measurement.
+	 */
+	@Override
+	public void updateGravity(float[] gravity, long timeStamp)
+	{
+		// Smooth the raw gravity values from the device sensor into the local
+		// copy.
+		meanFilterAcceleration.filterFloat(gravity, this.gravity);
+
+		if (biasEstimation)
+		{
+			biasEstimator.updateGravity(gravity);
+		}
+
+		if (isAttitudeDue(timeStamp))
+		{
+			calculateOrientation();
+		}
+	}
+
+	/**
+	 * Add a gyroscope measurement and fuse the result with the orientation
+	 * from the acceleration and magnetic sensors.
+	 * 
+	 * @param gyroscope
+	 *            the angular speeds (x, y, z) in radians/second.
+	 * @param timeStamp
+	 *            the time stamp of the measurement.
+	 * @return true if a new fused orientation is available.
+	 */
+	@Override
+	public boolean updateGyroscope(float[] gyroscope, long timeStamp)
+	{
+		// Keep learning the bias while waiting for the first orientation.
+		if (biasEstimation)
+		{
+			biasEstimator.updateGyroscope(gyroscope);
+			biasEstimator.removeBias(gyroscope, unbiasedGyroscope);
+
+			gyroscope = unbiasedGyroscope;
+		}
+
+		// don't start until first accelerometer/magnetometer orientation has
+		// been acquired
+		if (!hasOrientation)
+		{
+			return false;
+		}
+
+		// Initialization of the gyroscope based rotation matrix
+		if (!initState)
+		{
+			RotationMath.matrixMultiplication(gyroMatrix, rotationMatrix,
+					resultMatrix);
+			System.arraycopy(resultMatrix, 0, gyroMatrix, 0, 9);
+
+			initState = true;
+		}
+
+		if (this.timeStamp != 0)
+		{
+			dT = (timeStamp - this.timeStamp) * NS2S;
+
+			RotationMath.getRotationVectorFromGyro(gyroscope, dT / 2.0f,
+					epsilon, deltaVector);
+		}
+
+		// measurement done, save current time for next interval
+		this.timeStamp = timeStamp;
+
+		// Get the rotation matrix from the gyroscope
+		RotationMath.getRotationMatrixFromVector(deltaMatrix, deltaVector);
+
+		// Apply the new rotation interval on the gyroscope based rotation
+		// matrix to form a composite rotation matrix. The product of two
+		// rotation matricies is a rotation matrix...
+		// Multiplication of rotation matrices corresponds to composition of
+		// rotations... Which in this case are the rotation matrix from the
+		// fused orientation and the rotation matrix from the current gyroscope
+		// outputs.
+		RotationMath.matrixMultiplication(gyroMatrix, deltaMatrix,
+				resultMatrix);
+		System.arraycopy(resultMatrix, 0, gyroMatrix, 0, 9);
+
+		if (attitudeLimiter.isLimited())
+		{
+			carryAttitudeForward();
+		}
+
+		if (correctionMode == FusionConfig.CORRECTION_MODE_INCREMENTAL)
+		{
+			correctIncrementally();
+
+			return true;
+		}
+
+		// Get the gyroscope based orientation from the composite rotation
+		// matrix. This orientation will be fused via complementary filter with
+		// the orientation from the acceleration sensor and magnetic sensor.
+		RotationMath.getOrientation(gyroMatrix, gyroOrientation);
+
+		calculateFusedOrientation();
+
+		return true;
+	}
+
+	/**
+	 * Calculates orientation angles from accelerometer and magnetometer output.
+	 */
+	private void calculateOrientation()
+	{
+		if (RotationMath.getRotationMatrix(rotationMatrix, gravity, magnetic))
+		{
+			// The incremental correction works on the matrix directly.
+			if (correctionMode == FusionConfig.CORRECTION_MODE_EULER)
+			{
+				RotationMath.getOrientation(rotationMatrix, orientation);
+			}
+
+			hasOrientation = true;
+		}
+	}
+
+	/**
+	 * Rotate the most recent acceleration/magnetic orientation by the
+	 * gyroscope delta rotation. At a lower attitude rate the gyroscope is
+	 * still blended towards the last solve on every measurement, and without
+	 * this a solve that is tens of milliseconds old would pull the fused
+	 * orientation back to where the device was when it was solved.
+	 */
+	private void carryAttitudeForward()
+	{
+		RotationMath.matrixMultiplication(rotationMatrix, deltaMatrix,
+				resultMatrix);
+		System.arraycopy(resultMatrix, 0, rotationMatrix, 0, 9);
+
+		// The incremental correction works on the matrix directly.
+		if (correctionMode == FusionConfig.CORRECTION_MODE_EULER)
+		{
+			RotationMath.getOrientation(rotationMatrix, orientation);
+		}
+	}
+
+	/**
+	 * Decide if the acceleration/magnetic orientation is due to be solved
+	 * again at a time stamp. Until there is an orientation it is solved on
+	 * every measurement.
+	 */
+	private boolean isAttitudeDue(long timeStamp)
+	{
+		return !hasOrientation || attitudeLimiter.isDue(timeStamp);
+	}
+
+	/**
+	 * Rotate the gyroscope matrix part of the way towards the acceleration
+	 * and magnetic matrix. The error rotation between them is E =
+	 * gyroMatrix^T * rotationMatrix, for a small error its axis times its
+	 * angle is the skew symmetric part of E. The gyroscope matrix is rotated
+	 * by (1 - filterCoefficient) of that with the first order rotation I +
+	 * [w]x, which costs no trigonometry. The first order rotations slowly
+	 * scale and shear the matrix, so it is re-orthonormalized every few
+	 * measurements.
+	 */
+	private void correctIncrementally()
+	{
+		float k = (1 - filterCoefficient) / 2;
+
+		float wx = k * (columnDot(2, 1) - columnDot(1, 2));
+		float wy = k * (columnDot(0, 2) - columnDot(2, 0));
+		float wz = k * (columnDot(1, 0) - columnDot(0, 1));
+
+		// gyroMatrix * (I + [w]x), each row r becomes r + r x w.
+		for (int i = 0; i < 9; i += 3)
+		{
+			float r0 = gyroMatrix[i];
+			float r1 = gyroMatrix[i + 1];
+			float r2 = gyroMatrix[i + 2];
+
+			gyroMatrix[i] = r0 + r1 * wz - r2 * wy;
+			gyroMatrix[i + 1] = r1 + r2 * wx - r0 * wz;
+			gyroMatrix[i + 2] = r2 + r0 * wy - r1 * wx;
+		}
+
+		if (++correctionCount >= orthonormalizationInterval)
+		{
+			RotationMath.orthonormalize(gyroMatrix);
+
+			correctionCount = 0;
+		}
+	}
+
+	/**
+	 * Get element (i, j) of gyroMatrix^T * rotationMatrix, the dot product of
+	 * column i of the gyroscope matrix and column j of the acceleration and
+	 * magnetic matrix.
+	 */
+	private float columnDot(int i, int j)
+	{
+		return gyroMatrix[i] * rotationMatrix[j] + gyroMatrix[3 + i]
+				* rotationMatrix[3 + j] + gyroMatrix[6 + i]
+				* rotationMatrix[6 + j];
+	}
+
+	/**
+	 * Calculate the fused orientation.
+	 */
+	private void calculateFusedOrientation()
+	{
+		RotationMath.fuseOrientation(gyroOrientation, orientation,
+				filterCoefficient, fusedOrientation);
+
+		// overwrite gyro matrix and orientation with fused orientation
+		// to comensate gyro drift
+		RotationMath.getRotationMatrixFromOrientation(fusedOrientation,
+				gyroMatrix);
+
+		System.arraycopy(fusedOrientation, 0, gyroOrientation, 0, 3);
+	}
+}
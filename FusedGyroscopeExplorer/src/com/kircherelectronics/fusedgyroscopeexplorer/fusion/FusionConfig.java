@@ -0,0 +1,425 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.fusion;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The tuning of the sensor fusion. A FusionConfig is immutable, so one
+ * instance can be shared between threads and swapped in while the sensors
+ * are running. New configurations are made with a Builder, starting from
+ * the defaults or from an existing configuration:
+ *
+ * <pre>
+ * FusionConfig config = new FusionConfig.Builder(FusionConfig.DEFAULT)
+ * 		.setMeanFilterWindow(5).setOutputDecimation(2).build();
+ * </pre>
+ *
+ * @author Kaleb
+ * @version %I%, %G%
+ */
+public class FusionConfig
+{
+	// Correct the drift by blending the Euler angles and rebuilding the
+	// rotation matrix from them on every measurement.
+	public static final int CORRECTION_MODE_EULER = 0;
+
+	// Correct the drift by rotating the matrix a little towards the
+	// acceleration/magnetic orientation on every measurement and
+	// re-orthonormalizing it every few measurements.
+	public static final int CORRECTION_MODE_INCREMENTAL = 1;
+
+	// The number of measurements between re-orthonormalizations of the
+	// rotation matrix in the incremental correction mode.
+	public static final int DEFAULT_ORTHONORMALIZATION_INTERVAL = 10;
+
+	// The number of gravity and magnetic samples to smooth before the initial
+	// orientation is taken.
+	public static final int DEFAULT_MIN_SAMPLE_COUNT = 30;
+
+	// The tuning the application has always used.
+	public static final FusionConfig DEFAULT = new Builder().build();
+
+	private final float filterCoefficient;
+	private final float epsilon;
+	private final int meanFilterWindow;
+	private final int minSampleCount;
+	private final int outputDecimation;
+	private final boolean gyroscopeBiasEstimation;
+	private final int correctionMode;
+	private final int orthonormalizationInterval;
+	private final float attitudeRate;
+	private final int synchronizationDelay;
+
+	/**
+	 * Builds a FusionConfig.
+	 */
+	public static class Builder
+	{
+		private float filterCoefficient = ComplementaryFilter.FILTER_COEFFICIENT;
+		private float epsilon = ComplementaryFilter.EPSILON;
+		private int meanFilterWindow = ComplementaryFilter.MEAN_FILTER_WINDOW;
+		private int minSampleCount = DEFAULT_MIN_SAMPLE_COUNT;
+		private int outputDecimation = 1;
+		private boolean gyroscopeBiasEstimation = false;
+		private int correctionMode = CORRECTION_MODE_EULER;
+		private int orthonormalizationInterval = DEFAULT_ORTHONORMALIZATION_INTERVAL;
+		private float attitudeRate = 0;
+		private int synchronizationDelay = 0;
+
+		/**
+		 * Start from the default configuration.
+		 */
+		public Builder()
+		{
+			super();
+		}
+
+		/**
+		 * Start from an existing configuration.
+		 *
+		 * @param config
+		 *            the configuration to copy.
+		 */
+		public Builder(FusionConfig config)
+		{
+			super();
+
+			filterCoefficient = config.filterCoefficient;
+			epsilon = config.epsilon;
+			meanFilterWindow = config.meanFilterWindow;
+			minSampleCount = config.minSampleCount;
+			outputDecimation = config.outputDecimation;
+			gyroscopeBiasEstimation = config.gyroscopeBiasEstimation;
+			correctionMode = config.correctionMode;
+			orthonormalizationInterval = config.orthonormalizationInterval;
+			attitudeRate = config.attitudeRate;
+			synchronizationDelay = config.synchronizationDelay;
+		}
+
+		/**
+		 * Set the weight of the gyroscope orientation in the fused
+		 * orientation. The rest comes from the acceleration and magnetic
+		 * orientation.
+		 *
+		 * @param filterCoefficient
+		 *            between 0 and 1.
+		 * @return this builder.
+		 */
+		public Builder setFilterCoefficient(float filterCoefficient)
+		{
+			this.filterCoefficient = filterCoefficient;
+			return this;
+		}
+
+		/**
+		 * Set the angular speed below which the gyroscope is treated as not
+		 * rotating.
+		 *
+		 * @param epsilon
+		 *            in radians/second.
+		 * @return this builder.
+		 */
+		public Builder setEpsilon(float epsilon)
+		{
+			this.epsilon = epsilon;
+			return this;
+		}
+
+		/**
+		 * Set the size of the rolling windows that smooth the gravity and
+		 * magnetic measurements.
+		 *
+		 * @param meanFilterWindow
+		 *            the number of samples in the windows.
+		 * @return this builder.
+		 */
+		public Builder setMeanFilterWindow(int meanFilterWindow)
+		{
+			this.meanFilterWindow = meanFilterWindow;
+			return this;
+		}
+
+		/**
+		 * Set the number of gravity and magnetic samples to smooth before the
+		 * initial orientation is taken.
+		 *
+		 * @param minSampleCount
+		 *            the number of samples.
+		 * @return this builder.
+		 */
+		public Builder setMinSampleCount(int minSampleCount)
+		{
+			this.minSampleCount = minSampleCount;
+			return this;
+		}
+
+		/**
+		 * Set how many fused orientations go by for each one that is
+		 * published to the observers. The fusion still runs on every
+		 * gyroscope measurement.
+		 *
+		 * @param outputDecimation
+		 *            1 to publish every orientation.
+		 * @return this builder.
+		 */
+		public Builder setOutputDecimation(int outputDecimation)
+		{
+			this.outputDecimation = outputDecimation;
+			return this;
+		}
+
+		/**
+		 * Set whether the gyroscope bias is learned while the device is
+		 * stationary and subtracted before the angular speeds are
+		 * integrated.
+		 *
+		 * @param gyroscopeBiasEstimation
+		 *            true to remove the bias.
+		 * @return this builder.
+		 * @see GyroscopeBiasEstimator
+		 */
+		public Builder setGyroscopeBiasEstimation(
+				boolean gyroscopeBiasEstimation)
+		{
+			this.gyroscopeBiasEstimation = gyroscopeBiasEstimation;
+			return this;
+		}
+
+		/**
+		 * Set how ComplementaryFilter corrects the gyroscope drift. The
+		 * quaternion fusion always corrects its quaternion incrementally.
+		 *
+		 * @param correctionMode
+		 *            CORRECTION_MODE_EULER or CORRECTION_MODE_INCREMENTAL.
+		 * @return this builder.
+		 */
+		public Builder setCorrectionMode(int correctionMode)
+		{
+			this.correctionMode = correctionMode;
+			return this;
+		}
+
+		/**
+		 * Set how many measurements go by between re-orthonormalizations of
+		 * the rotation matrix in the incremental correction mode.
+		 *
+		 * @param orthonormalizationInterval
+		 *            the number of measurements.
+		 * @return this builder.
+		 */
+		public Builder setOrthonormalizationInterval(
+				int orthonormalizationInterval)
+		{
+			this.orthonormalizationInterval = orthonormalizationInterval;
+			return this;
+		}
+
+		/**
+		 * Set how often the orientation is solved from the acceleration and
+		 * magnetic sensors. The absolute attitude changes slowly, so the
+		 * solve can run well below the rate of the gravity sensor while the
+		 * gyroscope fuses with the latest result. The gravity and magnetic
+		 * measurements are still smoothed as they arrive.
+		 *
+		 * Between solves the last one is carried forward with the gyroscope,
+		 * and the gyroscope is still blended towards it on every measurement
+		 * with the filter coefficient, so the coefficient doesn't depend on
+		 * the attitude rate.
+		 *
+		 * @param attitudeRate
+		 *            the rate in Hz, 0 to solve on every gravity measurement.
+		 * @return this builder.
+		 */
+		public Builder setAttitudeRate(float attitudeRate)
+		{
+			this.attitudeRate = attitudeRate;
+			return this;
+		}
+
+		/**
+		 * Set how long a gyroscope measurement may wait for the gravity and
+		 * magnetic measurements around it. While it waits, the gravity and
+		 * magnetic values are interpolated to its time stamp instead of
+		 * fusing whatever was measured last, at the price of the fused
+		 * orientation lagging by up to the delay.
+		 *
+		 * @param synchronizationDelay
+		 *            the delay in milliseconds, 0 to fuse every measurement
+		 *            as it arrives.
+		 * @return this builder.
+		 */
+		public Builder setSynchronizationDelay(int synchronizationDelay)
+		{
+			this.synchronizationDelay = synchronizationDelay;
+			return this;
+		}
+
+		/**
+		 * Build the configuration.
+		 *
+		 * @return the configuration.
+		 * @throws IllegalArgumentException
+		 *             if a setting is out of range.
+		 */
+		public FusionConfig build()
+		{
+			if (!(filterCoefficient >= 0 && filterCoefficient <= 1))
+			{
+				throw new IllegalArgumentException(
+						"Filter coefficient must be between 0 and 1: "
+								+ filterCoefficient);
+			}
+
+			if (!(epsilon >= 0))
+			{
+				throw new IllegalArgumentException(
+						"Epsilon must not be negative: " + epsilon);
+			}
+
+			if (meanFilterWindow < 1)
+			{
+				throw new IllegalArgumentException(
+						"Mean filter window must be positive: "
+								+ meanFilterWindow);
+			}
+
+			if (minSampleCount < 0)
+			{
+				throw new IllegalArgumentException(
+						"Minimum sample count must not be negative: "
+								+ minSampleCount);
+			}
+
+			if (outputDecimation < 1)
+			{
+				throw new IllegalArgumentException(
+						"Output decimation must be positive: "
+								+ outputDecimation);
+			}
+
+			if (correctionMode != CORRECTION_MODE_EULER
+					&& correctionMode != CORRECTION_MODE_INCREMENTAL)
+			{
+				throw new IllegalArgumentException("Unknown correction mode: "
+						+ correctionMode);
+			}
+
+			if (orthonormalizationInterval < 1)
+			{
+				throw new IllegalArgumentException(
+						"Orthonormalization interval must be positive: "
+								+ orthonormalizationInterval);
+			}
+
+			if (!(attitudeRate >= 0) || Float.isInfinite(attitudeRate))
+			{
+				throw new IllegalArgumentException(
+						"Attitude rate must not be negative: " + attitudeRate);
+			}
+
+			if (synchronizationDelay < 0)
+			{
+				throw new IllegalArgumentException(
+						"Synchronization delay must not be negative: "
+								+ synchronizationDelay);
+			}
+
+			return new FusionConfig(this);
+		}
+	}
+
+	private FusionConfig(Builder builder)
+	{
+		super();
+
+		filterCoefficient = builder.filterCoefficient;
+		epsilon = builder.epsilon;
+		meanFilterWindow = builder.meanFilterWindow;
+		minSampleCount = builder.minSampleCount;
+		outputDecimation = builder.outputDecimation;
+		gyroscopeBiasEstimation = builder.gyroscopeBiasEstimation;
+		correctionMode = builder.correctionMode;
+		orthonormalizationInterval = builder.orthonormalizationInterval;
+		attitudeRate = builder.attitudeRate;
+		synchronizationDelay = builder.synchronizationDelay;
+	}
+
+	public float getFilterCoefficient()
+	{
+		return filterCoefficient;
+	}
+
+	public float getEpsilon()
+	{
+		return epsilon;
+	}
+
+	public int getMeanFilterWindow()
+	{
+		return meanFilterWindow;
+	}
+
+	public int getMinSampleCount()
+	{
+		return minSampleCount;
+	}
+
+	public int getOutputDecimation()
+	{
+		return outputDecimation;
+	}
+
+	public boolean isGyroscopeBiasEstimation()
+	{
+		return gyroscopeBiasEstimation;
+	}
+
+	public int getCorrectionMode()
+	{
+		return correctionMode;
+	}
+
+	public int getOrthonormalizationInterval()
+	{
+		return orthonormalizationInterval;
+	}
+
+	public float getAttitudeRate()
+	{
+		return attitudeRate;
+	}
+
+	public int getSynchronizationDelay()
+	{
+		return synchronizationDelay;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "FusionConfig[filterCoefficient=" + filterCoefficient
+				+ ", epsilon=" + epsilon + ", meanFilterWindow="
+				+ meanFilterWindow + ", minSampleCount=" + minSampleCount
+				+ ", outputDecimation=" + outputDecimation
+				+ ", gyroscopeBiasEstimation=" + gyroscopeBiasEstimation
+				+ ", correctionMode=" + correctionMode
+				+ ", orthonormalizationInterval=" + orthonormalizationInterval
+				+ ", attitudeRate=" + attitudeRate
+				+ ", synchronizationDelay=" + synchronizationDelay + "]";
+	}
+}
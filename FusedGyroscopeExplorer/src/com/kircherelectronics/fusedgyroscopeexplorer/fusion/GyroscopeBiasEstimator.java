@@ -0,0 +1,258 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.fusion;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Estimates the bias of the gyroscope while the device is stationary, so it
+ * can be subtracted before the angular speeds are integrated. A gyroscope
+ * that reads a constant offset at rest turns it into a steady drift of the
+ * integrated orientation, which the complementary filter otherwise has to
+ * pull back on every measurement.
+ *
+ * The device counts as stationary when the gyroscope, and the gravity if it
+ * is being measured, have barely varied for a while. Means and variances are
+ * exponentially weighted, so the whole estimator is a few floats per axis
+ * and each measurement costs a handful of multiplications. While stationary
+ * the bias follows the mean of the angular speeds.
+ *
+ * A device turning slowly and steadily about the vertical axis looks
+ * stationary to the gravity and the gyroscope variance alike, so angular
+ * speeds above MAX_BIAS are never taken for bias.
+ *
+ * @author Kaleb
+ * @version %I%, %G%
+ */
+public class GyroscopeBiasEstimator
+{
+	// The weight of the newest measurement in the running means and
+	// variances, a window of about 20 measurements.
+	private static final float VARIANCE_ALPHA = 0.05f;
+
+	// The smallest weight of the newest stationary measurement in the bias,
+	// a window of about 500 measurements. The first ones are averaged evenly
+	// so the bias settles quickly.
+	private static final float BIAS_ALPHA = 0.002f;
+
+	// The variance of each axis below which the gyroscope, in (rad/s)^2, and
+	// the gravity, in (m/s^2)^2, are quiet.
+	private static final float GYROSCOPE_VARIANCE_THRESHOLD = 0.0001f;
+	private static final float GRAVITY_VARIANCE_THRESHOLD = 0.0025f;
+
+	// The largest mean angular speed of each axis, in rad/s, taken for bias.
+	private static final float MAX_BIAS = 0.05f;
+
+	// The number of quiet gyroscope measurements in a row before the device
+	// counts as stationary.
+	private static final int MIN_STATIONARY_COUNT = 50;
+
+	// Gravity older than this many gyroscope measurements is not considered.
+	private static final int MAX_GRAVITY_AGE = 100;
+
+	private float[] gyroscopeMean = new float[3];
+	private float[] gyroscopeVariance = new float[3];
+	private boolean hasGyroscope;
+
+	private float[] gravityMean = new float[3];
+	private float[] gravityVariance = new float[3];
+	private boolean hasGravity;
+
+	// The number of gyroscope measurements since the last gravity.
+	private int gravityAge;
+
+	// The number of quiet gyroscope measurements in a row.
+	private int quietCount;
+
+	private float[] bias = new float[3];
+
+	// The number of measurements the bias has been estimated from.
+	private int biasCount;
+
+	/**
+	 * Initialize a new instance.
+	 */
+	public GyroscopeBiasEstimator()
+	{
+		super();
+
+		reset();
+	}
+
+	/**
+	 * Forget the bias and start over.
+	 */
+	public void reset()
+	{
+		hasGyroscope = false;
+		hasGravity = false;
+
+		gravityAge = MAX_GRAVITY_AGE + 1;
+		quietCount = 0;
+
+		for (int i = 0; i < 3; i++)
+		{
+			bias[i] = 0;
+		}
+
+		biasCount = 0;
+	}
+
+	/**
+	 * Add a gravity measurement. Gravity is optional, without it the device
+	 * is judged stationary from the gyroscope alone.
+	 *
+	 * @param gravity
+	 *            the gravity values (x, y, z).
+	 */
+	public void updateGravity(float[] gravity)
+	{
+		hasGravity = update(gravity, gravityMean, gravityVariance, hasGravity);
+
+		gravityAge = 0;
+	}
+
+	/**
+	 * Add a gyroscope measurement, and learn from it if the device is
+	 * stationary.
+	 *
+	 * @param gyroscope
+	 *            the angular speeds (x, y, z) in radians/second.
+	 */
+	public void updateGyroscope(float[] gyroscope)
+	{
+		hasGyroscope = update(gyroscope, gyroscopeMean, gyroscopeVariance,
+				hasGyroscope);
+
+		if (gravityAge <= MAX_GRAVITY_AGE)
+		{
+			gravityAge++;
+		}
+
+		if (isQuiet())
+		{
+			quietCount++;
+		}
+		else
+		{
+			quietCount = 0;
+		}
+
+		if (quietCount < MIN_STATIONARY_COUNT)
+		{
+			return;
+		}
+
+		biasCount++;
+
+		float alpha = Math.max(BIAS_ALPHA, 1.0f / biasCount);
+
+		for (int i = 0; i < 3; i++)
+		{
+			bias[i] += alpha * (gyroscope[i] - bias[i]);
+		}
+	}
+
+	/**
+	 * Subtract the bias from a gyroscope measurement.
+	 *
+	 * @param gyroscope
+	 *            the angular speeds (x, y, z) in radians/second.
+	 * @param result
+	 *            the corrected angular speeds, may be the same array.
+	 */
+	public void removeBias(float[] gyroscope, float[] result)
+	{
+		result[0] = gyroscope[0] - bias[0];
+		result[1] = gyroscope[1] - bias[1];
+		result[2] = gyroscope[2] - bias[2];
+	}
+
+	/**
+	 * Get the estimated bias.
+	 *
+	 * @param bias
+	 *            the bias (x, y, z) in radians/second.
+	 */
+	public void getBias(float[] bias)
+	{
+		System.arraycopy(this.bias, 0, bias, 0, 3);
+	}
+
+	/**
+	 * Indicates if the device is currently judged stationary.
+	 *
+	 * @return true if the bias is being learned.
+	 */
+	public boolean isStationary()
+	{
+		return quietCount >= MIN_STATIONARY_COUNT;
+	}
+
+	/**
+	 * Indicates if the most recent measurements are quiet enough for the
+	 * device to be stationary.
+	 */
+	private boolean isQuiet()
+	{
+		for (int i = 0; i < 3; i++)
+		{
+			if (gyroscopeVariance[i] > GYROSCOPE_VARIANCE_THRESHOLD
+					|| Math.abs(gyroscopeMean[i]) > MAX_BIAS)
+			{
+				return false;
+			}
+
+			if (gravityAge <= MAX_GRAVITY_AGE
+					&& gravityVariance[i] > GRAVITY_VARIANCE_THRESHOLD)
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Add a measurement to exponentially weighted means and variances.
+	 *
+	 * @return true, the means are initialized.
+	 */
+	private static boolean update(float[] values, float[] mean,
+			float[] variance, boolean initialized)
+	{
+		for (int i = 0; i < 3; i++)
+		{
+			if (!initialized)
+			{
+				mean[i] = values[i];
+				variance[i] = 0;
+
+				continue;
+			}
+
+			float difference = values[i] - mean[i];
+			float increment = VARIANCE_ALPHA * difference;
+
+			mean[i] += increment;
+			variance[i] = (1 - VARIANCE_ALPHA)
+					* (variance[i] + difference * increment);
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,146 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.fusion;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * GyroscopeIntegrator determines the rotation of the device by integrating
+ * the gyroscope's angular speeds alone, without any compensation for drift.
+ * The integration starts from an initial rotation, usually found once from
+ * the acceleration and magnetic sensors, so it is referenced to earth frame.
+ * 
+ * @author Kaleb
+ * @version %I%, %G%
+ * @see http://developer.android.com/reference/android/hardware/SensorEvent.html#values
+ */
+public class GyroscopeIntegrator
+{
+	public static final float EPSILON = 0.000000001f;
+
+	private static final float NS2S = 1.0f / 1000000000.0f;
+
+	private boolean initialized = false;
+
+	// The integrated rotation matrix.
+	private float[] currentRotationMatrix = new float[9];
+
+	// The delta rotation of the current time step as a quaternion.
+	private float[] deltaRotationVector = new float[4];
+
+	// The delta rotation of the current time step as a matrix.
+	private float[] deltaRotationMatrix = new float[9];
+
+	// Scratch matrix for the products.
+	private float[] resultMatrix = new float[9];
+
+	private long timeStamp = 0;
+
+	/**
+	 * Initialize a new instance.
+	 */
+	public GyroscopeIntegrator()
+	{
+		super();
+
+		reset();
+	}
+
+	/**
+	 * Reset the integration. Measurements are ignored until a new initial
+	 * rotation is provided.
+	 */
+	public void reset()
+	{
+		initialized = false;
+		timeStamp = 0;
+
+		// Initialize the current rotation matrix as an identity matrix...
+		RotationMath.setIdentity(currentRotationMatrix);
+	}
+
+	/**
+	 * Set the rotation to start integrating from.
+	 * 
+	 * @param initialRotationMatrix
+	 *            the initial rotation matrix, float[9].
+	 */
+	public void setInitialRotationMatrix(float[] initialRotationMatrix)
+	{
+		RotationMath.matrixMultiplication(currentRotationMatrix,
+				initialRotationMatrix, resultMatrix);
+		System.arraycopy(resultMatrix, 0, currentRotationMatrix, 0, 9);
+
+		initialized = true;
+	}
+
+	/**
+	 * Indicates if an initial rotation has been provided.
+	 * 
+	 * @return true if measurements are being integrated.
+	 */
+	public boolean isInitialized()
+	{
+		return initialized;
+	}
+
+	/**
+	 * Integrate a gyroscope measurement.
+	 * 
+	 * @param gyroscope
+	 *            the angular speeds (x, y, z) in radians/second.
+	 * @param timeStamp
+	 *            the time stamp of the measurement.
+	 */
+	public void updateGyroscope(float[] gyroscope, long timeStamp)
+	{
+		if (!initialized)
+		{
+			return;
+		}
+
+		// This timestep's delta rotation to be multiplied by the current
+		// rotation after computing it from the gyro sample data.
+		if (this.timeStamp != 0)
+		{
+			final float dT = (timeStamp - this.timeStamp) * NS2S;
+
+			RotationMath.getRotationVectorFromGyro(gyroscope, dT / 2.0f,
+					EPSILON, deltaRotationVector);
+
+			RotationMath.getRotationMatrixFromVector(deltaRotationMatrix,
+					deltaRotationVector);
+
+			RotationMath.matrixMultiplication(currentRotationMatrix,
+					deltaRotationMatrix, resultMatrix);
+			System.arraycopy(resultMatrix, 0, currentRotationMatrix, 0, 9);
+		}
+
+		this.timeStamp = timeStamp;
+	}
+
+	/**
+	 * Get the integrated orientation.
+	 * 
+	 * @param orientation
+	 *            the orientation (azimuth, pitch, roll) in radians.
+	 */
+	public void getOrientation(float[] orientation)
+	{
+		RotationMath.getOrientation(currentRotationMatrix, orientation);
+	}
+}
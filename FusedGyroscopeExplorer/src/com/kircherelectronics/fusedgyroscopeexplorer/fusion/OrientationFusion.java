@@ -0,0 +1,83 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.fusion;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * An orientation fusion combines the gyroscope with the gravity and magnetic
+ * sensors to produce the orientation of the device. Implementations keep
+ * their own state and are not thread safe; feed them from a single thread.
+ * 
+ * @author Kaleb
+ * @version %I%, %G%
+ */
+public interface OrientationFusion
+{
+	/**
+	 * Reset the fusion to its initial state.
+	 */
+	public void reset();
+
+	/**
+	 * Change the tuning of the fusion. It must be called between
+	 * measurements, the fusion carries on from its current orientation.
+	 * 
+	 * @param config
+	 *            the new configuration.
+	 */
+	public void setConfig(FusionConfig config);
+
+	/**
+	 * Add a magnetic measurement.
+	 * 
+	 * @param magnetic
+	 *            the magnetic measurements (x, y, z).
+	 * @param timeStamp
+	 *            the time stamp of the measurement.
+	 */
+	public void updateMagnetic(float[] magnetic, long timeStamp);
+
+	/**
+	 * Add a gravity measurement.
+	 * 
+	 * @param gravity
+	 *            the gravity values (x, y, z).
+	 * @param timeStamp
+	 *            the time stamp of the measurement.
+	 */
+	public void updateGravity(float[] gravity, long timeStamp);
+
+	/**
+	 * Add a gyroscope measurement and fuse it.
+	 * 
+	 * @param gyroscope
+	 *            the angular speeds (x, y, z) in radians/second.
+	 * @param timeStamp
+	 *            the time stamp of the measurement.
+	 * @return true if a new fused orientation is available.
+	 */
+	public boolean updateGyroscope(float[] gyroscope, long timeStamp);
+
+	/**
+	 * Get the most recent fused orientation.
+	 * 
+	 * @param orientation
+	 *            the fused orientation (azimuth, pitch, roll) in radians.
+	 */
+	public void getFusedOrientation(float[] orientation);
+}
@@ -0,0 +1,145 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.fusion;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Hands the latest orientation from the thread that computes it to a thread
+ * that displays it, without locks and without allocating. There must be a
+ * single writer and a single reader.
+ * 
+ * Three buffers are used. The writer fills its own buffer and swaps it with
+ * the shared one, the reader swaps its own buffer with the shared one when
+ * something new has been published. Neither side ever waits for the other,
+ * the reader just sees the most recent orientation and anything published
+ * in between is skipped.
+ * 
+ * @author Kaleb
+ * @version %I%, %G%
+ */
+public class OrientationHandoff
+{
+	// Set on the shared index when it holds an orientation the reader hasn't
+	// seen.
+	private static final int FRESH = 4;
+
+	private static final int INDEX_MASK = 3;
+
+	private final int size;
+
+	private final float[][] buffers;
+	private final long[] timeStamps;
+
+	// The index of the buffer between the writer and the reader.
+	private final AtomicInteger shared = new AtomicInteger(1);
+
+	// Only touched by the writer.
+	private int writeIndex = 0;
+
+	// Only touched by the reader.
+	private int readIndex = 2;
+
+	// The number of orientations published, only written by the writer.
+	private volatile long publishCount = 0;
+
+	// The number of orientations consumed, only touched by the reader.
+	private long consumeCount = 0;
+
+	/**
+	 * Initialize a new handoff.
+	 * 
+	 * @param size
+	 *            the number of values, 3 for Euler angles.
+	 */
+	public OrientationHandoff(int size)
+	{
+		this.size = size;
+
+		buffers = new float[3][size];
+		timeStamps = new long[3];
+	}
+
+	/**
+	 * Publish a new orientation. Only call this from the writer thread.
+	 * 
+	 * @param values
+	 *            the orientation.
+	 * @param timeStamp
+	 *            the time stamp of the orientation.
+	 */
+	public void publish(float[] values, long timeStamp)
+	{
+		System.arraycopy(values, 0, buffers[writeIndex], 0, size);
+		timeStamps[writeIndex] = timeStamp;
+
+		writeIndex = shared.getAndSet(writeIndex | FRESH) & INDEX_MASK;
+
+		publishCount++;
+	}
+
+	/**
+	 * Take the most recently published orientation if there is one the reader
+	 * hasn't seen yet. Only call this from the reader thread.
+	 * 
+	 * @param values
+	 *            the orientation, left unchanged if nothing new was
+	 *            published.
+	 * @return true if a new orientation was copied into values.
+	 */
+	public boolean consume(float[] values)
+	{
+		if ((shared.get() & FRESH) == 0)
+		{
+			return false;
+		}
+
+		readIndex = shared.getAndSet(readIndex) & INDEX_MASK;
+
+		System.arraycopy(buffers[readIndex], 0, values, 0, size);
+
+		consumeCount++;
+
+		return true;
+	}
+
+	/**
+	 * Get the number of published orientations the reader never saw because
+	 * a newer one replaced them first. Only call this from the reader thread.
+	 * 
+	 * @return the number of coalesced orientations.
+	 */
+	public long getCoalescedCount()
+	{
+		long pending = (shared.get() & FRESH) != 0 ? 1 : 0;
+
+		return Math.max(0, publishCount - consumeCount - pending);
+	}
+
+	/**
+	 * Get the time stamp of the orientation the reader last consumed. Only
+	 * call this from the reader thread.
+	 * 
+	 * @return the time stamp.
+	 */
+	public long getTimeStamp()
+	{
+		return timeStamps[readIndex];
+	}
+}
@@ -0,0 +1,304 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.fusion;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import com.kircherelectronics.fusedgyroscopeexplorer.filter.MeanFilter;
+
+/**
+ * QuaternionComplementaryFilter is a complementary filter that keeps the
+ * orientation of the device as a unit quaternion instead of a rotation matrix
+ * and Euler angles.
+ * 
+ * Each gyroscope delta rotation is integrated by multiplying it into the
+ * quaternion and the result is pulled towards the acceleration/magnetic
+ * orientation with a normalized linear interpolation. Compared to
+ * ComplementaryFilter this avoids converting the delta rotation into a
+ * matrix, extracting Euler angles, blending each angle with wrap-around
+ * checks and rebuilding the matrix from the angles on every sample. The
+ * blend is not done per axis, so it does not break down near +/-90 degrees
+ * of pitch where the Euler angles are degenerate.
+ * 
+ * Euler angles are only computed when getFusedOrientation() is called.
+ * 
+ * @author Kaleb
+ * @version %I%, %G%
+ * @see ComplementaryFilter
+ */
+public class QuaternionComplementaryFilter implements OrientationFusion
+{
+	public static final float FILTER_COEFFICIENT = ComplementaryFilter.FILTER_COEFFICIENT;
+
+	public static final float EPSILON = ComplementaryFilter.EPSILON;
+
+	private static final float NS2S = 1.0f / 1000000000.0f;
+
+	private boolean hasOrientation = false;
+
+	private boolean initState = false;
+
+	private float[] gravity = new float[3];
+
+	private float[] magnetic = new float[3];
+
+	// accelerometer and magnetometer based rotation matrix
+	private float[] rotationMatrix = new float[9];
+
+	// accelerometer and magnetometer based orientation, carried forward by
+	// the gyroscope between solves at a lower attitude rate
+	private float[] accMagQuaternion = new float[4];
+
+	// the fused orientation
+	private float[] quaternion = new float[4];
+
+	// the delta rotation from the current gyroscope measurement
+	private float[] deltaQuaternion = new float[4];
+
+	// scratch quaternion for the products
+	private float[] resultQuaternion = new float[4];
+
+	private long timeStamp;
+
+	// The weight of the gyroscope orientation in the fused orientation.
+	private float filterCoefficient;
+
+	// The angular speed below which the gyroscope is not rotating.
+	private float epsilon;
+
+	private MeanFilter meanFilterAcceleration;
+	private MeanFilter meanFilterMagnetic;
+
+	// Learns the gyroscope bias while the device is stationary.
+	private GyroscopeBiasEstimator biasEstimator = new GyroscopeBiasEstimator();
+	private boolean biasEstimation;
+
+	// The gyroscope measurement with the bias removed.
+	private float[] unbiasedGyroscope = new float[3];
+
+	// Schedules the acceleration/magnetic orientation solves.
+	private RateLimiter attitudeLimiter = new RateLimiter();
+
+	/**
+	 * Initialize a new instance.
+	 */
+	public QuaternionComplementaryFilter()
+	{
+		this(FusionConfig.DEFAULT);
+	}
+
+	/**
+	 * Initialize a new instance with a custom tuning.
+	 * 
+	 * @param config
+	 *            the configuration of the fusion.
+	 */
+	public QuaternionComplementaryFilter(FusionConfig config)
+	{
+		super();
+
+		meanFilterAcceleration = new MeanFilter();
+		meanFilterMagnetic = new MeanFilter();
+
+		setConfig(config);
+
+		reset();
+	}
+
+	/**
+	 * Change the tuning of the filter. Changing the mean filter window
+	 * discards the gravity and magnetic samples smoothed so far.
+	 * 
+	 * @param config
+	 *            the new configuration.
+	 */
+	@Override
+	public void setConfig(FusionConfig config)
+	{
+		filterCoefficient = config.getFilterCoefficient();
+		epsilon = config.getEpsilon();
+		biasEstimation = config.isGyroscopeBiasEstimation();
+
+		attitudeLimiter.setRate(config.getAttitudeRate());
+
+		meanFilterAcceleration.setWindowSize(config.getMeanFilterWindow());
+		meanFilterMagnetic.setWindowSize(config.getMeanFilterWindow());
+	}
+
+	@Override
+	public void reset()
+	{
+		hasOrientation = false;
+		initState = false;
+
+		biasEstimator.reset();
+
+		attitudeLimiter.reset();
+
+		timeStamp = 0;
+
+		setIdentity(quaternion);
+	}
+
+	@Override
+	public void getFusedOrientation(float[] orientation)
+	{
+		RotationMath.getOrientationFromQuaternion(quaternion, orientation);
+	}
+
+	/**
+	 * Get the most recent fused orientation as a quaternion.
+	 * 
+	 * @param quaternion
+	 *            the fused orientation (x, y, z, w).
+	 */
+	public void getFusedQuaternion(float[] quaternion)
+	{
+		System.arraycopy(this.quaternion, 0, quaternion, 0, 4);
+	}
+
+	@Override
+	public void updateMagnetic(float[] magnetic, long timeStamp)
+	{
+		meanFilterMagnetic.filterFloat(magnetic, this.magnetic);
+	}
+
+	@Override
+	public void updateGravity(float[] gravity, long timeStamp)
+	{
+		meanFilterAcceleration.filterFloat(gravity, this.gravity);
+
+		if (biasEstimation)
+		{
+			biasEstimator.updateGravity(gravity);
+		}
+
+		if (isAttitudeDue(timeStamp))
+		{
+			calculateOrientation();
+		}
+	}
+
+	@Override
+	public boolean updateGyroscope(float[] gyroscope, long timeStamp)
+	{
+		// Keep learning the bias while waiting for the first orientation.
+		if (biasEstimation)
+		{
+			biasEstimator.updateGyroscope(gyroscope);
+			biasEstimator.removeBias(gyroscope, unbiasedGyroscope);
+
+			gyroscope = unbiasedGyroscope;
+		}
+
+		// don't start until first accelerometer/magnetometer orientation has
+		// been acquired
+		if (!hasOrientation)
+		{
+			return false;
+		}
+
+		// Start the gyroscope from the acceleration/magnetic orientation.
+		if (!initState)
+		{
+			System.arraycopy(accMagQuaternion, 0, quaternion, 0, 4);
+
+			initState = true;
+		}
+
+		if (this.timeStamp != 0)
+		{
+			float dT = (timeStamp - this.timeStamp) * NS2S;
+
+			RotationMath.getRotationVectorFromGyro(gyroscope, dT / 2.0f,
+					epsilon, deltaQuaternion);
+
+			if (attitudeLimiter.isLimited())
+			{
+				carryAttitudeForward();
+			}
+
+			// Apply the delta rotation in the device frame, the same as
+			// post-multiplying the rotation matrix by the delta matrix.
+			RotationMath.quaternionMultiplication(quaternion, deltaQuaternion,
+					resultQuaternion);
+
+			// Blend with the acceleration/magnetic orientation to compensate
+			// the gyroscope drift. This also re-normalizes the quaternion.
+			RotationMath.nlerp(resultQuaternion, accMagQuaternion,
+					1.0f - filterCoefficient, quaternion);
+		}
+
+		// measurement done, save current time for next interval
+		this.timeStamp = timeStamp;
+
+		return true;
+	}
+
+	/**
+	 * Calculates the orientation from accelerometer and magnetometer output.
+	 */
+	private void calculateOrientation()
+	{
+		if (RotationMath.getRotationMatrix(rotationMatrix, gravity, magnetic))
+		{
+			RotationMath.getQuaternionFromRotationMatrix(rotationMatrix,
+					accMagQuaternion);
+
+			hasOrientation = true;
+		}
+	}
+
+	/**
+	 * Rotate the most recent acceleration/magnetic orientation by the
+	 * gyroscope delta rotation, so the blend towards a solve made at a lower
+	 * attitude rate isn't pulled back to where the device was when it was
+	 * solved.
+	 */
+	private void carryAttitudeForward()
+	{
+		RotationMath.quaternionMultiplication(accMagQuaternion,
+				deltaQuaternion, resultQuaternion);
+		System.arraycopy(resultQuaternion, 0, accMagQuaternion, 0, 4);
+
+		RotationMath.normalizeQuaternion(accMagQuaternion);
+	}
+
+	/**
+	 * Decide if the acceleration/magnetic orientation is due to be solved
+	 * again at a time stamp. Until there is an orientation it is solved on
+	 * every measurement.
+	 */
+	private boolean isAttitudeDue(long timeStamp)
+	{
+		return !hasOrientation || attitudeLimiter.isDue(timeStamp);
+	}
+
+	/**
+	 * Set the quaternion to the identity rotation.
+	 * 
+	 * @param q
+	 *            the quaternion (x, y, z, w).
+	 */
+	private static void setIdentity(float[] q)
+	{
+		q[0] = 0.0f;
+		q[1] = 0.0f;
+		q[2] = 0.0f;
+		q[3] = 1.0f;
+	}
+}
@@ -0,0 +1,110 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.fusion;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * RateLimiter decides when work that should run at a lower rate than the
+ * measurements is due. The schedule is kept against the measurement time
+ * stamps, not the clock, so it behaves the same when a recorded session is
+ * replayed faster than real time.
+ *
+ * @author Kaleb
+ * @version %I%, %G%
+ */
+public class RateLimiter
+{
+	// The minimum time between due measurements in nanoseconds, 0 for no
+	// limit.
+	private long periodNs;
+
+	// The time stamp the next measurement is due at.
+	private long nextTimeStamp;
+
+	/**
+	 * Initialize a new instance without a limit.
+	 */
+	public RateLimiter()
+	{
+		super();
+
+		reset();
+	}
+
+	/**
+	 * Set the rate and start the schedule over.
+	 *
+	 * @param rate
+	 *            the rate in Hz, 0 for no limit.
+	 */
+	public void setRate(float rate)
+	{
+		periodNs = rate > 0 ? (long) (1000000000.0 / rate) : 0;
+
+		reset();
+	}
+
+	/**
+	 * Indicates if there is a limit.
+	 *
+	 * @return true if not every measurement is due.
+	 */
+	public boolean isLimited()
+	{
+		return periodNs > 0;
+	}
+
+	/**
+	 * Start the schedule over, the next measurement is due.
+	 */
+	public void reset()
+	{
+		nextTimeStamp = Long.MIN_VALUE;
+	}
+
+	/**
+	 * Decide if a measurement is due, and account for it if it is.
+	 *
+	 * @param timeStamp
+	 *            the time stamp of the measurement in nanoseconds.
+	 * @return true if the measurement is due.
+	 */
+	public boolean isDue(long timeStamp)
+	{
+		if (periodNs == 0)
+		{
+			return true;
+		}
+
+		if (timeStamp < nextTimeStamp)
+		{
+			return false;
+		}
+
+		// Keep to the rate on average, but don't try to catch up after a gap
+		// in the measurements.
+		nextTimeStamp += periodNs;
+
+		if (nextTimeStamp <= timeStamp)
+		{
+			nextTimeStamp = timeStamp + periodNs;
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,612 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.fusion;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * getRotationMatrix(), getOrientation() and getRotationMatrixFromVector() are
+ * adapted from android.hardware.SensorManager:
+ *
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Rotation maths used by the sensor fusions. These are plain Java versions of
+ * the transforms Android provides in SensorManager, so the fusions can run,
+ * be tested and be profiled on a normal JVM as well as on a device. All of the
+ * methods write into arrays provided by the caller and never allocate.
+ * 
+ * Rotation matrices are 3x3, row-major and stored in float[9], the same
+ * layout SensorManager uses.
+ * 
+ * @author Kaleb
+ * @version %I%, %G%
+ * @see http://developer.android.com/reference/android/hardware/SensorManager.html
+ */
+public final class RotationMath
+{
+	// Standard gravity, the same value as SensorManager.GRAVITY_EARTH.
+	public static final float GRAVITY_EARTH = 9.80665f;
+
+	// Below this the device is considered to be in free fall and the gravity
+	// vector can not be used to find the orientation.
+	private static final float FREE_FALL_GRAVITY_SQUARED = 0.01f
+			* GRAVITY_EARTH * GRAVITY_EARTH;
+
+	private static final double TWO_PI = 2.0 * Math.PI;
+
+	private RotationMath()
+	{
+	}
+
+	/**
+	 * Computes the rotation matrix transforming a vector from the device
+	 * coordinate system to the world's coordinate system from the gravity and
+	 * geomagnetic vectors. Equivalent to SensorManager.getRotationMatrix()
+	 * without the inclination matrix.
+	 * 
+	 * @param R
+	 *            the rotation matrix, float[9].
+	 * @param gravity
+	 *            the gravity vector in device coordinates.
+	 * @param geomagnetic
+	 *            the geomagnetic vector in device coordinates.
+	 * @return true on success, false on failure (for instance, if the device
+	 *         is in free fall or close to magnetic north). On failure the
+	 *         output matrix is not modified.
+	 */
+	public static boolean getRotationMatrix(float[] R, float[] gravity,
+			float[] geomagnetic)
+	{
+		float Ax = gravity[0];
+		float Ay = gravity[1];
+		float Az = gravity[2];
+
+		final float normsqA = (Ax * Ax + Ay * Ay + Az * Az);
+
+		if (normsqA < FREE_FALL_GRAVITY_SQUARED)
+		{
+			// gravity less than 10% of normal value
+			return false;
+		}
+
+		final float Ex = geomagnetic[0];
+		final float Ey = geomagnetic[1];
+		final float Ez = geomagnetic[2];
+
+		float Hx = Ey * Az - Ez * Ay;
+		float Hy = Ez * Ax - Ex * Az;
+		float Hz = Ex * Ay - Ey * Ax;
+
+		final float normH = (float) Math.sqrt(Hx * Hx + Hy * Hy + Hz * Hz);
+
+		if (normH < 0.1f)
+		{
+			// device is close to free fall (or in space?), or close to
+			// magnetic north pole. Typical values are > 100.
+			return false;
+		}
+
+		final float invH = 1.0f / normH;
+		Hx *= invH;
+		Hy *= invH;
+		Hz *= invH;
+
+		final float invA = 1.0f / (float) Math.sqrt(normsqA);
+		Ax *= invA;
+		Ay *= invA;
+		Az *= invA;
+
+		final float Mx = Ay * Hz - Az * Hy;
+		final float My = Az * Hx - Ax * Hz;
+		final float Mz = Ax * Hy - Ay * Hx;
+
+		R[0] = Hx;
+		R[1] = Hy;
+		R[2] = Hz;
+		R[3] = Mx;
+		R[4] = My;
+		R[5] = Mz;
+		R[6] = Ax;
+		R[7] = Ay;
+		R[8] = Az;
+
+		return true;
+	}
+
+	/**
+	 * Computes the device's orientation based on the rotation matrix.
+	 * Equivalent to SensorManager.getOrientation().
+	 * 
+	 * values[0]: azimuth, rotation around the Z axis.
+	 * values[1]: pitch, rotation around the X axis.
+	 * values[2]: roll, rotation around the Y axis.
+	 * 
+	 * @param R
+	 *            the rotation matrix, float[9].
+	 * @param values
+	 *            the orientation in radians, float[3].
+	 */
+	public static void getOrientation(float[] R, float[] values)
+	{
+		values[0] = (float) Math.atan2(R[1], R[4]);
+		values[1] = (float) Math.asin(-R[7]);
+		values[2] = (float) Math.atan2(-R[6], R[8]);
+	}
+
+	/**
+	 * Converts a rotation vector (the vector part of a unit quaternion,
+	 * optionally followed by the scalar part) into a rotation matrix.
+	 * Equivalent to SensorManager.getRotationMatrixFromVector() for a 3x3
+	 * matrix.
+	 * 
+	 * @param R
+	 *            the rotation matrix, float[9].
+	 * @param rotationVector
+	 *            the rotation vector, float[3] or float[4].
+	 */
+	public static void getRotationMatrixFromVector(float[] R,
+			float[] rotationVector)
+	{
+		float q0;
+		float q1 = rotationVector[0];
+		float q2 = rotationVector[1];
+		float q3 = rotationVector[2];
+
+		if (rotationVector.length >= 4)
+		{
+			q0 = rotationVector[3];
+		}
+		else
+		{
+			q0 = 1 - q1 * q1 - q2 * q2 - q3 * q3;
+			q0 = (q0 > 0) ? (float) Math.sqrt(q0) : 0;
+		}
+
+		float sq_q1 = 2 * q1 * q1;
+		float sq_q2 = 2 * q2 * q2;
+		float sq_q3 = 2 * q3 * q3;
+		float q1_q2 = 2 * q1 * q2;
+		float q3_q0 = 2 * q3 * q0;
+		float q1_q3 = 2 * q1 * q3;
+		float q2_q0 = 2 * q2 * q0;
+		float q2_q3 = 2 * q2 * q3;
+		float q1_q0 = 2 * q1 * q0;
+
+		R[0] = 1 - sq_q2 - sq_q3;
+		R[1] = q1_q2 - q3_q0;
+		R[2] = q1_q3 + q2_q0;
+
+		R[3] = q1_q2 + q3_q0;
+		R[4] = 1 - sq_q1 - sq_q3;
+		R[5] = q2_q3 - q1_q0;
+
+		R[6] = q1_q3 - q2_q0;
+		R[7] = q2_q3 + q1_q0;
+		R[8] = 1 - sq_q1 - sq_q2;
+	}
+
+	/**
+	 * Get the rotation matrix from an orientation. Android Sensor Manager does
+	 * not provide a method to transform the orientation into a rotation
+	 * matrix, only the orientation from a rotation matrix. The basic rotations
+	 * can be found in Wikipedia with the caveat that the rotations are
+	 * *transposed* relative to what is required for this method.
+	 * 
+	 * The composite rotation is azimuth * (pitch * roll), expanded here so it
+	 * costs no intermediate matrices.
+	 * 
+	 * @param orientation
+	 *            the orientation (azimuth, pitch, roll).
+	 * @param R
+	 *            the rotation matrix, float[9].
+	 * 
+	 * @see http://en.wikipedia.org/wiki/Rotation_matrix
+	 */
+	public static void getRotationMatrixFromOrientation(float[] orientation,
+			float[] R)
+	{
+		float sinX = (float) Math.sin(orientation[1]);
+		float cosX = (float) Math.cos(orientation[1]);
+		float sinY = (float) Math.sin(orientation[2]);
+		float cosY = (float) Math.cos(orientation[2]);
+		float sinZ = (float) Math.sin(orientation[0]);
+		float cosZ = (float) Math.cos(orientation[0]);
+
+		R[0] = cosZ * cosY - sinZ * sinX * sinY;
+		R[1] = sinZ * cosX;
+		R[2] = cosZ * sinY + sinZ * sinX * cosY;
+
+		R[3] = -sinZ * cosY - cosZ * sinX * sinY;
+		R[4] = cosZ * cosX;
+		R[5] = -sinZ * sinY + cosZ * sinX * cosY;
+
+		R[6] = -cosX * sinY;
+		R[7] = -sinX;
+		R[8] = cosX * cosY;
+	}
+
+	/**
+	 * Calculates the delta rotation, as a quaternion, from the gyroscope
+	 * angular speeds over a time step. The angular speeds are not modified.
+	 * 
+	 * @param gyroscope
+	 *            the angular speeds in radians/second.
+	 * @param timeFactor
+	 *            half of the time step in seconds.
+	 * @param epsilon
+	 *            the smallest angular speed with a usable axis.
+	 * @param deltaVector
+	 *            the delta rotation quaternion (x, y, z, w), float[4].
+	 * @see http://developer.android
+	 *      .com/reference/android/hardware/SensorEvent.html#values
+	 */
+	public static void getRotationVectorFromGyro(float[] gyroscope,
+			float timeFactor, float epsilon, float[] deltaVector)
+	{
+		// Axis of the rotation sample, not normalized yet.
+		float axisX = gyroscope[0];
+		float axisY = gyroscope[1];
+		float axisZ = gyroscope[2];
+
+		// Calculate the angular speed of the sample
+		float omegaMagnitude = (float) Math.sqrt(axisX * axisX + axisY * axisY
+				+ axisZ * axisZ);
+
+		// Normalize the rotation vector if it's big enough to get the axis
+		if (omegaMagnitude > epsilon)
+		{
+			axisX /= omegaMagnitude;
+			axisY /= omegaMagnitude;
+			axisZ /= omegaMagnitude;
+		}
+
+		// Integrate around this axis with the angular speed by the timestep
+		// in order to get a delta rotation from this sample over the timestep
+		// We will convert this axis-angle representation of the delta rotation
+		// into a quaternion before turning it into the rotation matrix.
+		float thetaOverTwo = omegaMagnitude * timeFactor;
+		float sinThetaOverTwo = (float) Math.sin(thetaOverTwo);
+		float cosThetaOverTwo = (float) Math.cos(thetaOverTwo);
+
+		deltaVector[0] = sinThetaOverTwo * axisX;
+		deltaVector[1] = sinThetaOverTwo * axisY;
+		deltaVector[2] = sinThetaOverTwo * axisZ;
+		deltaVector[3] = cosThetaOverTwo;
+	}
+
+	/**
+	 * Multiply A by B. The result must not be the same array as A or B.
+	 * Android gives us matrices results in one-dimensional arrays instead of
+	 * two, so we just use a static linear time method.
+	 * 
+	 * @param A
+	 * @param B
+	 * @param result
+	 *            A*B
+	 */
+	public static void matrixMultiplication(float[] A, float[] B,
+			float[] result)
+	{
+		result[0] = A[0] * B[0] + A[1] * B[3] + A[2] * B[6];
+		result[1] = A[0] * B[1] + A[1] * B[4] + A[2] * B[7];
+		result[2] = A[0] * B[2] + A[1] * B[5] + A[2] * B[8];
+
+		result[3] = A[3] * B[0] + A[4] * B[3] + A[5] * B[6];
+		result[4] = A[3] * B[1] + A[4] * B[4] + A[5] * B[7];
+		result[5] = A[3] * B[2] + A[4] * B[5] + A[5] * B[8];
+
+		result[6] = A[6] * B[0] + A[7] * B[3] + A[8] * B[6];
+		result[7] = A[6] * B[1] + A[7] * B[4] + A[8] * B[7];
+		result[8] = A[6] * B[2] + A[7] * B[5] + A[8] * B[8];
+	}
+
+	/**
+	 * Set the matrix to the identity matrix.
+	 * 
+	 * @param R
+	 *            the matrix, float[9].
+	 */
+	public static void setIdentity(float[] R)
+	{
+		R[0] = 1.0f;
+		R[1] = 0.0f;
+		R[2] = 0.0f;
+		R[3] = 0.0f;
+		R[4] = 1.0f;
+		R[5] = 0.0f;
+		R[6] = 0.0f;
+		R[7] = 0.0f;
+		R[8] = 1.0f;
+	}
+
+	/**
+	 * Pull a nearly orthonormal rotation matrix back to orthonormal. The
+	 * error between the first two rows is split evenly between them, the
+	 * third row is rebuilt as their cross product and each row is scaled to
+	 * unit length with a first order approximation of 1/sqrt(), so it takes
+	 * no square roots or divisions. Only accurate for the small errors that
+	 * a few time steps of rounding and first order corrections build up.
+	 * 
+	 * @param R
+	 *            the rotation matrix, float[9], corrected in place.
+	 */
+	public static void orthonormalize(float[] R)
+	{
+		float halfError = (R[0] * R[3] + R[1] * R[4] + R[2] * R[5]) / 2;
+
+		float x0 = R[0] - halfError * R[3];
+		float x1 = R[1] - halfError * R[4];
+		float x2 = R[2] - halfError * R[5];
+
+		float y0 = R[3] - halfError * R[0];
+		float y1 = R[4] - halfError * R[1];
+		float y2 = R[5] - halfError * R[2];
+
+		float z0 = x1 * y2 - x2 * y1;
+		float z1 = x2 * y0 - x0 * y2;
+		float z2 = x0 * y1 - x1 * y0;
+
+		float scale = (3 - (x0 * x0 + x1 * x1 + x2 * x2)) / 2;
+
+		R[0] = x0 * scale;
+		R[1] = x1 * scale;
+		R[2] = x2 * scale;
+
+		scale = (3 - (y0 * y0 + y1 * y1 + y2 * y2)) / 2;
+
+		R[3] = y0 * scale;
+		R[4] = y1 * scale;
+		R[5] = y2 * scale;
+
+		scale = (3 - (z0 * z0 + z1 * z1 + z2 * z2)) / 2;
+
+		R[6] = z0 * scale;
+		R[7] = z1 * scale;
+		R[8] = z2 * scale;
+	}
+
+	/**
+	 * Multiply quaternion a by quaternion b (Hamilton product). Quaternions
+	 * are stored (x, y, z, w), the same layout as a rotation vector, and the
+	 * product composes rotations the same way as multiplying their matrices.
+	 * The result must not be the same array as a or b.
+	 * 
+	 * @param a
+	 * @param b
+	 * @param result
+	 *            a*b
+	 */
+	public static void quaternionMultiplication(float[] a, float[] b,
+			float[] result)
+	{
+		result[0] = a[3] * b[0] + a[0] * b[3] + a[1] * b[2] - a[2] * b[1];
+		result[1] = a[3] * b[1] - a[0] * b[2] + a[1] * b[3] + a[2] * b[0];
+		result[2] = a[3] * b[2] + a[0] * b[1] - a[1] * b[0] + a[2] * b[3];
+		result[3] = a[3] * b[3] - a[0] * b[0] - a[1] * b[1] - a[2] * b[2];
+	}
+
+	/**
+	 * Scale a quaternion to unit length.
+	 * 
+	 * @param q
+	 *            the quaternion (x, y, z, w).
+	 */
+	public static void normalizeQuaternion(float[] q)
+	{
+		float norm = (float) Math.sqrt(q[0] * q[0] + q[1] * q[1] + q[2]
+				* q[2] + q[3] * q[3]);
+
+		if (norm > 0)
+		{
+			float invNorm = 1.0f / norm;
+
+			q[0] *= invNorm;
+			q[1] *= invNorm;
+			q[2] *= invNorm;
+			q[3] *= invNorm;
+		}
+	}
+
+	/**
+	 * Normalized linear interpolation from quaternion a towards quaternion b,
+	 * taking the shorter way around. For the small angles between successive
+	 * fused orientations this is indistinguishable from a SLERP and costs no
+	 * trigonometry.
+	 * 
+	 * @param a
+	 *            the quaternion to start from.
+	 * @param b
+	 *            the quaternion to move towards.
+	 * @param t
+	 *            the weight of b, 0 to 1.
+	 * @param result
+	 *            the interpolated unit quaternion, can be the same array as a
+	 *            or b.
+	 */
+	public static void nlerp(float[] a, float[] b, float t, float[] result)
+	{
+		float dot = a[0] * b[0] + a[1] * b[1] + a[2] * b[2] + a[3] * b[3];
+
+		// q and -q are the same rotation, go the short way.
+		float tb = (dot < 0) ? -t : t;
+		float ta = 1.0f - t;
+
+		result[0] = ta * a[0] + tb * b[0];
+		result[1] = ta * a[1] + tb * b[1];
+		result[2] = ta * a[2] + tb * b[2];
+		result[3] = ta * a[3] + tb * b[3];
+
+		normalizeQuaternion(result);
+	}
+
+	/**
+	 * Convert a rotation matrix into a unit quaternion.
+	 * 
+	 * @param R
+	 *            the rotation matrix, float[9].
+	 * @param q
+	 *            the quaternion (x, y, z, w), float[4].
+	 * @see http://www.euclideanspace.com/maths/geometry/rotations/conversions/matrixToQuaternion/
+	 */
+	public static void getQuaternionFromRotationMatrix(float[] R, float[] q)
+	{
+		float trace = R[0] + R[4] + R[8];
+
+		if (trace > 0)
+		{
+			float s = 0.5f / (float) Math.sqrt(trace + 1.0f);
+
+			q[3] = 0.25f / s;
+			q[0] = (R[7] - R[5]) * s;
+			q[1] = (R[2] - R[6]) * s;
+			q[2] = (R[3] - R[1]) * s;
+		}
+		else if (R[0] > R[4] && R[0] > R[8])
+		{
+			float s = 2.0f * (float) Math.sqrt(1.0f + R[0] - R[4] - R[8]);
+
+			q[3] = (R[7] - R[5]) / s;
+			q[0] = 0.25f * s;
+			q[1] = (R[1] + R[3]) / s;
+			q[2] = (R[2] + R[6]) / s;
+		}
+		else if (R[4] > R[8])
+		{
+			float s = 2.0f * (float) Math.sqrt(1.0f + R[4] - R[0] - R[8]);
+
+			q[3] = (R[2] - R[6]) / s;
+			q[0] = (R[1] + R[3]) / s;
+			q[1] = 0.25f * s;
+			q[2] = (R[5] + R[7]) / s;
+		}
+		else
+		{
+			float s = 2.0f * (float) Math.sqrt(1.0f + R[8] - R[0] - R[4]);
+
+			q[3] = (R[3] - R[1]) / s;
+			q[0] = (R[2] + R[6]) / s;
+			q[1] = (R[5] + R[7]) / s;
+			q[2] = 0.25f * s;
+		}
+
+		normalizeQuaternion(q);
+	}
+
+	/**
+	 * Computes the device's orientation from a unit quaternion, the same
+	 * angles getOrientation() returns for the equivalent rotation matrix but
+	 * only the five matrix elements that are needed are computed.
+	 * 
+	 * @param q
+	 *            the quaternion (x, y, z, w).
+	 * @param values
+	 *            the orientation (azimuth, pitch, roll) in radians, float[3].
+	 */
+	public static void getOrientationFromQuaternion(float[] q, float[] values)
+	{
+		float x = q[0];
+		float y = q[1];
+		float z = q[2];
+		float w = q[3];
+
+		float r1 = 2 * (x * y - z * w);
+		float r4 = 1 - 2 * (x * x + z * z);
+		float r6 = 2 * (x * z - y * w);
+		float r7 = 2 * (y * z + x * w);
+		float r8 = 1 - 2 * (x * x + y * y);
+
+		// Rounding can push the element just outside of asin()'s domain.
+		if (r7 > 1.0f)
+		{
+			r7 = 1.0f;
+		}
+		else if (r7 < -1.0f)
+		{
+			r7 = -1.0f;
+		}
+
+		values[0] = (float) Math.atan2(r1, r4);
+		values[1] = (float) Math.asin(-r7);
+		values[2] = (float) Math.atan2(-r6, r8);
+	}
+
+	/**
+	 * Blend the gyroscope and acceleration/magnetic orientations with a
+	 * complementary filter.
+	 * 
+	 * Fix for 179 <--> -179 degree transition problem: Check whether one of
+	 * the two orientation angles (gyro or accMag) is negative while the other
+	 * one is positive. If so, add 360 degrees (2 * math.PI) to the negative
+	 * value, perform the sensor fusion, and remove the 360 degrees from the
+	 * result if it is greater than 180 degrees. This stabilizes the output in
+	 * positive-to-negative-transition cases.
+	 * 
+	 * @param gyroOrientation
+	 *            the orientation from the gyroscope.
+	 * @param orientation
+	 *            the orientation from the acceleration and magnetic sensors.
+	 * @param coefficient
+	 *            the weight of the gyroscope orientation, 0 to 1.
+	 * @param fusedOrientation
+	 *            the fused orientation, can be the same array as either input.
+	 */
+	public static void fuseOrientation(float[] gyroOrientation,
+			float[] orientation, float coefficient, float[] fusedOrientation)
+	{
+		float oneMinusCoeff = (1.0f - coefficient);
+
+		for (int i = 0; i < 3; i++)
+		{
+			float gyro = gyroOrientation[i];
+			float accMag = orientation[i];
+
+			if (gyro < -0.5 * Math.PI && accMag > 0.0)
+			{
+				float fused = (float) (coefficient * (gyro + TWO_PI) + oneMinusCoeff
+						* accMag);
+				fusedOrientation[i] = (float) (fused - ((fused > Math.PI) ? TWO_PI
+						: 0));
+			}
+			else if (accMag < -0.5 * Math.PI && gyro > 0.0)
+			{
+				float fused = (float) (coefficient * gyro + oneMinusCoeff
+						* (accMag + TWO_PI));
+				fusedOrientation[i] = (float) (fused - ((fused > Math.PI) ? TWO_PI
+						: 0));
+			}
+			else
+			{
+				fusedOrientation[i] = coefficient * gyro + oneMinusCoeff
+						* accMag;
+			}
+		}
+	}
+}
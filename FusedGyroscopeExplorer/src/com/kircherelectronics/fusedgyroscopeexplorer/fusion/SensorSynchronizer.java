@@ -0,0 +1,465 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.fusion;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Sensor Synchronizer lines the gravity and magnetic measurements up with
+ * the gyroscope before they reach another OrientationFusion. Without it the
+ * fusion takes whatever gravity and magnetic values were measured last,
+ * which can be tens of milliseconds older or newer than the gyroscope
+ * measurement, and under fast motion that shows up as lag.
+ *
+ * Each gyroscope measurement is held back until the gravity and magnetic
+ * sensors have both measured at or after its time stamp, or until it is
+ * older than the synchronization delay of the FusionConfig. The gravity and
+ * magnetic values are then interpolated linearly to its time stamp and the
+ * fusion gets the aligned tuple of magnetic, gravity and gyroscope in that
+ * order. A gravity value is only passed on when the gravity sensor has
+ * measured again since the last one, and a magnetic value when the
+ * magnetometer has or when a gravity value is, since the gravity value
+ * triggers the acceleration/magnetic solve. The fusion therefore sees the
+ * other sensors at about their own rates, and the solves run no more often
+ * than without synchronization however fast the gyroscope is. With a delay
+ * of 0 every measurement is passed straight through.
+ *
+ * One gyroscope measurement can release several that were waiting, so the
+ * return value of updateGyroscope() only says that at least one fused
+ * orientation is new. An Observer is told about each of them in turn, while
+ * the fusion is still at that orientation.
+ *
+ * Batched sensors deliver their measurements a sensor at a time, and the
+ * gyroscope batch usually arrives before the gravity and magnetic batches
+ * that cover it. Between hold() and release() the gyroscope measurements
+ * wait for the other sensors however old they are, so the batches of all
+ * three sensors can be fed in before anything goes out on the deadline with
+ * held values. The buffers are sized for a batch of 100 ms at
+ * SENSOR_DELAY_FASTEST; a longer batch makes room by passing on its oldest
+ * measurements unaligned.
+ *
+ * The measurements are kept in small fixed rings of primitives, so nothing
+ * is allocated once the sensors are running. Measurements older than the
+ * newest one of the same sensor are dropped.
+ *
+ * @author Kaleb
+ * @version %I%, %G%
+ * @see FusionConfig.Builder#setSynchronizationDelay(int)
+ */
+public class SensorSynchronizer implements OrientationFusion
+{
+	// The number of measurements kept of each sensor. A power of two.
+	private static final int BUFFER_SIZE = 128;
+
+	/**
+	 * An observer of the fused orientations.
+	 */
+	public interface Observer
+	{
+		/**
+		 * Notify the observer of a new fused orientation. It can be read
+		 * with getFusedOrientation() until the method returns.
+		 * 
+		 * @param timeStamp
+		 *            the time stamp of the gyroscope measurement the
+		 *            orientation belongs to.
+		 */
+		public void onFusedOrientation(long timeStamp);
+	}
+
+	private OrientationFusion fusion;
+
+	private Observer observer;
+
+	// How long a gyroscope measurement may wait, in nanoseconds, 0 to pass
+	// every measurement straight through.
+	private long delayNs;
+
+	private SampleBuffer gravity = new SampleBuffer();
+	private SampleBuffer magnetic = new SampleBuffer();
+
+	// The gyroscope measurements that are waiting, oldest first.
+	private SampleBuffer gyroscope = new SampleBuffer();
+
+	// True between hold() and release().
+	private boolean holding;
+
+	// The time stamp of the last gyroscope measurement passed on.
+	private long timeStamp;
+
+	private float[] sample = new float[3];
+	private float[] gravitySample = new float[3];
+
+	/**
+	 * Initialize a new instance.
+	 *
+	 * @param fusion
+	 *            the fusion the aligned measurements are passed to.
+	 * @param config
+	 *            the configuration of the fusion.
+	 */
+	public SensorSynchronizer(OrientationFusion fusion, FusionConfig config)
+	{
+		super();
+
+		this.fusion = fusion;
+
+		delayNs = config.getSynchronizationDelay() * 1000000L;
+	}
+
+	/**
+	 * Get the fusion the aligned measurements are passed to.
+	 *
+	 * @return the fusion.
+	 */
+	public OrientationFusion getFusion()
+	{
+		return fusion;
+	}
+
+	/**
+	 * Set the observer of the fused orientations.
+	 * 
+	 * @param observer
+	 *            the observer, or null for none.
+	 */
+	public void setObserver(Observer observer)
+	{
+		this.observer = observer;
+	}
+
+	/**
+	 * Hold the gyroscope measurements back until they can be aligned, past
+	 * the synchronization delay, until release() is called.
+	 */
+	public void hold()
+	{
+		holding = true;
+	}
+
+	/**
+	 * Stop holding the gyroscope measurements back, and pass on those that
+	 * can be aligned or are older than the synchronization delay.
+	 * 
+	 * @return true if a new fused orientation is available.
+	 */
+	public boolean release()
+	{
+		holding = false;
+
+		if (gyroscope.size() == 0)
+		{
+			return false;
+		}
+
+		return release(gyroscope.getNewestTimeStamp() - delayNs);
+	}
+
+	/**
+	 * Get the time stamp of the gyroscope measurement the fused orientation
+	 * belongs to, which is behind the newest measurement while measurements
+	 * are held back.
+	 *
+	 * @return the time stamp.
+	 */
+	public long getTimeStamp()
+	{
+		return timeStamp;
+	}
+
+	@Override
+	public void reset()
+	{
+		clear();
+
+		holding = false;
+		timeStamp = 0;
+
+		fusion.reset();
+	}
+
+	@Override
+	public void setConfig(FusionConfig config)
+	{
+		long delayNs = config.getSynchronizationDelay() * 1000000L;
+
+		if (delayNs != this.delayNs)
+		{
+			// Hand over whatever is waiting before the rules change.
+			release(Long.MAX_VALUE);
+
+			clear();
+
+			this.delayNs = delayNs;
+		}
+
+		fusion.setConfig(config);
+	}
+
+	@Override
+	public void updateMagnetic(float[] magnetic, long timeStamp)
+	{
+		if (delayNs == 0)
+		{
+			fusion.updateMagnetic(magnetic, timeStamp);
+
+			return;
+		}
+
+		this.magnetic.add(magnetic, timeStamp);
+	}
+
+	@Override
+	public void updateGravity(float[] gravity, long timeStamp)
+	{
+		if (delayNs == 0)
+		{
+			fusion.updateGravity(gravity, timeStamp);
+
+			return;
+		}
+
+		this.gravity.add(gravity, timeStamp);
+	}
+
+	@Override
+	public boolean updateGyroscope(float[] gyroscope, long timeStamp)
+	{
+		if (delayNs == 0)
+		{
+			return fuse(gyroscope, timeStamp);
+		}
+
+		boolean updated = false;
+
+		// Make room by handing over the oldest measurement without waiting.
+		if (this.gyroscope.size() == BUFFER_SIZE)
+		{
+			updated |= release(this.gyroscope
+					.getTimeStamp(this.gyroscope.first));
+		}
+
+		this.gyroscope.add(gyroscope, timeStamp);
+
+		updated |= release(holding ? Long.MIN_VALUE : timeStamp - delayNs);
+
+		return updated;
+	}
+
+	@Override
+	public void getFusedOrientation(float[] orientation)
+	{
+		fusion.getFusedOrientation(orientation);
+	}
+
+	/**
+	 * Pass on the waiting gyroscope measurements that can be aligned, and
+	 * those at or before the deadline whether they can be or not.
+	 *
+	 * @return true if a new fused orientation is available.
+	 */
+	private boolean release(long deadline)
+	{
+		boolean updated = false;
+
+		while (gyroscope.size() > 0)
+		{
+			int index = gyroscope.first & (BUFFER_SIZE - 1);
+			long timeStamp = gyroscope.timeStamps[index];
+
+			if (timeStamp > deadline
+					&& (timeStamp > gravity.getNewestTimeStamp() || timeStamp > magnetic
+							.getNewestTimeStamp()))
+			{
+				break;
+			}
+
+			boolean newGravity = gravity.interpolate(timeStamp,
+					gravitySample, true);
+
+			if (magnetic.interpolate(timeStamp, sample, !newGravity))
+			{
+				fusion.updateMagnetic(sample, timeStamp);
+			}
+
+			if (newGravity)
+			{
+				fusion.updateGravity(gravitySample, timeStamp);
+			}
+
+			System.arraycopy(gyroscope.values, index * 3, sample, 0, 3);
+
+			gyroscope.first++;
+
+			updated |= fuse(sample, timeStamp);
+		}
+
+		return updated;
+	}
+
+	/**
+	 * Pass a gyroscope measurement on to the fusion and tell the observer
+	 * about the orientation.
+	 * 
+	 * @return true if a new fused orientation is available.
+	 */
+	private boolean fuse(float[] gyroscope, long timeStamp)
+	{
+		if (!fusion.updateGyroscope(gyroscope, timeStamp))
+		{
+			return false;
+		}
+
+		this.timeStamp = timeStamp;
+
+		if (observer != null)
+		{
+			observer.onFusedOrientation(timeStamp);
+		}
+
+		return true;
+	}
+
+	private void clear()
+	{
+		gravity.clear();
+		magnetic.clear();
+		gyroscope.clear();
+	}
+
+	/**
+	 * A ring of the most recent measurements of one sensor. Measurements are
+	 * numbered in the order they were added, the one numbered n is at index
+	 * n modulo BUFFER_SIZE.
+	 */
+	private static class SampleBuffer
+	{
+		private long[] timeStamps = new long[BUFFER_SIZE];
+		private float[] values = new float[BUFFER_SIZE * 3];
+
+		// The number of measurements added since the buffer was cleared.
+		private int count;
+
+		// The number of the oldest measurement still waiting for the
+		// gyroscope, or not yet passed on for the gravity and magnetic
+		// sensors.
+		private int first;
+
+		private void clear()
+		{
+			count = 0;
+			first = 0;
+		}
+
+		private int size()
+		{
+			return count - first;
+		}
+
+		private long getTimeStamp(int sequence)
+		{
+			return timeStamps[sequence & (BUFFER_SIZE - 1)];
+		}
+
+		private long getNewestTimeStamp()
+		{
+			return count > 0 ? getTimeStamp(count - 1) : Long.MIN_VALUE;
+		}
+
+		private void add(float[] values, long timeStamp)
+		{
+			if (count > 0 && timeStamp <= getNewestTimeStamp())
+			{
+				return;
+			}
+
+			int index = count & (BUFFER_SIZE - 1);
+
+			timeStamps[index] = timeStamp;
+
+			System.arraycopy(values, 0, this.values, index * 3, 3);
+
+			count++;
+
+			// The oldest measurement has been overwritten.
+			if (count - first > BUFFER_SIZE)
+			{
+				first = count - BUFFER_SIZE;
+			}
+		}
+
+		/**
+		 * Interpolate the measurements linearly to a time stamp, and count
+		 * the measurements up to it as passed on. After the newest
+		 * measurement its values are held rather than extrapolated.
+		 *
+		 * @param onlyNew
+		 *            true to only interpolate if a measurement at or before
+		 *            the time stamp hasn't been passed on yet.
+		 * @return false if there is no measurement at or before the time
+		 *         stamp, or no new one.
+		 */
+		private boolean interpolate(long timeStamp, float[] result,
+				boolean onlyNew)
+		{
+			int available = Math.min(count, BUFFER_SIZE);
+
+			for (int i = 1; i <= available; i++)
+			{
+				int sequence = count - i;
+				int index = sequence & (BUFFER_SIZE - 1);
+				long before = timeStamps[index];
+
+				if (before > timeStamp)
+				{
+					continue;
+				}
+
+				if (onlyNew && sequence < first)
+				{
+					return false;
+				}
+
+				first = Math.max(first, sequence + 1);
+
+				if (i == 1)
+				{
+					System.arraycopy(values, index * 3, result, 0, 3);
+
+					return true;
+				}
+
+				int next = (sequence + 1) & (BUFFER_SIZE - 1);
+
+				float fraction = (float) (timeStamp - before)
+						/ (timeStamps[next] - before);
+
+				for (int j = 0; j < 3; j++)
+				{
+					float value = values[index * 3 + j];
+
+					result[j] = value + fraction
+							* (values[next * 3 + j] - value);
+				}
+
+				return true;
+			}
+
+			return false;
+		}
+	}
+}
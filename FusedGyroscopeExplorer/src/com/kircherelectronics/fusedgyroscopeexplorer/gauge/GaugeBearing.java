@@ -117,7 +117,8 @@ public final class GaugeBearing extends View
 	private RectF rimOuterLeftRect;
 	private RectF rimOuterRightRect;
 
-	// Static bitmap for the face of the gauge
+	// The hand pointing at 0 degrees, drawn once per size and then only
+	// rotated into place.
 	private Bitmap hand;
 	private Paint handPaint;
 	private Path handPath;
@@ -127,8 +128,9 @@ public final class GaugeBearing extends View
 
 	private Bitmap background; // holds the cached static part
 
-	private Canvas handCanvas;
-	
+	// Measures the frames if the gauge is being benchmarked.
+	private RenderStats renderStats;
+
 	// the one in the top center (12 o'clock)
 	private static final int centerDegree = 0;
 	private static final int minDegrees = 0;
@@ -192,18 +194,38 @@ public final class GaugeBearing extends View
 		setHandTarget(azimuth);
 	}
 
+	/**
+	 * Benchmark the rendering of the gauge.
+	 * 
+	 * @param renderStats
+	 *            the statistics to measure the frames with, null to stop
+	 *            benchmarking.
+	 */
+	public void setRenderStats(RenderStats renderStats)
+	{
+		this.renderStats = renderStats;
+	}
+
 	/**
 	 * Run the instance. This can be thought of as onDraw().
 	 */
 	protected void onDraw(Canvas canvas)
 	{
+		if (renderStats != null)
+		{
+			renderStats.beginFrame();
+		}
+
 		drawBackground(canvas);
 
 		drawHand(canvas);
 
-		canvas.restore();
-
 		moveHand();
+
+		if (renderStats != null)
+		{
+			renderStats.endFrame();
+		}
 	}
 
 	@Override
@@ -383,11 +405,6 @@ public final class GaugeBearing extends View
 		return degree;
 	}
 
-	/**
-	 * Draw the gauge hand.
-	 * 
-	 * @param canvas
-	 */
 	/**
 	 * Draw the gauge hand.
 	 * 
@@ -395,38 +412,27 @@ public final class GaugeBearing extends View
 	 */
 	private void drawHand(Canvas canvas)
 	{
-		// *Bug Notice* We draw the hand with a bitmap and a new canvas because
+		// *Bug Notice* We draw the hand with a bitmap because
 		// canvas.drawPath() doesn't work. This seems to be related to devices
-		// with hardware acceleration enabled.
-
-		// free the old bitmap
-		if (hand != null)
+		// with hardware acceleration enabled. The bitmap is cached with the
+		// hand at 0 degrees and rotated onto the canvas, so nothing is
+		// allocated per frame.
+		if (hand == null)
 		{
-			hand.recycle();
+			Log.w(tag, "Hand not created");
+			return;
 		}
 
-		hand = Bitmap.createBitmap(getWidth(), getHeight(),
-				Bitmap.Config.ARGB_8888);
-		handCanvas = new Canvas(hand);
-		float scale = (float) getWidth();
-		handCanvas.scale(scale, scale);
+		float handAngle = handInitialized ? degreeToAngle(handPosition)
+				: degreeToAngle(0);
 
-		if (handInitialized)
-		{
-			float handAngle = degreeToAngle(handPosition);
-			handCanvas.save(Canvas.MATRIX_SAVE_FLAG);
-			handCanvas.rotate(handAngle, 0.5f, 0.5f);
-			handCanvas.drawPath(handPath, handPaint);
-		}
-		else
-		{
-			float handAngle = degreeToAngle(0);
-			handCanvas.save(Canvas.MATRIX_SAVE_FLAG);
-			handCanvas.rotate(handAngle, 0.5f, 0.5f);
-			handCanvas.drawPath(handPath, handPaint);
-		}
+		// The hand was drawn scaled to the width, so is its center.
+		float center = getWidth() / 2f;
 
+		canvas.save(Canvas.MATRIX_SAVE_FLAG);
+		canvas.rotate(handAngle, center, center);
 		canvas.drawBitmap(hand, 0, 0, backgroundPaint);
+		canvas.restore();
 	}
 
 	/**
@@ -452,6 +458,7 @@ public final class GaugeBearing extends View
 		Log.d(tag, "Size changed to " + w + "x" + h);
 
 		regenerateBackground();
+		regenerateHand();
 	}
 
 	/**
@@ -477,6 +484,28 @@ public final class GaugeBearing extends View
 		drawFace(backgroundCanvas);
 	}
 
+	/**
+	 * Regenerate the hand image. Like the background, this should only be
+	 * called when the size of the screen has changed. The hand is drawn at 0
+	 * degrees and rotated into place when the gauge is drawn.
+	 */
+	private void regenerateHand()
+	{
+		// free the old bitmap
+		if (hand != null)
+		{
+			hand.recycle();
+		}
+
+		hand = Bitmap.createBitmap(getWidth(), getHeight(),
+				Bitmap.Config.ARGB_8888);
+		Canvas handCanvas = new Canvas(hand);
+		float scale = (float) getWidth();
+		handCanvas.scale(scale, scale);
+
+		handCanvas.drawPath(handPath, handPaint);
+	}
+
 	/**
 	 * Move the hand.
 	 */
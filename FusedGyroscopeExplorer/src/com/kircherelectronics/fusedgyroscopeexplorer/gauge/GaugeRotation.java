@@ -113,8 +113,14 @@ public final class GaugeRotation extends View
 	// Keep static bitmaps of the gauge so we only have to redraw if we have to
 	// Static bitmap for the bezel of the gauge
 	private Bitmap bezelBitmap;
-	// Static bitmap for the face of the gauge
-	private Bitmap faceBitmap;
+
+	// The face of the gauge in pixels. The face is drawn without scaling the
+	// canvas because scaled paths don't draw properly on some devices with
+	// hardware acceleration.
+	private RectF faceRectPixels = new RectF();
+
+	// Measures the frames if the gauge is being benchmarked.
+	private RenderStats renderStats;
 
 	// Keep track of the rotation of the device
 	private float[] rotation = new float[3];
@@ -127,8 +133,6 @@ public final class GaugeRotation extends View
 	private RectF rimRect;
 	// Rectangle to draw the sky section of the gauge face
 	private RectF skyRect;
-	// Rectangle to draw the sky section of the gauge face
-	private RectF skyBackgroundRect;
 
 	// Paint to draw the red arrow for the roll angle scales
 	private Paint arrowPaint;
@@ -206,6 +210,18 @@ public final class GaugeRotation extends View
 		this.invalidate();
 	}
 
+	/**
+	 * Benchmark the rendering of the gauge.
+	 * 
+	 * @param renderStats
+	 *            the statistics to measure the frames with, null to stop
+	 *            benchmarking.
+	 */
+	public void setRenderStats(RenderStats renderStats)
+	{
+		this.renderStats = renderStats;
+	}
+
 	private void initDrawingTools()
 	{
 		// Rectangle for the rim of the gauge bezel
@@ -271,10 +287,6 @@ public final class GaugeRotation extends View
 		skyRect.set(rimRect.left + rimSize, rimRect.top + rimSize,
 				rimRect.right - rimSize, rimRect.bottom - rimSize);
 
-		skyBackgroundRect = new RectF();
-		skyBackgroundRect.set(rimRect.left + rimSize, rimRect.top + rimSize,
-				rimRect.right - rimSize, rimRect.bottom - rimSize);
-
 		// now set to black
 		skyPaint = new Paint();
 		skyPaint.setAntiAlias(true);
@@ -399,52 +411,32 @@ public final class GaugeRotation extends View
 	}
 
 	/**
-	 * Draw the gauge face.
+	 * Draw the gauge face. The earth is the part of the face below the
+	 * horizon, a circular segment that is drawn with drawArc() and rotated
+	 * into place, so nothing is allocated and the cost doesn't depend on the
+	 * size of the view.
 	 * 
 	 * @param canvas
 	 */
 	private void drawFace(Canvas canvas)
 	{
-		// free the old bitmap
-		if (faceBitmap != null)
-		{
-			faceBitmap.recycle();
-		}
-
-		faceBitmap = Bitmap.createBitmap(getWidth(), getHeight(),
-				Bitmap.Config.ARGB_8888);
+		float radius = faceRectPixels.width() / 2f;
+		float centerX = faceRectPixels.centerX();
+		float centerY = faceRectPixels.centerY();
 
-		Canvas faceCanvas = new Canvas(faceBitmap);
-		float scale = (float) getWidth();
-		faceCanvas.scale(scale, scale);
-
-		skyBackgroundRect.set(rimRect.left, rimRect.top, rimRect.right,
-				rimRect.bottom);
-
-		faceCanvas.drawArc(skyBackgroundRect, 0, 360, true, skyPaint);
+		// The horizon moves up as the device pitches forward.
+		float horizon = (getHeight() / 2f)
+				- ((getHeight() / 2.5f) * rotation[1]);
 
-		int[] allpixels = new int[faceBitmap.getHeight()
-				* faceBitmap.getWidth()];
+		// The distance from the center of the face down to the horizon.
+		float offset = horizon - centerY;
 
-		faceBitmap.getPixels(allpixels, 0, faceBitmap.getWidth(), 0, 0,
-				faceBitmap.getWidth(), faceBitmap.getHeight());
-
-		for (int i = 0; i < faceBitmap.getHeight() * faceBitmap.getWidth(); i++)
+		// The horizon is below the face, there is no earth to draw.
+		if (offset >= radius)
 		{
-			allpixels[i] = Color.TRANSPARENT;
+			return;
 		}
 
-		int height = (int) ((faceBitmap.getHeight() / 2) - ((faceBitmap
-				.getHeight() / 2.5) * rotation[1]));
-
-		if (height > faceBitmap.getHeight())
-		{
-			height = faceBitmap.getHeight();
-		}
-
-		faceBitmap.setPixels(allpixels, 0, faceBitmap.getWidth(), 0, 0,
-				faceBitmap.getWidth(), height);
-
 		float x = -rotation[2];
 
 		// Restrict x between 1 and -1
@@ -461,11 +453,22 @@ public final class GaugeRotation extends View
 		// http://www.st.com/web/en/resource/technical/document/application_note/CD00268887.pdf
 		float angle = (float) (Math.asin(x) * 57.2957795);
 
+		// Half of the angle the segment below the horizon spans, measured
+		// from straight down.
+		float halfSweep = 180;
+
+		if (offset > -radius)
+		{
+			halfSweep = (float) Math.toDegrees(Math.acos(offset / radius));
+		}
+
 		canvas.save(Canvas.MATRIX_SAVE_FLAG);
-		canvas.rotate(-angle, faceBitmap.getWidth() / 2f,
-				faceBitmap.getHeight() / 2f);
+		canvas.rotate(-angle, centerX, centerY);
+
+		// Angles start at 3 o'clock and go clockwise, so straight down is 90.
+		canvas.drawArc(faceRectPixels, 90 - halfSweep, 2 * halfSweep, false,
+				skyPaint);
 
-		canvas.drawBitmap(faceBitmap, 0, 0, backgroundPaint);
 		canvas.restore();
 	}
 
@@ -492,6 +495,10 @@ public final class GaugeRotation extends View
 		Log.d(tag, "Size changed to " + w + "x" + h);
 
 		regenerateBezel();
+
+		float scale = (float) getWidth();
+		faceRectPixels.set(rimRect.left * scale, rimRect.top * scale,
+				rimRect.right * scale, rimRect.bottom * scale);
 	}
 
 	/**
@@ -519,14 +526,18 @@ public final class GaugeRotation extends View
 	@Override
 	protected void onDraw(Canvas canvas)
 	{
+		if (renderStats != null)
+		{
+			renderStats.beginFrame();
+		}
+
 		drawBezel(canvas);
 		drawFace(canvas);
 
-		float scale = (float) getWidth();
-		canvas.save(Canvas.MATRIX_SAVE_FLAG);
-		canvas.scale(scale, scale);
-
-		canvas.restore();
+		if (renderStats != null)
+		{
+			renderStats.endFrame();
+		}
 	}
 
 }
@@ -0,0 +1,124 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.gauge;
+
+import android.os.Debug;
+import android.util.Log;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A rendering benchmark for the gauges. A gauge that has been given a
+ * RenderStats measures how long each onDraw() takes and how many objects it
+ * allocates, and every REPORT_INTERVAL_FRAMES frames the mean and worst frame
+ * time and the allocations per frame are written to the log.
+ * 
+ * Allocations are only counted while allocation counting is started, which
+ * slows the whole process down, so only use it for benchmarking.
+ * 
+ * @author Kaleb
+ * @version %I%, %G%
+ */
+public class RenderStats
+{
+	private static final String tag = RenderStats.class.getSimpleName();
+
+	// The number of frames summarized by each report.
+	public static final int REPORT_INTERVAL_FRAMES = 120;
+
+	// The name of the gauge in the report.
+	private final String name;
+
+	private long frameStartTime;
+	private int frameStartAllocCount;
+
+	private int frameCount = 0;
+	private long totalFrameTime = 0;
+	private long maxFrameTime = 0;
+	private long allocCount = 0;
+
+	/**
+	 * Initialize a new instance.
+	 * 
+	 * @param name
+	 *            the name of the gauge in the reports.
+	 */
+	public RenderStats(String name)
+	{
+		this.name = name;
+	}
+
+	/**
+	 * Start counting allocations for the whole process.
+	 */
+	public static void startAllocCounting()
+	{
+		Debug.resetThreadAllocCount();
+		Debug.startAllocCounting();
+	}
+
+	/**
+	 * Stop counting allocations.
+	 */
+	public static void stopAllocCounting()
+	{
+		Debug.stopAllocCounting();
+	}
+
+	/**
+	 * Mark the start of a frame. Call first thing in onDraw().
+	 */
+	public void beginFrame()
+	{
+		frameStartAllocCount = Debug.getThreadAllocCount();
+		frameStartTime = System.nanoTime();
+	}
+
+	/**
+	 * Mark the end of a frame. Call last thing in onDraw().
+	 */
+	public void endFrame()
+	{
+		long frameTime = System.nanoTime() - frameStartTime;
+
+		allocCount += Debug.getThreadAllocCount() - frameStartAllocCount;
+
+		totalFrameTime += frameTime;
+		maxFrameTime = Math.max(maxFrameTime, frameTime);
+
+		if (++frameCount >= REPORT_INTERVAL_FRAMES)
+		{
+			report();
+		}
+	}
+
+	/**
+	 * Log the statistics of the frames since the last report and start over.
+	 */
+	private void report()
+	{
+		Log.d(tag, String.format(
+				"%s: %d frames, mean %.3f ms, max %.3f ms, %.2f allocations/frame",
+				name, frameCount, totalFrameTime / 1e6 / frameCount,
+				maxFrameTime / 1e6, (double) allocCount / frameCount));
+
+		frameCount = 0;
+		totalFrameTime = 0;
+		maxFrameTime = 0;
+		allocCount = 0;
+	}
+}
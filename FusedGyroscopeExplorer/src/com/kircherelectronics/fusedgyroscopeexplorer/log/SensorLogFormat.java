@@ -0,0 +1,99 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.log;
+
+import java.nio.ByteOrder;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The layout of a sensor log. A sensor log holds the measurements of a single
+ * sensor. It starts with a fixed size header followed by fixed size records,
+ * one per measurement, so the n-th measurement can be found without reading
+ * the ones before it. Everything is little endian.
+ * 
+ * <pre>
+ * header:  int magic, short version, short sensor type, float rate (Hz),
+ *          int record size
+ * record:  long time stamp (ns), float x, float y, float z
+ * </pre>
+ * 
+ * The sensor types have the values of the Android Sensor.TYPE_ constants, so
+ * logs can be read without Android. A log that was not closed properly may
+ * end in zeroed records, a record with a time stamp of 0 marks the end of the
+ * measurements.
+ * 
+ * @author Kaleb
+ * @version %I%, %G%
+ */
+public final class SensorLogFormat
+{
+	// "FGEL", Fused Gyroscope Explorer Log.
+	public static final int MAGIC = 0x4647454c;
+
+	public static final short VERSION = 1;
+
+	public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	public static final int HEADER_SIZE = 16;
+
+	public static final int RECORD_SIZE = 20;
+
+	// Sensor.TYPE_MAGNETIC_FIELD
+	public static final int SENSOR_TYPE_MAGNETIC_FIELD = 2;
+
+	// Sensor.TYPE_ORIENTATION, used for fused orientations (azimuth, pitch,
+	// roll) in radians.
+	public static final int SENSOR_TYPE_ORIENTATION = 3;
+
+	// Sensor.TYPE_GYROSCOPE
+	public static final int SENSOR_TYPE_GYROSCOPE = 4;
+
+	// Sensor.TYPE_GRAVITY
+	public static final int SENSOR_TYPE_GRAVITY = 9;
+
+	// The file name extension of sensor logs.
+	public static final String FILE_EXTENSION = ".fgl";
+
+	private SensorLogFormat()
+	{
+	}
+
+	/**
+	 * Get the name of the log file of a sensor within a recording session.
+	 * 
+	 * @param sensorType
+	 *            one of the SENSOR_TYPE_ constants.
+	 * @return the file name.
+	 */
+	public static String getFileName(int sensorType)
+	{
+		switch (sensorType)
+		{
+		case SENSOR_TYPE_MAGNETIC_FIELD:
+			return "magnetic" + FILE_EXTENSION;
+		case SENSOR_TYPE_ORIENTATION:
+			return "orientation" + FILE_EXTENSION;
+		case SENSOR_TYPE_GYROSCOPE:
+			return "gyroscope" + FILE_EXTENSION;
+		case SENSOR_TYPE_GRAVITY:
+			return "gravity" + FILE_EXTENSION;
+		default:
+			return "sensor" + sensorType + FILE_EXTENSION;
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Reads the measurements of a sensor log in order through a memory mapped
+ * file. Like the writer, the file is mapped a chunk at a time so logs of any
+ * length can be read without allocating per measurement.
+ * 
+ * <pre>
+ * while (reader.next())
+ * {
+ * 	reader.getValues(values);
+ * 	long timeStamp = reader.getTimeStamp();
+ * }
+ * </pre>
+ * 
+ * A reader must only be used by one thread.
+ * 
+ * @author Kaleb
+ * @version %I%, %G%
+ * @see SensorLogFormat
+ */
+public class SensorLogReader implements Closeable
+{
+	// The size of the chunks the file is mapped in, 4 MB worth of records.
+	private static final int CHUNK_SIZE = (4 << 20)
+			/ SensorLogFormat.RECORD_SIZE * SensorLogFormat.RECORD_SIZE;
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+
+	// The chunk of the file being read.
+	private MappedByteBuffer buffer;
+
+	// The position of the chunk in the file.
+	private long chunkPosition;
+
+	private int sensorType;
+	private float rate;
+
+	private long recordCount;
+	private long recordIndex = -1;
+
+	// The current measurement.
+	private long timeStamp;
+	private float x;
+	private float y;
+	private float z;
+
+	/**
+	 * Open a sensor log.
+	 * 
+	 * @param file
+	 *            the sensor log.
+	 * @throws IOException
+	 *             if the file can't be read or is not a sensor log.
+	 */
+	public SensorLogReader(File file) throws IOException
+	{
+		this.file = new RandomAccessFile(file, "r");
+
+		try
+		{
+			channel = this.file.getChannel();
+
+			long length = channel.size();
+
+			if (length < SensorLogFormat.HEADER_SIZE)
+			{
+				throw new IOException(file + " is not a sensor log");
+			}
+
+			map(0);
+
+			if (buffer.getInt() != SensorLogFormat.MAGIC)
+			{
+				throw new IOException(file + " is not a sensor log");
+			}
+
+			short version = buffer.getShort();
+			if (version != SensorLogFormat.VERSION)
+			{
+				throw new IOException(file + " has unsupported version "
+						+ version);
+			}
+
+			sensorType = buffer.getShort();
+			rate = buffer.getFloat();
+
+			if (buffer.getInt() != SensorLogFormat.RECORD_SIZE)
+			{
+				throw new IOException(file + " has an unexpected record size");
+			}
+
+			recordCount = (length - SensorLogFormat.HEADER_SIZE)
+					/ SensorLogFormat.RECORD_SIZE;
+		}
+		catch (IOException e)
+		{
+			close();
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Get the type of the sensor that was recorded.
+	 * 
+	 * @return one of the SensorLogFormat.SENSOR_TYPE_ constants.
+	 */
+	public int getSensorType()
+	{
+		return sensorType;
+	}
+
+	/**
+	 * Get the rate of the sensor that was recorded.
+	 * 
+	 * @return the rate in Hz, 0 if unknown.
+	 */
+	public float getRate()
+	{
+		return rate;
+	}
+
+	/**
+	 * Get the number of records in the file. If the log was not closed
+	 * properly this includes zeroed records at the end.
+	 * 
+	 * @return the number of records.
+	 */
+	public long getRecordCount()
+	{
+		return recordCount;
+	}
+
+	/**
+	 * Advance to the next measurement.
+	 * 
+	 * @return true if there is a measurement, false at the end of the log.
+	 * @throws IOException
+	 *             if the next chunk of the file can't be mapped.
+	 */
+	public boolean next() throws IOException
+	{
+		if (recordIndex + 1 >= recordCount)
+		{
+			return false;
+		}
+
+		if (buffer.remaining() < SensorLogFormat.RECORD_SIZE)
+		{
+			map(chunkPosition + buffer.position());
+		}
+
+		long timeStamp = buffer.getLong();
+
+		// Zeroed records are left by a log that wasn't closed.
+		if (timeStamp == 0)
+		{
+			recordCount = recordIndex + 1;
+
+			return false;
+		}
+
+		this.timeStamp = timeStamp;
+
+		x = buffer.getFloat();
+		y = buffer.getFloat();
+		z = buffer.getFloat();
+
+		recordIndex++;
+
+		return true;
+	}
+
+	/**
+	 * Get the time stamp of the current measurement.
+	 * 
+	 * @return the time stamp in nanoseconds.
+	 */
+	public long getTimeStamp()
+	{
+		return timeStamp;
+	}
+
+	/**
+	 * Get the current measurement.
+	 * 
+	 * @param values
+	 *            the measurement (x, y, z).
+	 */
+	public void getValues(float[] values)
+	{
+		values[0] = x;
+		values[1] = y;
+		values[2] = z;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		buffer = null;
+
+		if (file != null)
+		{
+			file.close();
+			file = null;
+		}
+	}
+
+	/**
+	 * Map the next chunk of the file, or what is left of it.
+	 * 
+	 * @param position
+	 *            the position in the file the chunk starts at.
+	 */
+	private void map(long position) throws IOException
+	{
+		long size = Math.min(CHUNK_SIZE, channel.size() - position);
+
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+		buffer.order(SensorLogFormat.BYTE_ORDER);
+
+		chunkPosition = position;
+	}
+}
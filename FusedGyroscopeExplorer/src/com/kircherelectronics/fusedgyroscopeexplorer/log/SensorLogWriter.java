@@ -0,0 +1,189 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Appends measurements to a sensor log through a memory mapped file. The file
+ * is mapped a chunk at a time, so writing a measurement is a few stores into
+ * memory, there is no allocation and no system call until the chunk is full.
+ * When the log is closed the file is truncated to the measurements written.
+ * 
+ * A writer must only be used by one thread.
+ * 
+ * @author Kaleb
+ * @version %I%, %G%
+ * @see SensorLogFormat
+ */
+public class SensorLogWriter implements Closeable
+{
+	// The size of the chunks the file is mapped in, 1 MB worth of records.
+	private static final int CHUNK_SIZE = (1 << 20)
+			/ SensorLogFormat.RECORD_SIZE * SensorLogFormat.RECORD_SIZE;
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+
+	// The chunk of the file being written.
+	private MappedByteBuffer buffer;
+
+	// The position of the chunk in the file.
+	private long chunkPosition = 0;
+
+	private long recordCount = 0;
+
+	/**
+	 * Create a new sensor log, replacing the file if it exists.
+	 * 
+	 * @param file
+	 *            the file to write.
+	 * @param sensorType
+	 *            one of the SensorLogFormat.SENSOR_TYPE_ constants.
+	 * @param rate
+	 *            the rate of the sensor in Hz, 0 if unknown.
+	 * @throws IOException
+	 *             if the file can't be created.
+	 */
+	public SensorLogWriter(File file, int sensorType, float rate)
+			throws IOException
+	{
+		this.file = new RandomAccessFile(file, "rw");
+		this.file.setLength(0);
+
+		channel = this.file.getChannel();
+
+		map(0);
+
+		buffer.putInt(SensorLogFormat.MAGIC);
+		buffer.putShort(SensorLogFormat.VERSION);
+		buffer.putShort((short) sensorType);
+		buffer.putFloat(rate);
+		buffer.putInt(SensorLogFormat.RECORD_SIZE);
+	}
+
+	/**
+	 * Append a measurement.
+	 * 
+	 * @param values
+	 *            the measurement (x, y, z).
+	 * @param timeStamp
+	 *            the time stamp of the measurement in nanoseconds.
+	 * @throws IOException
+	 *             if the next chunk of the file can't be mapped.
+	 */
+	public void write(float[] values, long timeStamp) throws IOException
+	{
+		write(values, 0, timeStamp);
+	}
+
+	/**
+	 * Append a batch of measurements.
+	 * 
+	 * @param values
+	 *            the measurements, (x, y, z) of each one after another.
+	 * @param timeStamps
+	 *            the time stamp of each measurement in nanoseconds.
+	 * @param count
+	 *            the number of measurements.
+	 * @throws IOException
+	 *             if the next chunk of the file can't be mapped.
+	 */
+	public void write(float[] values, long[] timeStamps, int count)
+			throws IOException
+	{
+		for (int i = 0; i < count; i++)
+		{
+			write(values, i * 3, timeStamps[i]);
+		}
+	}
+
+	/**
+	 * Get the number of measurements written so far.
+	 * 
+	 * @return the number of measurements.
+	 */
+	public long getRecordCount()
+	{
+		return recordCount;
+	}
+
+	/**
+	 * Truncate the file to the measurements written and close it.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (file == null)
+		{
+			return;
+		}
+
+		try
+		{
+			buffer.force();
+
+			channel.truncate(SensorLogFormat.HEADER_SIZE + recordCount
+					* SensorLogFormat.RECORD_SIZE);
+		}
+		finally
+		{
+			buffer = null;
+
+			file.close();
+			file = null;
+		}
+	}
+
+	private void write(float[] values, int offset, long timeStamp)
+			throws IOException
+	{
+		if (buffer.remaining() < SensorLogFormat.RECORD_SIZE)
+		{
+			map(chunkPosition + buffer.position());
+		}
+
+		buffer.putLong(timeStamp);
+		buffer.putFloat(values[offset]);
+		buffer.putFloat(values[offset + 1]);
+		buffer.putFloat(values[offset + 2]);
+
+		recordCount++;
+	}
+
+	/**
+	 * Map the next chunk of the file.
+	 * 
+	 * @param position
+	 *            the position in the file the chunk starts at.
+	 */
+	private void map(long position) throws IOException
+	{
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, position,
+				CHUNK_SIZE);
+		buffer.order(SensorLogFormat.BYTE_ORDER);
+
+		chunkPosition = position;
+	}
+}
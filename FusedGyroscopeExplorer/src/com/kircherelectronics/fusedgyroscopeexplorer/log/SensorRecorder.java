@@ -0,0 +1,254 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.GravitySensorBatchObserver;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.GravitySensorObserver;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.GyroscopeSensorBatchObserver;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.GyroscopeSensorObserver;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.MagneticSensorBatchObserver;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.MagneticSensorObserver;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Records the gyroscope, gravity and magnetic measurements it observes into a
+ * recording session, a directory with one sensor log per sensor. It registers
+ * with the sensors like any other observer, either for single measurements
+ * or for batches.
+ * 
+ * If a log can't be written the recorder stops recording and keeps the
+ * error, see getError().
+ * 
+ * @author Kaleb
+ * @version %I%, %G%
+ * @see SensorLogWriter
+ */
+public class SensorRecorder implements GyroscopeSensorObserver,
+		GravitySensorObserver, MagneticSensorObserver,
+		GyroscopeSensorBatchObserver, GravitySensorBatchObserver,
+		MagneticSensorBatchObserver, Closeable
+{
+	private SensorLogWriter gyroscopeWriter;
+	private SensorLogWriter gravityWriter;
+	private SensorLogWriter magneticWriter;
+
+	private IOException error;
+
+	private boolean recording = true;
+
+	/**
+	 * Start a new recording session.
+	 * 
+	 * @param directory
+	 *            the directory of the session, it is created if it doesn't
+	 *            exist.
+	 * @param gyroscopeRate
+	 *            the rate of the gyroscope in Hz, 0 if unknown.
+	 * @param gravityRate
+	 *            the rate of the gravity sensor in Hz, 0 if unknown.
+	 * @param magneticRate
+	 *            the rate of the magnetic sensor in Hz, 0 if unknown.
+	 * @throws IOException
+	 *             if the session can't be created.
+	 */
+	public SensorRecorder(File directory, float gyroscopeRate,
+			float gravityRate, float magneticRate) throws IOException
+	{
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("Can't create " + directory);
+		}
+
+		try
+		{
+			gyroscopeWriter = createWriter(directory,
+					SensorLogFormat.SENSOR_TYPE_GYROSCOPE, gyroscopeRate);
+			gravityWriter = createWriter(directory,
+					SensorLogFormat.SENSOR_TYPE_GRAVITY, gravityRate);
+			magneticWriter = createWriter(directory,
+					SensorLogFormat.SENSOR_TYPE_MAGNETIC_FIELD, magneticRate);
+		}
+		catch (IOException e)
+		{
+			close();
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Get the error that stopped the recording.
+	 * 
+	 * @return the error, null if there wasn't one.
+	 */
+	public IOException getError()
+	{
+		return error;
+	}
+
+	/**
+	 * Stop recording and close the sensor logs.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		recording = false;
+
+		IOException closeError = null;
+
+		SensorLogWriter[] writers =
+		{ gyroscopeWriter, gravityWriter, magneticWriter };
+
+		for (SensorLogWriter writer : writers)
+		{
+			try
+			{
+				if (writer != null)
+				{
+					writer.close();
+				}
+			}
+			catch (IOException e)
+			{
+				closeError = e;
+			}
+		}
+
+		if (closeError != null)
+		{
+			throw closeError;
+		}
+	}
+
+	@Override
+	public void onGyroscopeSensorChanged(float[] gyroscope, long timeStamp)
+	{
+		if (recording)
+		{
+			try
+			{
+				gyroscopeWriter.write(gyroscope, timeStamp);
+			}
+			catch (IOException e)
+			{
+				stop(e);
+			}
+		}
+	}
+
+	@Override
+	public void onGravitySensorChanged(float[] gravity, long timeStamp)
+	{
+		if (recording)
+		{
+			try
+			{
+				gravityWriter.write(gravity, timeStamp);
+			}
+			catch (IOException e)
+			{
+				stop(e);
+			}
+		}
+	}
+
+	@Override
+	public void onMagneticSensorChanged(float[] magnetic, long timeStamp)
+	{
+		if (recording)
+		{
+			try
+			{
+				magneticWriter.write(magnetic, timeStamp);
+			}
+			catch (IOException e)
+			{
+				stop(e);
+			}
+		}
+	}
+
+	@Override
+	public void onGyroscopeSensorBatch(float[] gyroscope, long[] timeStamps,
+			int count)
+	{
+		if (recording)
+		{
+			try
+			{
+				gyroscopeWriter.write(gyroscope, timeStamps, count);
+			}
+			catch (IOException e)
+			{
+				stop(e);
+			}
+		}
+	}
+
+	@Override
+	public void onGravitySensorBatch(float[] gravity, long[] timeStamps,
+			int count)
+	{
+		if (recording)
+		{
+			try
+			{
+				gravityWriter.write(gravity, timeStamps, count);
+			}
+			catch (IOException e)
+			{
+				stop(e);
+			}
+		}
+	}
+
+	@Override
+	public void onMagneticSensorBatch(float[] magnetic, long[] timeStamps,
+			int count)
+	{
+		if (recording)
+		{
+			try
+			{
+				magneticWriter.write(magnetic, timeStamps, count);
+			}
+			catch (IOException e)
+			{
+				stop(e);
+			}
+		}
+	}
+
+	private SensorLogWriter createWriter(File directory, int sensorType,
+			float rate) throws IOException
+	{
+		return new SensorLogWriter(new File(directory,
+				SensorLogFormat.getFileName(sensorType)), sensorType, rate);
+	}
+
+	private void stop(IOException e)
+	{
+		recording = false;
+
+		error = e;
+	}
+}
@@ -0,0 +1,244 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.GravitySensorObserver;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.GyroscopeSensorObserver;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.MagneticSensorObserver;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Replays a recording session into the same observer interfaces the sensors
+ * use, so a FusedGyroscopeSensor can be fed recorded measurements exactly as
+ * it is fed live ones. The measurements of the sensor logs are merged in time
+ * stamp order. Measurements with the same time stamp are delivered magnetic
+ * first, then gravity, then gyroscope, so a replay is always deterministic.
+ * 
+ * The replay either runs as fast as possible, MODE_THROUGHPUT, or is paced
+ * to the time stamps, MODE_REALTIME. It doesn't depend on Android and runs on
+ * the calling thread.
+ * 
+ * @author Kaleb
+ * @version %I%, %G%
+ * @see SensorRecorder
+ */
+public class SensorReplay implements Closeable
+{
+	// Deliver the measurements as fast as possible.
+	public static final int MODE_THROUGHPUT = 0;
+
+	// Deliver the measurements at the rate they were recorded.
+	public static final int MODE_REALTIME = 1;
+
+	private SensorLogReader gyroscopeReader;
+	private SensorLogReader gravityReader;
+	private SensorLogReader magneticReader;
+
+	// The measurement being delivered.
+	private float[] values = new float[3];
+
+	/**
+	 * Open a recording session. Sensors without a log in the session are
+	 * simply not replayed.
+	 * 
+	 * @param directory
+	 *            the directory of the session.
+	 * @throws IOException
+	 *             if a sensor log can't be read.
+	 */
+	public SensorReplay(File directory) throws IOException
+	{
+		try
+		{
+			gyroscopeReader = openReader(directory,
+					SensorLogFormat.SENSOR_TYPE_GYROSCOPE);
+			gravityReader = openReader(directory,
+					SensorLogFormat.SENSOR_TYPE_GRAVITY);
+			magneticReader = openReader(directory,
+					SensorLogFormat.SENSOR_TYPE_MAGNETIC_FIELD);
+		}
+		catch (IOException e)
+		{
+			close();
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Replay the session. A session can only be replayed once.
+	 * 
+	 * @param gyroscope
+	 *            the gyroscope observer, null to skip the gyroscope.
+	 * @param gravity
+	 *            the gravity observer, null to skip gravity.
+	 * @param magnetic
+	 *            the magnetic observer, null to skip the magnetic sensor.
+	 * @param mode
+	 *            MODE_THROUGHPUT or MODE_REALTIME.
+	 * @return the number of measurements delivered.
+	 * @throws IOException
+	 *             if a sensor log can't be read.
+	 */
+	public long replay(GyroscopeSensorObserver gyroscope,
+			GravitySensorObserver gravity, MagneticSensorObserver magnetic,
+			int mode) throws IOException
+	{
+		if (mode != MODE_THROUGHPUT && mode != MODE_REALTIME)
+		{
+			throw new IllegalArgumentException("Unknown replay mode: " + mode);
+		}
+
+		long gyroscopeTime = advance(gyroscope != null ? gyroscopeReader
+				: null);
+		long gravityTime = advance(gravity != null ? gravityReader : null);
+		long magneticTime = advance(magnetic != null ? magneticReader : null);
+
+		long count = 0;
+
+		long firstTimeStamp = Math.min(gyroscopeTime,
+				Math.min(gravityTime, magneticTime));
+		long startTime = System.nanoTime();
+
+		while (true)
+		{
+			long timeStamp = Math.min(gyroscopeTime,
+					Math.min(gravityTime, magneticTime));
+
+			if (timeStamp == Long.MAX_VALUE)
+			{
+				break;
+			}
+
+			if (mode == MODE_REALTIME)
+			{
+				pace(timeStamp - firstTimeStamp, startTime);
+			}
+
+			if (magneticTime == timeStamp)
+			{
+				magneticReader.getValues(values);
+				magnetic.onMagneticSensorChanged(values, timeStamp);
+
+				magneticTime = advance(magneticReader);
+			}
+			else if (gravityTime == timeStamp)
+			{
+				gravityReader.getValues(values);
+				gravity.onGravitySensorChanged(values, timeStamp);
+
+				gravityTime = advance(gravityReader);
+			}
+			else
+			{
+				gyroscopeReader.getValues(values);
+				gyroscope.onGyroscopeSensorChanged(values, timeStamp);
+
+				gyroscopeTime = advance(gyroscopeReader);
+			}
+
+			count++;
+		}
+
+		return count;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		SensorLogReader[] readers =
+		{ gyroscopeReader, gravityReader, magneticReader };
+
+		IOException closeError = null;
+
+		for (SensorLogReader reader : readers)
+		{
+			try
+			{
+				if (reader != null)
+				{
+					reader.close();
+				}
+			}
+			catch (IOException e)
+			{
+				closeError = e;
+			}
+		}
+
+		if (closeError != null)
+		{
+			throw closeError;
+		}
+	}
+
+	/**
+	 * Advance a reader to its next measurement.
+	 * 
+	 * @param reader
+	 *            the reader, may be null.
+	 * @return the time stamp of the measurement, Long.MAX_VALUE if there is
+	 *         none.
+	 */
+	private long advance(SensorLogReader reader) throws IOException
+	{
+		if (reader == null || !reader.next())
+		{
+			return Long.MAX_VALUE;
+		}
+
+		return reader.getTimeStamp();
+	}
+
+	/**
+	 * Wait until a measurement is due.
+	 * 
+	 * @param elapsed
+	 *            the time of the measurement since the first one in
+	 *            nanoseconds.
+	 * @param startTime
+	 *            the time the replay started at.
+	 */
+	private void pace(long elapsed, long startTime)
+	{
+		long delay;
+
+		while ((delay = elapsed - (System.nanoTime() - startTime)) > 0)
+		{
+			LockSupport.parkNanos(delay);
+		}
+	}
+
+	private SensorLogReader openReader(File directory, int sensorType)
+			throws IOException
+	{
+		File file = new File(directory, SensorLogFormat.getFileName(sensorType));
+
+		if (!file.isFile())
+		{
+			return null;
+		}
+
+		return new SensorLogReader(file);
+	}
+}
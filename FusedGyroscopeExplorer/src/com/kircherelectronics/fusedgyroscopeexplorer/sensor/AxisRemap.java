@@ -0,0 +1,116 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.sensor;
+
+import org.apache.commons.math3.geometry.euclidean.threed.Rotation;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Rotates sensor measurements from the axes of the device into the axes it is
+ * mounted in. The rotation is fixed, so it is kept as a 3x3 matrix and
+ * applied in place to each measurement without allocating.
+ *
+ * Any mounting can be described with a commons-math Rotation. The rotation
+ * is only used to build the matrix, Rotation.applyTo() is never called on the
+ * hot path.
+ *
+ * @author Kaleb
+ * @version %I%, %G%
+ */
+public class AxisRemap
+{
+	/**
+	 * Vehicle Mode. The device is in the landscape orientation and the
+	 * sensors are rotated to face the -Z-Axis, along the axis of the camera.
+	 * This is a rotation of pi/2 about the x-axis followed by -pi/2 about the
+	 * y-axis, which comes down to (x, y, z) -> (-y, -z, x).
+	 */
+	public static final AxisRemap VEHICLE_MODE = new AxisRemap(new float[]
+	{ 0, -1, 0, 0, 0, -1, 1, 0, 0 });
+
+	// The rotation matrix, row major.
+	private final float[] matrix = new float[9];
+
+	/**
+	 * Initialize a remap from a rotation matrix.
+	 *
+	 * @param matrix
+	 *            the 3x3 rotation matrix, row major.
+	 */
+	public AxisRemap(float[] matrix)
+	{
+		super();
+
+		if (matrix.length != 9)
+		{
+			throw new IllegalArgumentException("A 3x3 matrix is required");
+		}
+
+		System.arraycopy(matrix, 0, this.matrix, 0, 9);
+	}
+
+	/**
+	 * Initialize a remap from a rotation. The measurements are remapped the
+	 * same as rotation.applyTo() would.
+	 *
+	 * @param rotation
+	 *            the rotation from the device axes to the mounting axes.
+	 */
+	public AxisRemap(Rotation rotation)
+	{
+		super();
+
+		double[][] m = rotation.getMatrix();
+
+		for (int i = 0; i < 3; i++)
+		{
+			for (int j = 0; j < 3; j++)
+			{
+				matrix[i * 3 + j] = (float) m[i][j];
+			}
+		}
+	}
+
+	/**
+	 * Remap a measurement in place.
+	 *
+	 * @param values
+	 *            the measurement (x, y, z).
+	 */
+	public void apply(float[] values)
+	{
+		float x = values[0];
+		float y = values[1];
+		float z = values[2];
+
+		values[0] = matrix[0] * x + matrix[1] * y + matrix[2] * z;
+		values[1] = matrix[3] * x + matrix[4] * y + matrix[5] * z;
+		values[2] = matrix[6] * x + matrix[7] * y + matrix[8] * z;
+	}
+
+	/**
+	 * Get the rotation matrix.
+	 *
+	 * @param matrix
+	 *            the 3x3 rotation matrix, row major.
+	 */
+	public void getMatrix(float[] matrix)
+	{
+		System.arraycopy(this.matrix, 0, matrix, 0, 9);
+	}
+}
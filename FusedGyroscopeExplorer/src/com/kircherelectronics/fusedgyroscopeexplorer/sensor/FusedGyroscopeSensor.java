@@ -18,517 +18,605 @@ package com.kircherelectronics.fusedgyroscopeexplorer.sensor;
  *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
-/*
- * Copyright (c) 2012 Paul Lawitzki
- *
- * Permission is hereby granted, free of charge, to any person obtaining
- * a copy of this software and associated documentation files (the "Software"),
- * to deal in the Software without restriction, including without limitation
- * the rights to use, copy, modify, merge, publish, distribute, sublicense,
- * and/or sell copies of the Software, and to permit persons to whom the
- * Software is furnished to do so, subject to the following conditions:
- * 
- * 
- * The above copyright notice and this permission notice shall be included
- * in all copies or substantial portions of the Software.
- * 
- * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS
- * OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
- * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
- * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
- * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
- * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE
- * OR OTHER DEALINGS IN THE SOFTWARE.
- */
-
-import java.util.ArrayList;
-
-import android.annotation.TargetApi;
-import android.hardware.SensorManager;
-import android.os.Build;
-
-import com.kircherelectronics.fusedgyroscopeexplorer.filter.MeanFilter;
+import com.kircherelectronics.fusedgyroscopeexplorer.fusion.ComplementaryFilter;
+import com.kircherelectronics.fusedgyroscopeexplorer.fusion.FusionConfig;
+import com.kircherelectronics.fusedgyroscopeexplorer.fusion.QuaternionComplementaryFilter;
+import com.kircherelectronics.fusedgyroscopeexplorer.fusion.RateLimiter;
+import com.kircherelectronics.fusedgyroscopeexplorer.fusion.SensorSynchronizer;
 import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.FusedGyroscopeSensorObserver;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.GravitySensorBatchObserver;
 import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.GravitySensorObserver;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.GyroscopeSensorBatchObserver;
 import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.GyroscopeSensorObserver;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.MagneticSensorBatchObserver;
 import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.MagneticSensorObserver;
 
 /**
- * OrientationComplementaryFilter attempts to fuse magnetometer, gravity and
- * gyroscope sensors together to produce an accurate measurement of the rotation
- * of the device. The magnetometer and acceleration sensors are used to
- * determine the orientation of the device, but these readings are noisy and are
- * subject to the constraint that the device must not be accelerating. The
- * gyroscope is much more accurate and has a shorter response time, however it
- * experiences drift and has to be compensated periodically to remain accurate.
+ * FusedGyroscopeSensor fuses the magnetometer, gravity and gyroscope sensors
+ * together with a complementary filter to produce an accurate measurement of
+ * the rotation of the device. It observes the sensor subjects and is itself a
+ * subject for classes that need the fused orientation. The fusion itself is
+ * done by an OrientationFusion, which does not depend on Android. By default
+ * that is the rotation matrix based ComplementaryFilter, the quaternion based
+ * QuaternionComplementaryFilter can be selected with setFusionMode().
  * 
- * The gyroscope provides the angular rotation speeds for all three axes. To
- * find the orientation of the device, the rotation speeds must be integrated
- * over time. This can be accomplished by multiplying the angular speeds by the
- * time intervals between sensor updates. The calculation produces the rotation
- * increment. Integrating these values again produces the absolute orientation
- * of the device. Small errors are produced at each iteration causing the gyro
- * to drift away from the true orientation.
+ * The sensors can also be observed in batches, in which case each batch is
+ * fused in one pass. Every orientation fused from a batch counts towards the
+ * output rates just as if it had been delivered on its own, and an observer
+ * that is due in the middle of a batch gets the orientation at that
+ * measurement.
  * 
- * To eliminate both the drift and noise from the orientation, the gyro
- * measurements are applied only for orientation changes in short time
- * intervals. The magnetometer/acceleration fusion is used for long time
- * intervals. This is equivalent to low-pass filtering of the accelerometer and
- * magnetic field sensor signals and high-pass filtering of the gyroscope
- * signals.
+ * The measurements reach the fusion through a SensorSynchronizer, which
+ * lines the gravity and magnetic measurements up with the gyroscope when the
+ * FusionConfig has a synchronization delay. The observers then get each
+ * orientation with the time stamp of the gyroscope measurement it belongs
+ * to. A gyroscope batch is held back until the gravity and magnetic batches
+ * after it have been fed in too, so it is aligned with them rather than
+ * released on the delay with stale values.
  * 
- * Note: The fusion algorithm itself was written by Paul @
- * http://www.thousand-thoughts.com/2012/03/android-sensor-fusion-tutorial/ and
- * taken from his SensorFusion1.zip project. J.W. Alexandar Qiu has credit for
- * the transitions between 179 <> -179 fix. I have optimized some of the code
- * and made it slightly easier to follow and read. I have also changed the
- * SensorManager.getRotationMatrix() to use the gravity sensor instead of the
- * acceleration sensor.
+ * The tuning comes from a FusionConfig. setConfig() may be called from any
+ * thread, the new configuration is picked up by the sensor thread before the
+ * next measurement is fused, so a measurement is never fused with half of one
+ * configuration and half of another.
+ * 
+ * Observers can ask for a lower output rate than the gyroscope, either as a
+ * rate in Hz or as every n-th fused orientation. The output rates are kept
+ * for each fused orientation, but the Euler angles are only extracted when
+ * at least one observer is due. Observers can be registered
+ * and removed from any thread.
+ * 
+ * FusedGyroscopeSensor is the OrientationSource every device with a
+ * gyroscope has. When profiled, the time spent fusing the gravity and
+ * magnetic measurements is charged to the orientations along with the time
+ * spent on the gyroscope.
  * 
  * @author Kaleb
  * @version %I%, %G%
- * @see http://web.mit.edu/scolton/www/filter.pdf
- * @see http 
- *      ://developer.android.com/reference/android/hardware/SensorEvent.html#
- *      values
- * @see http://www.thousand-thoughts.com/2012/03/android-sensor-fusion-tutorial/
+ * @see ComplementaryFilter
+ * @see QuaternionComplementaryFilter
+ * @see OrientationSource
  * 
  */
-@TargetApi(Build.VERSION_CODES.GINGERBREAD)
-public class FusedGyroscopeSensor implements GyroscopeSensorObserver,
-		MagneticSensorObserver, GravitySensorObserver
+public class FusedGyroscopeSensor implements OrientationSource,
+		GyroscopeSensorObserver, MagneticSensorObserver, GravitySensorObserver,
+		GyroscopeSensorBatchObserver, MagneticSensorBatchObserver,
+		GravitySensorBatchObserver, SensorSynchronizer.Observer
 {
 	private static final String tag = FusedGyroscopeSensor.class
 			.getSimpleName();
 
-	public static final float FILTER_COEFFICIENT = 0.5f;
+	public static final float FILTER_COEFFICIENT = ComplementaryFilter.FILTER_COEFFICIENT;
 
-	public static final float EPSILON = 0.000000001f;
+	public static final float EPSILON = ComplementaryFilter.EPSILON;
 
-	// private static final float NS2S = 1.0f / 10000.0f;
-	// Nano-second to second conversion
-	private static final float NS2S = 1.0f / 1000000000.0f;
+	// Fuse with a rotation matrix and Euler angles.
+	public static final int FUSION_MODE_MATRIX = 0;
 
-	// list to keep track of the observers
-	private ArrayList<FusedGyroscopeSensorObserver> observersAngularVelocity;
+	// Fuse with a quaternion, Euler angles are only computed for observers.
+	public static final int FUSION_MODE_QUATERNION = 1;
 
-	private boolean hasOrientation = false;
+	/**
+	 * An observer and how often it wants to be notified.
+	 */
+	private static class Subscription
+	{
+		final FusedGyroscopeSensorObserver observer;
 
-	private float dT = 0;
+		// Notify on every n-th fused orientation.
+		final int decimation;
 
-	private float omegaMagnitude = 0;
+		// Limits the notifications to the requested rate.
+		final RateLimiter limiter = new RateLimiter();
 
-	private float thetaOverTwo = 0;
-	private float sinThetaOverTwo = 0;
-	private float cosThetaOverTwo = 0;
+		// The number of fused orientations since the last notification.
+		int count;
 
-	private float[] gravity = new float[]
-	{ 0, 0, 0 };
+		Subscription(FusedGyroscopeSensorObserver observer, int decimation,
+				float rate)
+		{
+			this.observer = observer;
+			this.decimation = decimation;
 
-	// angular speeds from gyro
-	private float[] gyroscope = new float[3];
+			limiter.setRate(rate);
 
-	// rotation matrix from gyro data
-	private float[] gyroMatrix = new float[9];
+			reset();
+		}
 
-	// orientation angles from gyro matrix
-	private float[] gyroOrientation = new float[3];
+		/**
+		 * Decide if the observer is due for the fused orientation at a time
+		 * stamp, and account for it if it is.
+		 */
+		boolean isDue(long timeStamp)
+		{
+			if (++count < decimation)
+			{
+				return false;
+			}
 
-	// magnetic field vector
-	private float[] magnetic = new float[3];
+			if (!limiter.isDue(timeStamp))
+			{
+				return false;
+			}
 
-	// orientation angles from accel and magnet
-	private float[] orientation = new float[3];
+			count = 0;
 
-	// final orientation angles from sensor fusion
-	private float[] fusedOrientation = new float[3];
+			return true;
+		}
 
-	// accelerometer and magnetometer based rotation matrix
-	private float[] rotationMatrix = new float[9];
+		void reset()
+		{
+			count = 0;
 
-	private float[] absoluteFrameOrientation = new float[3];
+			limiter.reset();
+		}
+	}
 
-	// copy the new gyro values into the gyro array
-	// convert the raw gyro data into a rotation vector
-	private float[] deltaVector = new float[4];
+	// list to keep track of the observers
+	private ObserverList<Subscription> observersAngularVelocity;
 
-	// convert rotation vector into rotation matrix
-	private float[] deltaMatrix = new float[9];
+	private float[] absoluteFrameOrientation = new float[3];
 
 	private long timeStamp;
 
-	private boolean initState = false;
+	private int fusionMode;
+
+	// The synchronizer in front of the fusion.
+	private SensorSynchronizer fusion;
+
+	// The configuration in use, only touched by the sensor thread.
+	private FusionConfig config;
+
+	// The configuration most recently set, picked up by the sensor thread
+	// when it differs from the one in use.
+	private volatile FusionConfig pendingConfig;
+
+	// The number of fused orientations since the observers were last
+	// notified.
+	private int outputCount;
 
-	private MeanFilter meanFilterAcceleration;
-	private MeanFilter meanFilterMagnetic;
+	// A single measurement unpacked from a batch.
+	private float[] batchSample = new float[3];
+
+	// Whether the gravity and magnetic batches have arrived since the
+	// gyroscope batch being held back.
+	private boolean gravityBatched;
+	private boolean magneticBatched;
+
+	// Time the fusion, only touched by the sensor thread.
+	private boolean profiling = false;
+	private long profiledNanos;
+	private int profiledCount;
 
 	/**
-	 * Initialize a singleton instance.
-	 * 
-	 * @param gravitySubject
-	 *            the gravity subject.
-	 * @param gyroscopeSubject
-	 *            the gyroscope subject.
-	 * @param magneticSubject
-	 *            the magnetic subject.
+	 * Initialize a new instance.
 	 */
 	public FusedGyroscopeSensor()
 	{
-		super();
-
-		observersAngularVelocity = new ArrayList<FusedGyroscopeSensorObserver>();
-
-		meanFilterAcceleration = new MeanFilter();
-		meanFilterAcceleration.setWindowSize(10);
+		this(FusionConfig.DEFAULT);
+	}
 
-		meanFilterMagnetic = new MeanFilter();
-		meanFilterMagnetic.setWindowSize(10);
+	/**
+	 * Initialize a new instance.
+	 * 
+	 * @param config
+	 *            the configuration of the fusion.
+	 */
+	public FusedGyroscopeSensor(FusionConfig config)
+	{
+		super();
 
-		gyroOrientation[0] = 0.0f;
-		gyroOrientation[1] = 0.0f;
-		gyroOrientation[2] = 0.0f;
+		this.config = config;
+		this.pendingConfig = config;
 
-		// Initialize gyroMatrix with identity matrix
-		gyroMatrix[0] = 1.0f;
-		gyroMatrix[1] = 0.0f;
-		gyroMatrix[2] = 0.0f;
-		gyroMatrix[3] = 0.0f;
-		gyroMatrix[4] = 1.0f;
-		gyroMatrix[5] = 0.0f;
-		gyroMatrix[6] = 0.0f;
-		gyroMatrix[7] = 0.0f;
-		gyroMatrix[8] = 1.0f;
+		observersAngularVelocity = new ObserverList<Subscription>(
+				new Subscription[0]);
 
+		setFusionMode(FUSION_MODE_MATRIX);
 	}
 
 	public void notifyObservers()
 	{
-		System.arraycopy(gyroOrientation, 0, absoluteFrameOrientation, 0, 3);
+		// Nobody to tell, so don't bother with the Euler angles.
+		if (observersAngularVelocity.isEmpty())
+		{
+			return;
+		}
+
+		if (++outputCount < config.getOutputDecimation())
+		{
+			return;
+		}
+
+		outputCount = 0;
+
+		boolean extracted = false;
 
-		for (FusedGyroscopeSensorObserver g : observersAngularVelocity)
+		Subscription[] subscriptions = observersAngularVelocity.getObservers();
+
+		for (int i = 0; i < subscriptions.length; i++)
 		{
-			g.onAngularVelocitySensorChanged(absoluteFrameOrientation,
-					timeStamp);
+			Subscription subscription = subscriptions[i];
+
+			if (!subscription.isDue(timeStamp))
+			{
+				continue;
+			}
+
+			// Only pay for the Euler angles once somebody needs them.
+			if (!extracted)
+			{
+				fusion.getFusedOrientation(absoluteFrameOrientation);
+
+				extracted = true;
+			}
+
+			subscription.observer.onAngularVelocitySensorChanged(
+					absoluteFrameOrientation, timeStamp);
 		}
 	}
 
+	/**
+	 * Register an observer for every fused orientation.
+	 * 
+	 * @param g
+	 *            the observer.
+	 */
+	@Override
 	public void registerObserver(FusedGyroscopeSensorObserver g)
 	{
-		observersAngularVelocity.add(g);
+		registerObserver(g, 1, 0);
 	}
 
-	public void removeObserver(FusedGyroscopeSensorObserver g)
+	/**
+	 * Register an observer for the fused orientation at a lower rate than
+	 * the gyroscope. The rate is kept on average against the measurement
+	 * time stamps, an observer is never notified faster than the gyroscope.
+	 * 
+	 * @param g
+	 *            the observer.
+	 * @param rate
+	 *            the output rate in Hz.
+	 */
+	public void registerObserver(FusedGyroscopeSensorObserver g, float rate)
 	{
-		int i = observersAngularVelocity.indexOf(g);
-		if (i >= 0)
+		if (!(rate > 0))
 		{
-			observersAngularVelocity.remove(i);
+			throw new IllegalArgumentException("Rate must be positive: "
+					+ rate);
 		}
+
+		registerObserver(g, 1, rate);
 	}
 
 	/**
-	 * Calculates orientation angles from accelerometer and magnetometer output.
+	 * Register an observer for every n-th fused orientation.
+	 * 
+	 * @param g
+	 *            the observer.
+	 * @param decimation
+	 *            the number of fused orientations per notification.
 	 */
-	private void calculateOrientation()
+	public void registerDecimatedObserver(FusedGyroscopeSensorObserver g,
+			int decimation)
 	{
-		if (SensorManager.getRotationMatrix(rotationMatrix, null, gravity,
-				magnetic))
+		if (decimation < 1)
 		{
-			SensorManager.getOrientation(rotationMatrix, orientation);
+			throw new IllegalArgumentException(
+					"Decimation must be positive: " + decimation);
+		}
+
+		registerObserver(g, decimation, 0);
+	}
+
+	@Override
+	public void removeObserver(FusedGyroscopeSensorObserver g)
+	{
+		Subscription subscription;
 
-			hasOrientation = true;
+		while ((subscription = findSubscription(g)) != null)
+		{
+			observersAngularVelocity.remove(subscription);
 		}
 	}
 
 	/**
-	 * Get the rotation matrix from the current orientation. Android Sensor
-	 * Manager does not provide a method to transform the orientation into a
-	 * rotation matrix, only the orientation from a rotation matrix. The basic
-	 * rotations can be found in Wikipedia with the caveat that the rotations
-	 * are *transposed* relative to what is required for this method.
-	 * 
-	 * @param The
-	 *            device orientation.
-	 * @return The rotation matrix from the orientation.
+	 * Get the configuration of the fusion. A configuration passed to
+	 * setConfig() is returned as soon as it has been set, even if the sensor
+	 * thread hasn't picked it up yet.
 	 * 
-	 * @see http://en.wikipedia.org/wiki/Rotation_matrix
+	 * @return the configuration.
 	 */
-	private float[] getRotationMatrixFromOrientation(float[] orientation)
+	public FusionConfig getConfig()
 	{
-		float[] xM = new float[9];
-		float[] yM = new float[9];
-		float[] zM = new float[9];
-
-		float sinX = (float) Math.sin(orientation[1]);
-		float cosX = (float) Math.cos(orientation[1]);
-		float sinY = (float) Math.sin(orientation[2]);
-		float cosY = (float) Math.cos(orientation[2]);
-		float sinZ = (float) Math.sin(orientation[0]);
-		float cosZ = (float) Math.cos(orientation[0]);
-
-		// rotation about x-axis (pitch)
-		xM[0] = 1.0f;
-		xM[1] = 0.0f;
-		xM[2] = 0.0f;
-		xM[3] = 0.0f;
-		xM[4] = cosX;
-		xM[5] = sinX;
-		xM[6] = 0.0f;
-		xM[7] = -sinX;
-		xM[8] = cosX;
-
-		// rotation about y-axis (roll)
-		yM[0] = cosY;
-		yM[1] = 0.0f;
-		yM[2] = sinY;
-		yM[3] = 0.0f;
-		yM[4] = 1.0f;
-		yM[5] = 0.0f;
-		yM[6] = -sinY;
-		yM[7] = 0.0f;
-		yM[8] = cosY;
-
-		// rotation about z-axis (azimuth)
-		zM[0] = cosZ;
-		zM[1] = sinZ;
-		zM[2] = 0.0f;
-		zM[3] = -sinZ;
-		zM[4] = cosZ;
-		zM[5] = 0.0f;
-		zM[6] = 0.0f;
-		zM[7] = 0.0f;
-		zM[8] = 1.0f;
-
-		// Build the composite rotation... rotation order is y, x, z (roll,
-		// pitch, azimuth)
-		float[] resultMatrix = matrixMultiplication(xM, yM);
-		resultMatrix = matrixMultiplication(zM, resultMatrix);
-		return resultMatrix;
+		return pendingConfig;
 	}
 
 	/**
-	 * Calculates a rotation vector from the gyroscope angular speed values.
+	 * Change the configuration of the fusion. This is safe to call from any
+	 * thread, the fusion carries on from its current orientation with the new
+	 * configuration from the next measurement.
 	 * 
-	 * @param gyroValues
-	 * @param deltaRotationVector
-	 * @param timeFactor
-	 * @see http://developer.android
-	 *      .com/reference/android/hardware/SensorEvent.html#values
+	 * @param config
+	 *            the new configuration.
 	 */
-	private void getRotationVectorFromGyro(float timeFactor)
+	public void setConfig(FusionConfig config)
 	{
-
-		// Calculate the angular speed of the sample
-		omegaMagnitude = (float) Math.sqrt(Math.pow(gyroscope[0], 2)
-				+ Math.pow(gyroscope[1], 2) + Math.pow(gyroscope[2], 2));
-
-		// Normalize the rotation vector if it's big enough to get the axis
-		if (omegaMagnitude > EPSILON)
+		if (config == null)
 		{
-			gyroscope[0] /= omegaMagnitude;
-			gyroscope[1] /= omegaMagnitude;
-			gyroscope[2] /= omegaMagnitude;
+			throw new IllegalArgumentException("Config must not be null");
 		}
 
-		// Integrate around this axis with the angular speed by the timestep
-		// in order to get a delta rotation from this sample over the timestep
-		// We will convert this axis-angle representation of the delta rotation
-		// into a quaternion before turning it into the rotation matrix.
-		thetaOverTwo = omegaMagnitude * timeFactor;
-		sinThetaOverTwo = (float) Math.sin(thetaOverTwo);
-		cosThetaOverTwo = (float) Math.cos(thetaOverTwo);
-
-		deltaVector[0] = sinThetaOverTwo * gyroscope[0];
-		deltaVector[1] = sinThetaOverTwo * gyroscope[1];
-		deltaVector[2] = sinThetaOverTwo * gyroscope[2];
-		deltaVector[3] = cosThetaOverTwo;
+		pendingConfig = config;
 	}
 
 	/**
-	 * Multiply A by B.
+	 * Get the fusion mode.
 	 * 
-	 * @param A
-	 * @param B
-	 * @return A*B
+	 * @return FUSION_MODE_MATRIX or FUSION_MODE_QUATERNION.
 	 */
-	private float[] matrixMultiplication(float[] A, float[] B)
+	public int getFusionMode()
 	{
-		float[] result = new float[9];
+		return fusionMode;
+	}
 
-		result[0] = A[0] * B[0] + A[1] * B[3] + A[2] * B[6];
-		result[1] = A[0] * B[1] + A[1] * B[4] + A[2] * B[7];
-		result[2] = A[0] * B[2] + A[1] * B[5] + A[2] * B[8];
+	/**
+	 * Select how the sensors are fused. Changing the mode starts a new fusion
+	 * from its initial state.
+	 * 
+	 * @param fusionMode
+	 *            FUSION_MODE_MATRIX or FUSION_MODE_QUATERNION.
+	 */
+	public void setFusionMode(int fusionMode)
+	{
+		switch (fusionMode)
+		{
+		case FUSION_MODE_MATRIX:
+			fusion = new SensorSynchronizer(new ComplementaryFilter(config),
+					config);
+			break;
+		case FUSION_MODE_QUATERNION:
+			fusion = new SensorSynchronizer(
+					new QuaternionComplementaryFilter(config), config);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown fusion mode: "
+					+ fusionMode);
+		}
 
-		result[3] = A[3] * B[0] + A[4] * B[3] + A[5] * B[6];
-		result[4] = A[3] * B[1] + A[4] * B[4] + A[5] * B[7];
-		result[5] = A[3] * B[2] + A[4] * B[5] + A[5] * B[8];
+		fusion.setObserver(this);
 
-		result[6] = A[6] * B[0] + A[7] * B[3] + A[8] * B[6];
-		result[7] = A[6] * B[1] + A[7] * B[4] + A[8] * B[7];
-		result[8] = A[6] * B[2] + A[7] * B[5] + A[8] * B[8];
+		this.fusionMode = fusionMode;
 
-		return result;
+		timeStamp = 0;
+		outputCount = 0;
 	}
 
 	/**
-	 * Calculate the fused orientation.
+	 * Reset the fusion to its initial state.
 	 */
-	private void calculateFusedOrientation()
+	@Override
+	public void reset()
 	{
-		float oneMinusCoeff = (1.0f - FILTER_COEFFICIENT);
-
-		/*
-		 * Fix for 179 <--> -179 transition problem: Check whether one of the
-		 * two orientation angles (gyro or accMag) is negative while the other
-		 * one is positive. If so, add 360 (2 * math.PI) to the negative value,
-		 * perform the sensor fusion, and remove the 360 from the result if it
-		 * is greater than 180. This stabilizes the output in
-		 * positive-to-negative-transition cases.
-		 */
+		fusion.reset();
 
-		// azimuth
-		if (gyroOrientation[0] < -0.5 * Math.PI && orientation[0] > 0.0)
-		{
-			fusedOrientation[0] = (float) (FILTER_COEFFICIENT
-					* (gyroOrientation[0] + 2.0 * Math.PI) + oneMinusCoeff
-					* orientation[0]);
-			fusedOrientation[0] -= (fusedOrientation[0] > Math.PI) ? 2.0 * Math.PI
-					: 0;
-		}
-		else if (orientation[0] < -0.5 * Math.PI && gyroOrientation[0] > 0.0)
-		{
-			fusedOrientation[0] = (float) (FILTER_COEFFICIENT
-					* gyroOrientation[0] + oneMinusCoeff
-					* (orientation[0] + 2.0 * Math.PI));
-			fusedOrientation[0] -= (fusedOrientation[0] > Math.PI) ? 2.0 * Math.PI
-					: 0;
-		}
-		else
-		{
-			fusedOrientation[0] = FILTER_COEFFICIENT * gyroOrientation[0]
-					+ oneMinusCoeff * orientation[0];
-		}
+		timeStamp = 0;
+		outputCount = 0;
 
-		// pitch
-		if (gyroOrientation[1] < -0.5 * Math.PI && orientation[1] > 0.0)
-		{
-			fusedOrientation[1] = (float) (FILTER_COEFFICIENT
-					* (gyroOrientation[1] + 2.0 * Math.PI) + oneMinusCoeff
-					* orientation[1]);
-			fusedOrientation[1] -= (fusedOrientation[1] > Math.PI) ? 2.0 * Math.PI
-					: 0;
-		}
-		else if (orientation[1] < -0.5 * Math.PI && gyroOrientation[1] > 0.0)
-		{
-			fusedOrientation[1] = (float) (FILTER_COEFFICIENT
-					* gyroOrientation[1] + oneMinusCoeff
-					* (orientation[1] + 2.0 * Math.PI));
-			fusedOrientation[1] -= (fusedOrientation[1] > Math.PI) ? 2.0 * Math.PI
-					: 0;
-		}
-		else
-		{
-			fusedOrientation[1] = FILTER_COEFFICIENT * gyroOrientation[1]
-					+ oneMinusCoeff * orientation[1];
-		}
+		Subscription[] subscriptions = observersAngularVelocity.getObservers();
 
-		// roll
-		if (gyroOrientation[2] < -0.5 * Math.PI && orientation[2] > 0.0)
-		{
-			fusedOrientation[2] = (float) (FILTER_COEFFICIENT
-					* (gyroOrientation[2] + 2.0 * Math.PI) + oneMinusCoeff
-					* orientation[2]);
-			fusedOrientation[2] -= (fusedOrientation[2] > Math.PI) ? 2.0 * Math.PI
-					: 0;
-		}
-		else if (orientation[2] < -0.5 * Math.PI && gyroOrientation[2] > 0.0)
-		{
-			fusedOrientation[2] = (float) (FILTER_COEFFICIENT
-					* gyroOrientation[2] + oneMinusCoeff
-					* (orientation[2] + 2.0 * Math.PI));
-			fusedOrientation[2] -= (fusedOrientation[2] > Math.PI) ? 2.0 * Math.PI
-					: 0;
-		}
-		else
+		for (int i = 0; i < subscriptions.length; i++)
 		{
-			fusedOrientation[2] = FILTER_COEFFICIENT * gyroOrientation[2]
-					+ oneMinusCoeff * orientation[2];
+			subscriptions[i].reset();
 		}
+	}
 
-		// overwrite gyro matrix and orientation with fused orientation
-		// to comensate gyro drift
-		gyroMatrix = getRotationMatrixFromOrientation(fusedOrientation);
+	@Override
+	public void setProfilingEnabled(boolean enabled)
+	{
+		profiling = enabled;
 
-		System.arraycopy(fusedOrientation, 0, gyroOrientation, 0, 3);
+		profiledNanos = 0;
+		profiledCount = 0;
+	}
 
-		notifyObservers();
+	@Override
+	public long getProfiledNanos()
+	{
+		return profiledNanos;
+	}
+
+	@Override
+	public int getProfiledCount()
+	{
+		return profiledCount;
 	}
 
 	@Override
 	public void onMagneticSensorChanged(float[] magnetic, long timeStamp)
 	{
-		// Get a local copy of the raw magnetic values from the device sensor.
-		System.arraycopy(magnetic, 0, this.magnetic, 0, magnetic.length);
+		long start = startProfile();
+
+		applyPendingConfig();
 
-		this.magnetic = meanFilterMagnetic.filterFloat(this.magnetic);
+		fusion.updateMagnetic(magnetic, timeStamp);
+
+		endProfile(start);
 	}
-	
+
 	@Override
 	public void onGravitySensorChanged(float[] gravity, long timeStamp)
 	{
-		// Get a local copy of the raw magnetic values from the device sensor.
-		System.arraycopy(gravity, 0, this.gravity, 0, gravity.length);
+		long start = startProfile();
+
+		applyPendingConfig();
 
-		this.gravity = meanFilterAcceleration.filterFloat(this.gravity);
+		fusion.updateGravity(gravity, timeStamp);
 
-		calculateOrientation();
+		endProfile(start);
 	}
 
 	@Override
 	public void onGyroscopeSensorChanged(float[] gyroscope, long timeStamp)
 	{
-		// don't start until first accelerometer/magnetometer orientation has
-		// been acquired
-		if (!hasOrientation)
+		long start = startProfile();
+
+		applyPendingConfig();
+
+		fusion.updateGyroscope(gyroscope, timeStamp);
+
+		endProfile(start);
+	}
+
+	@Override
+	public void onMagneticSensorBatch(float[] magnetic, long[] timeStamps,
+			int count)
+	{
+		long start = startProfile();
+
+		applyPendingConfig();
+
+		for (int i = 0; i < count; i++)
 		{
-			return;
+			System.arraycopy(magnetic, i * 3, batchSample, 0, 3);
+
+			fusion.updateMagnetic(batchSample, timeStamps[i]);
 		}
 
-		// Initialization of the gyroscope based rotation matrix
-		if (!initState)
+		magneticBatched = true;
+
+		releaseBatches();
+
+		endProfile(start);
+	}
+
+	@Override
+	public void onGravitySensorBatch(float[] gravity, long[] timeStamps,
+			int count)
+	{
+		long start = startProfile();
+
+		applyPendingConfig();
+
+		for (int i = 0; i < count; i++)
 		{
-			gyroMatrix = matrixMultiplication(gyroMatrix, rotationMatrix);
-			initState = true;
+			System.arraycopy(gravity, i * 3, batchSample, 0, 3);
+
+			fusion.updateGravity(batchSample, timeStamps[i]);
 		}
 
-		if (this.timeStamp != 0)
+		gravityBatched = true;
+
+		releaseBatches();
+
+		endProfile(start);
+	}
+
+	@Override
+	public void onGyroscopeSensorBatch(float[] gyroscope, long[] timeStamps,
+			int count)
+	{
+		long start = startProfile();
+
+		applyPendingConfig();
+
+		// Wait for the gravity and magnetic batches that cover this one.
+		fusion.hold();
+
+		gravityBatched = false;
+		magneticBatched = false;
+
+		for (int i = 0; i < count; i++)
 		{
-			dT = (timeStamp - this.timeStamp) * NS2S;
+			System.arraycopy(gyroscope, i * 3, batchSample, 0, 3);
 
-			System.arraycopy(gyroscope, 0, this.gyroscope, 0, 3);
-			getRotationVectorFromGyro(dT / 2.0f);
+			fusion.updateGyroscope(batchSample, timeStamps[i]);
 		}
 
-		// measurement done, save current time for next interval
+		endProfile(start);
+	}
+
+	@Override
+	public void onFusedOrientation(long timeStamp)
+	{
 		this.timeStamp = timeStamp;
 
-		// Get the rotation matrix from the gyroscope
-		SensorManager.getRotationMatrixFromVector(deltaMatrix, deltaVector);
+		if (profiling)
+		{
+			profiledCount++;
+		}
+
+		notifyObservers();
+	}
+
+	private long startProfile()
+	{
+		return profiling ? System.nanoTime() : 0;
+	}
 
-		// Apply the new rotation interval on the gyroscope based rotation
-		// matrix to form a composite rotation matrix. The product of two
-		// rotation matricies is a rotation matrix...
-		// Multiplication of rotation matrices corresponds to composition of
-		// rotations... Which in this case are the rotation matrix from the
-		// fused orientation and the rotation matrix from the current gyroscope
-		// outputs.
-		gyroMatrix = matrixMultiplication(gyroMatrix, deltaMatrix);
+	/**
+	 * Charge the time since startProfile() to the fused orientations, which
+	 * are counted as they are fused.
+	 * 
+	 * @param start
+	 *            the value startProfile() returned.
+	 */
+	private void endProfile(long start)
+	{
+		if (profiling)
+		{
+			profiledNanos += System.nanoTime() - start;
+		}
+	}
 
-		// Get the gyroscope based orientation from the composite rotation
-		// matrix. This orientation will be fused via complementary filter with
-		// the orientation from the acceleration sensor and magnetic sensor.
-		SensorManager.getOrientation(gyroMatrix, gyroOrientation);
+	/**
+	 * Let the gyroscope batch go once the gravity and magnetic batches after
+	 * it have been fed in.
+	 */
+	private void releaseBatches()
+	{
+		if (gravityBatched && magneticBatched)
+		{
+			fusion.release();
+		}
+	}
+
+	/**
+	 * Switch to a configuration set by setConfig(), between measurements.
+	 */
+	private void applyPendingConfig()
+	{
+		FusionConfig pending = pendingConfig;
+
+		if (pending != config)
+		{
+			config = pending;
+			fusion.setConfig(pending);
+		}
+	}
+
+	/**
+	 * Register an observer, replacing its rate if it is already registered.
+	 */
+	private void registerObserver(FusedGyroscopeSensorObserver g,
+			int decimation, float rate)
+	{
+		removeObserver(g);
+
+		observersAngularVelocity.add(new Subscription(g, decimation, rate));
+	}
+
+	private Subscription findSubscription(FusedGyroscopeSensorObserver g)
+	{
+		Subscription[] subscriptions = observersAngularVelocity.getObservers();
+
+		for (int i = 0; i < subscriptions.length; i++)
+		{
+			if (subscriptions[i].observer == g)
+			{
+				return subscriptions[i];
+			}
+		}
 
-		calculateFusedOrientation();
+		return null;
 	}
 }
@@ -1,17 +1,16 @@
 package com.kircherelectronics.fusedgyroscopeexplorer.sensor;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-
-import org.apache.commons.math3.geometry.euclidean.threed.Rotation;
-import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.content.Context;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.Looper;
 
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.GravitySensorBatchObserver;
 import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.GravitySensorObserver;
 
 /*
@@ -54,21 +53,37 @@ import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.GravitySens
  */
 public class GravitySensor implements SensorEventListener
 {
-	/*
-	 * Developer Note: Quaternions are used for the internal representations of
-	 * the rotations which prevents the polar anomalies associated with Gimbal
-	 * lock when using Euler angles for the rotations.
-	 */
-
 	private static final String tag = GravitySensor.class.getSimpleName();
 
 	// Keep track of observers.
-	private ArrayList<GravitySensorObserver> observersAcceleration;
+	private ObserverList<GravitySensorObserver> observersAcceleration;
+
+	// Keep track of observers that take the measurements in batches and the
+	// max report latency each of them has asked for.
+	private ObserverList<GravitySensorBatchObserver> observersGravityBatch;
+	private ConcurrentHashMap<GravitySensorBatchObserver, Integer> batchLatencies;
+
+	// The max report latency the sensor is registered with, -1 if the sensor
+	// is not registered.
+	private int registeredLatency = -1;
+
+	// Collects the measurements of a hardware FIFO flush into one batch.
+	private SensorBatch batch;
+
+	// Sensor Events are delivered on the thread of this handler. The batch is
+	// delivered once every measurement of a flush, which are all dispatched
+	// from the same message, has been added to it.
+	private Handler handler;
+	private Runnable flushBatch;
+	private boolean flushPending = false;
+
+	// Registers for Sensor Events on the handler's thread after the observers
+	// have changed.
+	private Runnable updateRegistration;
 
-	// Keep track of the application mode. Vehicle Mode occurs when the device
-	// is in the Landscape orientation and the sensors are rotated to face the
-	// -Z-Axis (along the axis of the camera).
-	private boolean vehicleMode = false;
+	// Rotates the measurements into the axes the device is mounted in, null
+	// to leave them in the device axes. Set from any thread.
+	private volatile AxisRemap axisRemap;
 
 	// We need the Context to register for Sensor Events.
 	private Context context;
@@ -80,38 +95,68 @@ public class GravitySensor implements SensorEventListener
 	// The time stamp of the most recent Sensor Event.
 	private long timeStamp = 0;
 
-	// Quaternion data structures to rotate a matrix from the absolute Android
-	// orientation to the orientation that the device is actually in. This is
-	// needed because the the device sensors orientation is fixed in hardware.
-	// Also remember the many algorithms require a NED orientation which is not
-	// the same as the absolute Android orientation. Do not confuse this
-	// rotation with a rotation into absolute earth frame!
-	private Rotation yQuaternion;
-	private Rotation xQuaternion;
-	private Rotation rotationQuaternion;
-
 	// We need the SensorManager to register for Sensor Events.
 	private SensorManager sensorManager;
 
-	// The vectors that will be rotated when the application is in Vehicle Mode.
-	private Vector3D vIn;
-	private Vector3D vOut;
+	// How regularly the Sensor Events arrive, only touched on the handler's
+	// thread.
+	private SensorMetrics metrics = new SensorMetrics();
 
 	/**
-	 * Initialize the state.
+	 * Initialize the state. Sensor Events are delivered on the thread that
+	 * creates the instance.
 	 * 
 	 * @param context
 	 *            the Activities context.
 	 */
 	public GravitySensor(Context context)
+	{
+		this(context, new Handler());
+	}
+
+	/**
+	 * Initialize the state. Sensor Events are delivered on the thread of the
+	 * handler and observers are notified on that thread. Observers can be
+	 * registered and removed from any thread.
+	 * 
+	 * @param context
+	 *            the Activities context.
+	 * @param handler
+	 *            the Handler of the thread that processes the Sensor Events.
+	 */
+	public GravitySensor(Context context, Handler handler)
 	{
 		super();
 
+		this.handler = handler;
+
 		this.context = context;
 
-		initQuaternionRotations();
+		observersAcceleration = new ObserverList<GravitySensorObserver>(
+				new GravitySensorObserver[0]);
+		observersGravityBatch = new ObserverList<GravitySensorBatchObserver>(
+				new GravitySensorBatchObserver[0]);
+		batchLatencies = new ConcurrentHashMap<GravitySensorBatchObserver, Integer>();
+
+		batch = new SensorBatch(SensorBatch.DEFAULT_CAPACITY);
 
-		observersAcceleration = new ArrayList<GravitySensorObserver>();
+		flushBatch = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				flushBatch();
+			}
+		};
+
+		updateRegistration = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				updateRegistration();
+			}
+		};
 
 		sensorManager = (SensorManager) this.context
 				.getSystemService(Context.SENSOR_SERVICE);
@@ -126,21 +171,10 @@ public class GravitySensor implements SensorEventListener
 	 */
 	public void registerGravityObserver(GravitySensorObserver observer)
 	{
-		// If there are currently no observers, but one has just requested to be
-		// registered, register to listen for sensor events from the device.
-		if (observersAcceleration.size() == 0)
-		{
-			sensorManager.registerListener(this,
-					sensorManager.getDefaultSensor(Sensor.TYPE_GRAVITY),
-					SensorManager.SENSOR_DELAY_FASTEST);
-		}
+		// Only registers the observer if it is not already registered.
+		observersAcceleration.add(observer);
 
-		// Only register the observer if it is not already registered.
-		int i = observersAcceleration.indexOf(observer);
-		if (i == -1)
-		{
-			observersAcceleration.add(observer);
-		}
+		requestRegistrationUpdate();
 	}
 
 	/**
@@ -151,17 +185,58 @@ public class GravitySensor implements SensorEventListener
 	 */
 	public void removeGravityObserver(GravitySensorObserver observer)
 	{
-		int i = observersAcceleration.indexOf(observer);
-		if (i >= 0)
-		{
-			observersAcceleration.remove(i);
-		}
+		observersAcceleration.remove(observer);
 
 		// If there are no observers, then don't listen for Sensor Events.
-		if (observersAcceleration.size() == 0)
-		{
-			sensorManager.unregisterListener(this);
-		}
+		requestRegistrationUpdate();
+	}
+
+	/**
+	 * Register for Sensor.TYPE_GRAVITY measurements in batches. Where the
+	 * device supports it the measurements are held in the sensors hardware
+	 * FIFO for up to maxReportLatencyUs, so the CPU does not have to wake up
+	 * for each of them. Batching only takes effect while no observer wants
+	 * the measurements one at a time.
+	 * 
+	 * @param observer
+	 *            The observer to be registered.
+	 * @param maxReportLatencyUs
+	 *            the longest the observer is willing to wait for a
+	 *            measurement in microseconds.
+	 */
+	public void registerGravityBatchObserver(
+			GravitySensorBatchObserver observer, int maxReportLatencyUs)
+	{
+		batchLatencies.put(observer, maxReportLatencyUs);
+		observersGravityBatch.add(observer);
+
+		requestRegistrationUpdate();
+	}
+
+	/**
+	 * Remove Sensor.TYPE_GRAVITY measurements in batches.
+	 * 
+	 * @param observer
+	 *            The observer to be removed.
+	 */
+	public void removeGravityBatchObserver(
+			GravitySensorBatchObserver observer)
+	{
+		observersGravityBatch.remove(observer);
+		batchLatencies.remove(observer);
+
+		requestRegistrationUpdate();
+	}
+
+	/**
+	 * Get the metrics of the Sensor Events. Only read them on the thread of
+	 * the handler.
+	 * 
+	 * @return the metrics.
+	 */
+	public SensorMetrics getMetrics()
+	{
+		return metrics;
 	}
 
 	@Override
@@ -175,16 +250,25 @@ public class GravitySensor implements SensorEventListener
 	{
 		if (event.sensor.getType() == Sensor.TYPE_GRAVITY)
 		{
+			metrics.add(event.timestamp);
+
 			System.arraycopy(event.values, 0, gravity, 0, event.values.length);
 
 			timeStamp = event.timestamp;
 
-			if (vehicleMode)
+			AxisRemap axisRemap = this.axisRemap;
+
+			if (axisRemap != null)
 			{
-				gravity = quaternionToDeviceVehicleMode(gravity);
+				axisRemap.apply(this.gravity);
 			}
 
 			notifyGravityObserver();
+
+			if (!observersGravityBatch.isEmpty())
+			{
+				addToBatch();
+			}
 		}
 	}
 
@@ -199,75 +283,151 @@ public class GravitySensor implements SensorEventListener
 	 */
 	public void setVehicleMode(boolean vehicleMode)
 	{
-		this.vehicleMode = vehicleMode;
+		this.axisRemap = vehicleMode ? AxisRemap.VEHICLE_MODE : null;
 	}
 
 	/**
-	 * To avoid anomalies at the poles with Euler angles and Gimbal lock,
-	 * quaternions are used instead.
+	 * Rotate the measurements into the axes the device is mounted in. This
+	 * replaces Vehicle Mode, and Vehicle Mode replaces it.
+	 * 
+	 * @param axisRemap
+	 *            the rotation into the mounting axes, null to leave the
+	 *            measurements in the device axes.
 	 */
-	private void initQuaternionRotations()
+	public void setAxisRemap(AxisRemap axisRemap)
 	{
-		// Rotate by 90 degrees or pi/2 radians.
-		double rotation = Math.PI / 2;
-
-		// Create the rotation around the x-axis
-		Vector3D xV = new Vector3D(1, 0, 0);
-		xQuaternion = new Rotation(xV, rotation);
-
-		// Create the rotation around the y-axis
-		Vector3D yV = new Vector3D(0, 1, 0);
-		yQuaternion = new Rotation(yV, -rotation);
+		this.axisRemap = axisRemap;
+	}
 
-		// Create the composite rotation.
-		rotationQuaternion = yQuaternion.applyTo(xQuaternion);
+	/**
+	 * Update the Sensor Event registration on the handler's thread, which
+	 * owns it, once the observers have changed.
+	 */
+	private void requestRegistrationUpdate()
+	{
+		if (Looper.myLooper() == handler.getLooper())
+		{
+			updateRegistration();
+		}
+		else
+		{
+			handler.removeCallbacks(updateRegistration);
+			handler.post(updateRegistration);
+		}
 	}
 
 	/**
-	 * Notify observers with new measurements.
+	 * Register for Sensor Events with the max report latency the observers
+	 * need, re-registering if it has changed. Any observer that wants each
+	 * measurement as it happens forces a latency of 0.
 	 */
-	private void notifyGravityObserver()
+	private void updateRegistration()
 	{
-		// The iterator is a work around for a concurrency exception...
-		GravitySensorObserver observer;
+		int latency = -1;
+
+		if (!observersAcceleration.isEmpty())
+		{
+			latency = 0;
+		}
+		else
+		{
+			GravitySensorBatchObserver[] observers = observersGravityBatch
+					.getObservers();
+
+			for (int i = 0; i < observers.length; i++)
+			{
+				Integer observerLatency = batchLatencies.get(observers[i]);
+
+				// Removed since the snapshot was taken.
+				if (observerLatency == null)
+				{
+					continue;
+				}
+
+				if (latency == -1 || observerLatency < latency)
+				{
+					latency = observerLatency;
+				}
+			}
+		}
+
+		if (latency == registeredLatency)
+		{
+			return;
+		}
+
+		if (registeredLatency != -1)
+		{
+			sensorManager.unregisterListener(this);
+		}
 
-		ArrayList<GravitySensorObserver> notificationList = new ArrayList<GravitySensorObserver>(
-				observersAcceleration);
+		// Don't hold on to measurements nobody may be waiting for anymore.
+		flushBatch();
 
-		for (Iterator<GravitySensorObserver> iterator = notificationList
-				.iterator(); iterator.hasNext();)
+		if (latency != -1)
 		{
-			observer = iterator.next();
+			SensorRegistration.registerListener(sensorManager, this,
+					sensorManager.getDefaultSensor(Sensor.TYPE_GRAVITY),
+					latency, handler);
+		}
+
+		registeredLatency = latency;
+	}
 
-			observer.onGravitySensorChanged(this.gravity, this.timeStamp);
+	/**
+	 * Add the most recent measurement to the batch. The batch is delivered
+	 * when it is full, or otherwise after the rest of the measurements that
+	 * arrived with it have been added.
+	 */
+	private void addToBatch()
+	{
+		if (batch.add(gravity, timeStamp))
+		{
+			handler.removeCallbacks(flushBatch);
+			flushBatch();
+		}
+		else if (!flushPending)
+		{
+			flushPending = true;
+			handler.post(flushBatch);
 		}
 	}
 
 	/**
-	 * Orient the measurements from the absolute Android device rotation into
-	 * the current device orientation. Note that the rotation is different based
-	 * on the current rotation of the device relative to the absolute Android
-	 * rotation. Do not confuse this with a rotation into absolute earth frame,
-	 * or the NED orientation that the algorithm assumes.
-	 * 
-	 * @param measurements
-	 *            the measurements referenced to the absolute Android
-	 *            orientation.
-	 * @return the measurements referenced to the current device rotation.
-	 * 
-	 * @see http 
-	 *      ://developer.android.com/reference/android/hardware/SensorEvent.html
-	 *      #values
+	 * Notify batch observers with the measurements collected so far.
 	 */
-	private float[] quaternionToDeviceVehicleMode(float[] matrix)
+	private void flushBatch()
 	{
+		flushPending = false;
 
-		vIn = new Vector3D(matrix[0], matrix[1], matrix[2]);
-		vOut = rotationQuaternion.applyTo(vIn);
+		if (batch.isEmpty())
+		{
+			return;
+		}
+
+		GravitySensorBatchObserver[] observers = observersGravityBatch
+				.getObservers();
+
+		for (int i = 0; i < observers.length; i++)
+		{
+			observers[i].onGravitySensorBatch(batch.getValues(),
+					batch.getTimeStamps(), batch.getCount());
+		}
 
-		float[] rotation =
-		{ (float) vOut.getX(), (float) vOut.getY(), (float) vOut.getZ() };
+		batch.clear();
+	}
 
-		return rotation;
+	/**
+	 * Notify observers with new measurements.
+	 */
+	private void notifyGravityObserver()
+	{
+		GravitySensorObserver[] observers = observersAcceleration
+				.getObservers();
+
+		for (int i = 0; i < observers.length; i++)
+		{
+			observers[i].onGravitySensorChanged(this.gravity, this.timeStamp);
+		}
 	}
 }
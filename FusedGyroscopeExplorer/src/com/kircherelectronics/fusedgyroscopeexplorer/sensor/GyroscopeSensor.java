@@ -1,9 +1,6 @@
 package com.kircherelectronics.fusedgyroscopeexplorer.sensor;
 
-import java.util.ArrayList;
-
-import org.apache.commons.math3.geometry.euclidean.threed.Rotation;
-import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.app.AlertDialog;
 import android.content.Context;
@@ -12,7 +9,10 @@ import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.Looper;
 
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.GyroscopeSensorBatchObserver;
 import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.GyroscopeSensorObserver;
 
 /*
@@ -50,21 +50,37 @@ import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.GyroscopeSe
  */
 public class GyroscopeSensor implements SensorEventListener
 {
-	/*
-	 * Developer Note: Quaternions are used for the internal representations of
-	 * the rotations which prevents the polar anomalies associated with Gimbal
-	 * lock when using Euler angles for the rotations.
-	 */
-
 	private static final String tag = GyroscopeSensor.class.getSimpleName();
 	
 	// Keep track of observers.
-	private ArrayList<GyroscopeSensorObserver> observersGyroscope;
+	private ObserverList<GyroscopeSensorObserver> observersGyroscope;
+
+	// Keep track of observers that take the measurements in batches and the
+	// max report latency each of them has asked for.
+	private ObserverList<GyroscopeSensorBatchObserver> observersGyroscopeBatch;
+	private ConcurrentHashMap<GyroscopeSensorBatchObserver, Integer> batchLatencies;
+
+	// The max report latency the sensor is registered with, -1 if the sensor
+	// is not registered.
+	private int registeredLatency = -1;
+
+	// Collects the measurements of a hardware FIFO flush into one batch.
+	private SensorBatch batch;
+
+	// Sensor Events are delivered on the thread of this handler. The batch is
+	// delivered once every measurement of a flush, which are all dispatched
+	// from the same message, has been added to it.
+	private Handler handler;
+	private Runnable flushBatch;
+	private boolean flushPending = false;
+
+	// Registers for Sensor Events on the handler's thread after the observers
+	// have changed.
+	private Runnable updateRegistration;
 
-	// Keep track of the application mode. Vehicle Mode occurs when the device
-	// is in the Landscape orientation and the sensors are rotated to face the
-	// -Z-Axis (along the axis of the camera).
-	private boolean vehicleMode = false;
+	// Rotates the measurements into the axes the device is mounted in, null
+	// to leave them in the device axes. Set from any thread.
+	private volatile AxisRemap axisRemap;
 
 	// We need the Context to register for Sensor Events.
 	private Context context;
@@ -76,38 +92,68 @@ public class GyroscopeSensor implements SensorEventListener
 	// The time stamp of the most recent Sensor Event.
 	private long timeStamp = 0;
 
-	// Quaternion data structures to rotate a matrix from the absolute Android
-	// orientation to the orientation that the device is actually in. This is
-	// needed because the the device sensors orientation is fixed in hardware.
-	// Also remember the many algorithms require a NED orientation which is not
-	// the same as the absolute Android orientation. Do not confuse this
-	// rotation with a rotation into absolute earth frame!
-	private Rotation yQuaternion;
-	private Rotation xQuaternion;
-	private Rotation rotationQuaternion;
-
 	// We need the SensorManager to register for Sensor Events.
 	private SensorManager sensorManager;
 
-	// The vectors that will be rotated when the application is in Vehicle Mode.
-	private Vector3D vIn;
-	private Vector3D vOut;
+	// How regularly the Sensor Events arrive, only touched on the handler's
+	// thread.
+	private SensorMetrics metrics = new SensorMetrics();
 
 	/**
-	 * Initialize the state.
+	 * Initialize the state. Sensor Events are delivered on the thread that
+	 * creates the instance.
 	 * 
 	 * @param context
 	 *            the Activities context.
 	 */
 	public GyroscopeSensor(Context context)
+	{
+		this(context, new Handler());
+	}
+
+	/**
+	 * Initialize the state. Sensor Events are delivered on the thread of the
+	 * handler and observers are notified on that thread. Observers can be
+	 * registered and removed from any thread.
+	 * 
+	 * @param context
+	 *            the Activities context.
+	 * @param handler
+	 *            the Handler of the thread that processes the Sensor Events.
+	 */
+	public GyroscopeSensor(Context context, Handler handler)
 	{
 		super();
 
+		this.handler = handler;
+
 		this.context = context;
 
-		initQuaternionRotations();
+		observersGyroscope = new ObserverList<GyroscopeSensorObserver>(
+				new GyroscopeSensorObserver[0]);
+		observersGyroscopeBatch = new ObserverList<GyroscopeSensorBatchObserver>(
+				new GyroscopeSensorBatchObserver[0]);
+		batchLatencies = new ConcurrentHashMap<GyroscopeSensorBatchObserver, Integer>();
+
+		batch = new SensorBatch(SensorBatch.DEFAULT_CAPACITY);
+
+		flushBatch = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				flushBatch();
+			}
+		};
 
-		observersGyroscope = new ArrayList<GyroscopeSensorObserver>();
+		updateRegistration = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				updateRegistration();
+			}
+		};
 
 		sensorManager = (SensorManager) this.context
 				.getSystemService(Context.SENSOR_SERVICE);
@@ -121,24 +167,10 @@ public class GyroscopeSensor implements SensorEventListener
 	 */
 	public void registerGyroscopeObserver(GyroscopeSensorObserver observer)
 	{
-		if (observersGyroscope.size() == 0)
-		{
-			boolean enabled = sensorManager.registerListener(this,
-					sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE),
-					SensorManager.SENSOR_DELAY_FASTEST);
-			
-			if(!enabled)
-			{
-				showGyroscopeNotAvailableAlert();
-			}
-		}
-		
-		// Only register the observer if it is not already registered.
-		int i = observersGyroscope.indexOf(observer);
-		if (i == -1)
-		{
-			observersGyroscope.add(observer);
-		}
+		// Only registers the observer if it is not already registered.
+		observersGyroscope.add(observer);
+
+		requestRegistrationUpdate();
 	}
 
 	/**
@@ -149,19 +181,59 @@ public class GyroscopeSensor implements SensorEventListener
 	 */
 	public void removeGyroscopeObserver(GyroscopeSensorObserver observer)
 	{
-		int i = observersGyroscope.indexOf(observer);
-		if (i >= 0)
-		{
-			observersGyroscope.remove(i);
-		}
+		observersGyroscope.remove(observer);
 
 		// If there are no observers, then don't listen for Sensor Events.
-		if (observersGyroscope.size() == 0)
-		{
-			sensorManager.unregisterListener(this);
-		}
+		requestRegistrationUpdate();
 	}
 
+	/**
+	 * Register for Sensor.TYPE_GYROSCOPE measurements in batches. Where the
+	 * device supports it the measurements are held in the sensors hardware
+	 * FIFO for up to maxReportLatencyUs, so the CPU does not have to wake up
+	 * for each of them. Batching only takes effect while no observer wants
+	 * the measurements one at a time.
+	 * 
+	 * @param observer
+	 *            The observer to be registered.
+	 * @param maxReportLatencyUs
+	 *            the longest the observer is willing to wait for a
+	 *            measurement in microseconds.
+	 */
+	public void registerGyroscopeBatchObserver(
+			GyroscopeSensorBatchObserver observer, int maxReportLatencyUs)
+	{
+		batchLatencies.put(observer, maxReportLatencyUs);
+		observersGyroscopeBatch.add(observer);
+
+		requestRegistrationUpdate();
+	}
+
+	/**
+	 * Remove Sensor.TYPE_GYROSCOPE measurements in batches.
+	 * 
+	 * @param observer
+	 *            The observer to be removed.
+	 */
+	public void removeGyroscopeBatchObserver(
+			GyroscopeSensorBatchObserver observer)
+	{
+		observersGyroscopeBatch.remove(observer);
+		batchLatencies.remove(observer);
+
+		requestRegistrationUpdate();
+	}
+
+	/**
+	 * Get the metrics of the Sensor Events. Only read them on the thread of
+	 * the handler.
+	 * 
+	 * @return the metrics.
+	 */
+	public SensorMetrics getMetrics()
+	{
+		return metrics;
+	}
 
 	@Override
 	public void onAccuracyChanged(Sensor sensor, int accuracy)
@@ -174,17 +246,26 @@ public class GyroscopeSensor implements SensorEventListener
 	{
 		if (event.sensor.getType() == Sensor.TYPE_GYROSCOPE)
 		{
+			metrics.add(event.timestamp);
+
 			System.arraycopy(event.values, 0, this.gyroscope, 0,
 					event.values.length);
 
 			this.timeStamp = event.timestamp;
 
-			if (vehicleMode)
+			AxisRemap axisRemap = this.axisRemap;
+
+			if (axisRemap != null)
 			{
-				this.gyroscope = quaternionToDeviceVehicleMode(this.gyroscope);
+				axisRemap.apply(this.gyroscope);
 			}
 
 			notifyGyroscopeObserver();
+
+			if (!observersGyroscopeBatch.isEmpty())
+			{
+				addToBatch();
+			}
 		}
 	}
 
@@ -199,67 +280,165 @@ public class GyroscopeSensor implements SensorEventListener
 	 */
 	public void setVehicleMode(boolean vehicleMode)
 	{
-		this.vehicleMode = vehicleMode;
+		this.axisRemap = vehicleMode ? AxisRemap.VEHICLE_MODE : null;
+	}
+
+	/**
+	 * Rotate the measurements into the axes the device is mounted in. This
+	 * replaces Vehicle Mode, and Vehicle Mode replaces it.
+	 * 
+	 * @param axisRemap
+	 *            the rotation into the mounting axes, null to leave the
+	 *            measurements in the device axes.
+	 */
+	public void setAxisRemap(AxisRemap axisRemap)
+	{
+		this.axisRemap = axisRemap;
+	}
+
+	/**
+	 * Update the Sensor Event registration on the handler's thread, which
+	 * owns it, once the observers have changed.
+	 */
+	private void requestRegistrationUpdate()
+	{
+		if (Looper.myLooper() == handler.getLooper())
+		{
+			updateRegistration();
+		}
+		else
+		{
+			handler.removeCallbacks(updateRegistration);
+			handler.post(updateRegistration);
+		}
 	}
 
 	/**
-	 * To avoid anomalies at the poles with Euler angles and Gimbal lock,
-	 * quaternions are used instead.
+	 * Register for Sensor Events with the max report latency the observers
+	 * need, re-registering if it has changed. Any observer that wants each
+	 * measurement as it happens forces a latency of 0.
 	 */
-	private void initQuaternionRotations()
+	private void updateRegistration()
 	{
-		// Rotate by 90 degrees or pi/2 radians.
-		double rotation = Math.PI / 2;
+		int latency = -1;
+
+		if (!observersGyroscope.isEmpty())
+		{
+			latency = 0;
+		}
+		else
+		{
+			GyroscopeSensorBatchObserver[] observers = observersGyroscopeBatch
+					.getObservers();
+
+			for (int i = 0; i < observers.length; i++)
+			{
+				Integer observerLatency = batchLatencies.get(observers[i]);
+
+				// Removed since the snapshot was taken.
+				if (observerLatency == null)
+				{
+					continue;
+				}
+
+				if (latency == -1 || observerLatency < latency)
+				{
+					latency = observerLatency;
+				}
+			}
+		}
 
-		// Create the rotation around the x-axis
-		Vector3D xV = new Vector3D(1, 0, 0);
-		xQuaternion = new Rotation(xV, rotation);
+		if (latency == registeredLatency)
+		{
+			return;
+		}
 
-		// Create the rotation around the y-axis
-		Vector3D yV = new Vector3D(0, 1, 0);
-		yQuaternion = new Rotation(yV, -rotation);
+		if (registeredLatency != -1)
+		{
+			sensorManager.unregisterListener(this);
+		}
 
-		// Create the composite rotation.
-		rotationQuaternion = yQuaternion.applyTo(xQuaternion);
+		// Don't hold on to measurements nobody may be waiting for anymore.
+		flushBatch();
+
+		if (latency != -1)
+		{
+			boolean enabled = SensorRegistration.registerListener(
+					sensorManager, this,
+					sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE),
+					latency, handler);
+
+			if (!enabled && registeredLatency == -1)
+			{
+				// The alert can only be shown from the UI thread.
+				new Handler(Looper.getMainLooper()).post(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						showGyroscopeNotAvailableAlert();
+					}
+				});
+			}
+		}
+
+		registeredLatency = latency;
 	}
-	
+
 	/**
-	 * Notify observers with new measurements.
+	 * Add the most recent measurement to the batch. The batch is delivered
+	 * when it is full, or otherwise after the rest of the measurements that
+	 * arrived with it have been added.
 	 */
-	private void notifyGyroscopeObserver()
+	private void addToBatch()
 	{
-		for (GyroscopeSensorObserver a : observersGyroscope)
+		if (batch.add(gyroscope, timeStamp))
 		{
-			a.onGyroscopeSensorChanged(this.gyroscope, this.timeStamp);
+			handler.removeCallbacks(flushBatch);
+			flushBatch();
+		}
+		else if (!flushPending)
+		{
+			flushPending = true;
+			handler.post(flushBatch);
 		}
 	}
 
 	/**
-	 * Orient the measurements from the absolute Android device rotation into
-	 * the current device orientation. Note that the rotation is different based
-	 * on the current rotation of the device relative to the absolute Android
-	 * rotation. Do not confuse this with a rotation into absolute earth frame,
-	 * or the NED orientation that the algorithm assumes.
-	 * 
-	 * @param measurements
-	 *            the measurements referenced to the absolute Android
-	 *            orientation.
-	 * @return the measurements referenced to the current device rotation.
-	 * 
-	 * @see http 
-	 *      ://developer.android.com/reference/android/hardware/SensorEvent.html
-	 *      #values
+	 * Notify batch observers with the measurements collected so far.
 	 */
-	private float[] quaternionToDeviceVehicleMode(float[] matrix)
+	private void flushBatch()
 	{
+		flushPending = false;
 
-		vIn = new Vector3D(matrix[0], matrix[1], matrix[2]);
-		vOut = rotationQuaternion.applyTo(vIn);
+		if (batch.isEmpty())
+		{
+			return;
+		}
+
+		GyroscopeSensorBatchObserver[] observers = observersGyroscopeBatch
+				.getObservers();
+
+		for (int i = 0; i < observers.length; i++)
+		{
+			observers[i].onGyroscopeSensorBatch(batch.getValues(),
+					batch.getTimeStamps(), batch.getCount());
+		}
 
-		float[] rotation =
-		{ (float) vOut.getX(), (float) vOut.getY(), (float) vOut.getZ() };
+		batch.clear();
+	}
 
-		return rotation;
+	/**
+	 * Notify observers with new measurements.
+	 */
+	private void notifyGyroscopeObserver()
+	{
+		GyroscopeSensorObserver[] observers = observersGyroscope.getObservers();
+
+		for (int i = 0; i < observers.length; i++)
+		{
+			observers[i].onGyroscopeSensorChanged(this.gyroscope, this.timeStamp);
+		}
 	}
 	
 	
@@ -1,18 +1,17 @@
 package com.kircherelectronics.fusedgyroscopeexplorer.sensor;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-
-import org.apache.commons.math3.geometry.euclidean.threed.Rotation;
-import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.content.Context;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.Looper;
 
 import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.GravitySensorObserver;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.MagneticSensorBatchObserver;
 import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.MagneticSensorObserver;
 
 /*
@@ -49,21 +48,37 @@ import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.MagneticSen
  */
 public class MagneticSensor implements SensorEventListener
 {
-	/*
-	 * Developer Note: Quaternions are used for the internal representations of
-	 * the rotations which prevents the polar anomalies associated with Gimbal
-	 * lock when using Euler angles for the rotations.
-	 */
-
 	private static final String tag = MagneticSensor.class.getSimpleName();
 
 	// Keep track of observers.
-	private ArrayList<MagneticSensorObserver> observersMagnetic;
+	private ObserverList<MagneticSensorObserver> observersMagnetic;
+
+	// Keep track of observers that take the measurements in batches and the
+	// max report latency each of them has asked for.
+	private ObserverList<MagneticSensorBatchObserver> observersMagneticBatch;
+	private ConcurrentHashMap<MagneticSensorBatchObserver, Integer> batchLatencies;
+
+	// The max report latency the sensor is registered with, -1 if the sensor
+	// is not registered.
+	private int registeredLatency = -1;
+
+	// Collects the measurements of a hardware FIFO flush into one batch.
+	private SensorBatch batch;
+
+	// Sensor Events are delivered on the thread of this handler. The batch is
+	// delivered once every measurement of a flush, which are all dispatched
+	// from the same message, has been added to it.
+	private Handler handler;
+	private Runnable flushBatch;
+	private boolean flushPending = false;
+
+	// Registers for Sensor Events on the handler's thread after the observers
+	// have changed.
+	private Runnable updateRegistration;
 
-	// Keep track of the application mode. Vehicle Mode occurs when the device
-	// is in the Landscape orientation and the sensors are rotated to face the
-	// -Z-Axis (along the axis of the camera).
-	private boolean vehicleMode = false;
+	// Rotates the measurements into the axes the device is mounted in, null
+	// to leave them in the device axes. Set from any thread.
+	private volatile AxisRemap axisRemap;
 
 	// The time stamp of the most recent Sensor Event.
 	private Context context;
@@ -75,38 +90,68 @@ public class MagneticSensor implements SensorEventListener
 	// The time stamp of the most recent Sensor Event.
 	private long timeStamp = 0;
 
-	// Quaternion data structures to rotate a matrix from the absolute Android
-	// orientation to the orientation that the device is actually in. This is
-	// needed because the the device sensors orientation is fixed in hardware.
-	// Also remember the many algorithms require a NED orientation which is not
-	// the same as the absolute Android orientation. Do not confuse this
-	// rotation with a rotation into absolute earth frame!
-	private Rotation yQuaternion;
-	private Rotation xQuaternion;
-	private Rotation rotationQuaternion;
-
 	// We need the SensorManager to register for Sensor Events.
 	private SensorManager sensorManager;
 
-	// The vectors that will be rotated when the application is in Vehicle Mode.
-	private Vector3D vIn;
-	private Vector3D vOut;
+	// How regularly the Sensor Events arrive, only touched on the handler's
+	// thread.
+	private SensorMetrics metrics = new SensorMetrics();
 
 	/**
-	 * Initialize the state.
+	 * Initialize the state. Sensor Events are delivered on the thread that
+	 * creates the instance.
 	 * 
 	 * @param context
 	 *            the Activities context.
 	 */
 	public MagneticSensor(Context context)
+	{
+		this(context, new Handler());
+	}
+
+	/**
+	 * Initialize the state. Sensor Events are delivered on the thread of the
+	 * handler and observers are notified on that thread. Observers can be
+	 * registered and removed from any thread.
+	 * 
+	 * @param context
+	 *            the Activities context.
+	 * @param handler
+	 *            the Handler of the thread that processes the Sensor Events.
+	 */
+	public MagneticSensor(Context context, Handler handler)
 	{
 		super();
 
+		this.handler = handler;
+
 		this.context = context;
 
-		initQuaternionRotations();
+		observersMagnetic = new ObserverList<MagneticSensorObserver>(
+				new MagneticSensorObserver[0]);
+		observersMagneticBatch = new ObserverList<MagneticSensorBatchObserver>(
+				new MagneticSensorBatchObserver[0]);
+		batchLatencies = new ConcurrentHashMap<MagneticSensorBatchObserver, Integer>();
+
+		batch = new SensorBatch(SensorBatch.DEFAULT_CAPACITY);
 
-		observersMagnetic = new ArrayList<MagneticSensorObserver>();
+		flushBatch = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				flushBatch();
+			}
+		};
+
+		updateRegistration = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				updateRegistration();
+			}
+		};
 
 		sensorManager = (SensorManager) this.context
 				.getSystemService(Context.SENSOR_SERVICE);
@@ -120,19 +165,10 @@ public class MagneticSensor implements SensorEventListener
 	 */
 	public void registerMagneticObserver(MagneticSensorObserver observer)
 	{
-		if (observersMagnetic.size() == 0)
-		{
-			sensorManager.registerListener(this,
-					sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD),
-					SensorManager.SENSOR_DELAY_FASTEST);
-		}
+		// Only registers the observer if it is not already registered.
+		observersMagnetic.add(observer);
 
-		// Only register the observer if it is not already registered.
-		int i = observersMagnetic.indexOf(observer);
-		if (i == -1)
-		{
-			observersMagnetic.add(observer);
-		}
+		requestRegistrationUpdate();
 	}
 
 	/**
@@ -143,17 +179,58 @@ public class MagneticSensor implements SensorEventListener
 	 */
 	public void removeMagneticObserver(MagneticSensorObserver observer)
 	{
-		int i = observersMagnetic.indexOf(observer);
-		if (i >= 0)
-		{
-			observersMagnetic.remove(i);
-		}
+		observersMagnetic.remove(observer);
 
 		// If there are no observers, then don't listen for Sensor Events.
-		if (observersMagnetic.size() == 0)
-		{
-			sensorManager.unregisterListener(this);
-		}
+		requestRegistrationUpdate();
+	}
+
+	/**
+	 * Register for Sensor.TYPE_MAGNETIC measurements in batches. Where the
+	 * device supports it the measurements are held in the sensors hardware
+	 * FIFO for up to maxReportLatencyUs, so the CPU does not have to wake up
+	 * for each of them. Batching only takes effect while no observer wants
+	 * the measurements one at a time.
+	 * 
+	 * @param observer
+	 *            The observer to be registered.
+	 * @param maxReportLatencyUs
+	 *            the longest the observer is willing to wait for a
+	 *            measurement in microseconds.
+	 */
+	public void registerMagneticBatchObserver(
+			MagneticSensorBatchObserver observer, int maxReportLatencyUs)
+	{
+		batchLatencies.put(observer, maxReportLatencyUs);
+		observersMagneticBatch.add(observer);
+
+		requestRegistrationUpdate();
+	}
+
+	/**
+	 * Remove Sensor.TYPE_MAGNETIC measurements in batches.
+	 * 
+	 * @param observer
+	 *            The observer to be removed.
+	 */
+	public void removeMagneticBatchObserver(
+			MagneticSensorBatchObserver observer)
+	{
+		observersMagneticBatch.remove(observer);
+		batchLatencies.remove(observer);
+
+		requestRegistrationUpdate();
+	}
+
+	/**
+	 * Get the metrics of the Sensor Events. Only read them on the thread of
+	 * the handler.
+	 * 
+	 * @return the metrics.
+	 */
+	public SensorMetrics getMetrics()
+	{
+		return metrics;
 	}
 
 	@Override
@@ -167,16 +244,25 @@ public class MagneticSensor implements SensorEventListener
 	{
 		if (event.sensor.getType() == Sensor.TYPE_MAGNETIC_FIELD)
 		{
+			metrics.add(event.timestamp);
+
 			System.arraycopy(event.values, 0, magnetic, 0, event.values.length);
 
 			timeStamp = event.timestamp;
 
-			if (vehicleMode)
+			AxisRemap axisRemap = this.axisRemap;
+
+			if (axisRemap != null)
 			{
-				this.magnetic = quaternionToDeviceVehicleMode(this.magnetic);
+				axisRemap.apply(this.magnetic);
 			}
 
 			notifyMagneticObserver();
+
+			if (!observersMagneticBatch.isEmpty())
+			{
+				addToBatch();
+			}
 		}
 	}
 
@@ -191,74 +277,150 @@ public class MagneticSensor implements SensorEventListener
 	 */
 	public void setVehicleMode(boolean vehicleMode)
 	{
-		this.vehicleMode = vehicleMode;
+		this.axisRemap = vehicleMode ? AxisRemap.VEHICLE_MODE : null;
+	}
+
+	/**
+	 * Rotate the measurements into the axes the device is mounted in. This
+	 * replaces Vehicle Mode, and Vehicle Mode replaces it.
+	 * 
+	 * @param axisRemap
+	 *            the rotation into the mounting axes, null to leave the
+	 *            measurements in the device axes.
+	 */
+	public void setAxisRemap(AxisRemap axisRemap)
+	{
+		this.axisRemap = axisRemap;
+	}
+
+	/**
+	 * Update the Sensor Event registration on the handler's thread, which
+	 * owns it, once the observers have changed.
+	 */
+	private void requestRegistrationUpdate()
+	{
+		if (Looper.myLooper() == handler.getLooper())
+		{
+			updateRegistration();
+		}
+		else
+		{
+			handler.removeCallbacks(updateRegistration);
+			handler.post(updateRegistration);
+		}
 	}
 
 	/**
-	 * To avoid anomalies at the poles with Euler angles and Gimbal lock,
-	 * quaternions are used instead.
+	 * Register for Sensor Events with the max report latency the observers
+	 * need, re-registering if it has changed. Any observer that wants each
+	 * measurement as it happens forces a latency of 0.
 	 */
-	private void initQuaternionRotations()
+	private void updateRegistration()
 	{
-		// Rotate by 90 degrees or pi/2 radians.
-		double rotation = Math.PI / 2;
+		int latency = -1;
 
-		// Create the rotation around the x-axis
-		Vector3D xV = new Vector3D(1, 0, 0);
-		xQuaternion = new Rotation(xV, rotation);
+		if (!observersMagnetic.isEmpty())
+		{
+			latency = 0;
+		}
+		else
+		{
+			MagneticSensorBatchObserver[] observers = observersMagneticBatch
+					.getObservers();
 
-		// Create the rotation around the y-axis
-		Vector3D yV = new Vector3D(0, 1, 0);
-		yQuaternion = new Rotation(yV, -rotation);
+			for (int i = 0; i < observers.length; i++)
+			{
+				Integer observerLatency = batchLatencies.get(observers[i]);
+
+				// Removed since the snapshot was taken.
+				if (observerLatency == null)
+				{
+					continue;
+				}
+
+				if (latency == -1 || observerLatency < latency)
+				{
+					latency = observerLatency;
+				}
+			}
+		}
 
-		// Create the composite rotation.
-		rotationQuaternion = yQuaternion.applyTo(xQuaternion);
+		if (latency == registeredLatency)
+		{
+			return;
+		}
+
+		if (registeredLatency != -1)
+		{
+			sensorManager.unregisterListener(this);
+		}
+
+		// Don't hold on to measurements nobody may be waiting for anymore.
+		flushBatch();
+
+		if (latency != -1)
+		{
+			SensorRegistration.registerListener(sensorManager, this,
+					sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD),
+					latency, handler);
+		}
+
+		registeredLatency = latency;
 	}
 
 	/**
-	 * Notify observers with new measurements.
+	 * Add the most recent measurement to the batch. The batch is delivered
+	 * when it is full, or otherwise after the rest of the measurements that
+	 * arrived with it have been added.
 	 */
-	private void notifyMagneticObserver()
+	private void addToBatch()
 	{
-		// The iterator is a work around for a concurrency exception... Not the best work around, but it works for now.
-		MagneticSensorObserver observer;
+		if (batch.add(magnetic, timeStamp))
+		{
+			handler.removeCallbacks(flushBatch);
+			flushBatch();
+		}
+		else if (!flushPending)
+		{
+			flushPending = true;
+			handler.post(flushBatch);
+		}
+	}
 
-		ArrayList<MagneticSensorObserver> notificationList = new ArrayList<MagneticSensorObserver>(
-				observersMagnetic);
+	/**
+	 * Notify batch observers with the measurements collected so far.
+	 */
+	private void flushBatch()
+	{
+		flushPending = false;
 
-		for (Iterator<MagneticSensorObserver> iterator = notificationList
-				.iterator(); iterator.hasNext();)
+		if (batch.isEmpty())
 		{
-			observer = iterator.next();
+			return;
+		}
 
-			observer.onMagneticSensorChanged(this.magnetic, this.timeStamp);
+		MagneticSensorBatchObserver[] observers = observersMagneticBatch
+				.getObservers();
+
+		for (int i = 0; i < observers.length; i++)
+		{
+			observers[i].onMagneticSensorBatch(batch.getValues(),
+					batch.getTimeStamps(), batch.getCount());
 		}
+
+		batch.clear();
 	}
 
 	/**
-	 * Orient the measurements from the absolute Android device rotation into
-	 * the current device orientation. Note that the rotation is different based
-	 * on the current rotation of the device relative to the absolute Android
-	 * rotation. Do not confuse this with a rotation into absolute earth frame,
-	 * or the NED orientation that the algorithm assumes.
-	 * 
-	 * @param measurements
-	 *            the measurements referenced to the absolute Android
-	 *            orientation.
-	 * @return the measurements referenced to the current device rotation.
-	 * 
-	 * @see http 
-	 *      ://developer.android.com/reference/android/hardware/SensorEvent.html
-	 *      #values
+	 * Notify observers with new measurements.
 	 */
-	private float[] quaternionToDeviceVehicleMode(float[] matrix)
+	private void notifyMagneticObserver()
 	{
-		vIn = new Vector3D(matrix[0], matrix[1], matrix[2]);
-		vOut = rotationQuaternion.applyTo(vIn);
+		MagneticSensorObserver[] observers = observersMagnetic.getObservers();
 
-		float[] rotation =
-		{ (float) vOut.getX(), (float) vOut.getY(), (float) vOut.getZ() };
-
-		return rotation;
+		for (int i = 0; i < observers.length; i++)
+		{
+			observers[i].onMagneticSensorChanged(this.magnetic, this.timeStamp);
+		}
 	}
 }
@@ -0,0 +1,233 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.sensor;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Captures the gravity and linear acceleration sensors while the vehicle
+ * stands still and then drives off, and estimates how the device is mounted
+ * with a MountEstimator. The sensors are listened to directly rather than
+ * through the sensor wrappers, so the capture is in the axes of the device
+ * whatever remap the wrappers currently apply.
+ *
+ * The calibration is stored in the application's shared preferences as a
+ * rotation matrix, so it is estimated once and then loaded at start up and
+ * shared by the gyroscope, gravity and magnetic sensors.
+ *
+ * @author Kaleb
+ * @version %I%, %G%
+ * @see MountEstimator
+ */
+public class MountCalibration implements SensorEventListener
+{
+	private static final String PREFERENCES_NAME = "mount_calibration";
+
+	// The key prefix of the matrix elements, m0 to m8.
+	private static final String KEY_MATRIX = "m";
+
+	private SensorManager sensorManager;
+
+	// Sensor Events are delivered on the thread of this handler.
+	private Handler handler;
+
+	private MountEstimator estimator;
+
+	// The most recent gravity, paired with each linear acceleration.
+	private float[] gravity = new float[3];
+	private boolean hasGravity = false;
+
+	private float[] linearAcceleration = new float[3];
+
+	/**
+	 * Initialize the state.
+	 *
+	 * @param context
+	 *            the Activities context.
+	 * @param handler
+	 *            the Handler of the thread that processes the Sensor Events.
+	 */
+	public MountCalibration(Context context, Handler handler)
+	{
+		super();
+
+		this.handler = handler;
+
+		sensorManager = (SensorManager) context
+				.getSystemService(Context.SENSOR_SERVICE);
+	}
+
+	/**
+	 * Load the stored calibration.
+	 *
+	 * @param context
+	 *            the Activities context.
+	 * @return the remap from the device axes to the vehicle axes, null if
+	 *         the device hasn't been calibrated.
+	 */
+	public static AxisRemap load(Context context)
+	{
+		SharedPreferences preferences = context.getSharedPreferences(
+				PREFERENCES_NAME, Context.MODE_PRIVATE);
+
+		if (!preferences.contains(KEY_MATRIX + 0))
+		{
+			return null;
+		}
+
+		float[] matrix = new float[9];
+
+		for (int i = 0; i < 9; i++)
+		{
+			matrix[i] = preferences.getFloat(KEY_MATRIX + i, 0);
+		}
+
+		return new AxisRemap(matrix);
+	}
+
+	/**
+	 * Store a calibration.
+	 *
+	 * @param context
+	 *            the Activities context.
+	 * @param axisRemap
+	 *            the remap from the device axes to the vehicle axes.
+	 */
+	public static void save(Context context, AxisRemap axisRemap)
+	{
+		float[] matrix = new float[9];
+		axisRemap.getMatrix(matrix);
+
+		SharedPreferences.Editor editor = context.getSharedPreferences(
+				PREFERENCES_NAME, Context.MODE_PRIVATE).edit();
+
+		for (int i = 0; i < 9; i++)
+		{
+			editor.putFloat(KEY_MATRIX + i, matrix[i]);
+		}
+
+		editor.commit();
+	}
+
+	/**
+	 * Remove the stored calibration.
+	 *
+	 * @param context
+	 *            the Activities context.
+	 */
+	public static void clear(Context context)
+	{
+		SharedPreferences.Editor editor = context.getSharedPreferences(
+				PREFERENCES_NAME, Context.MODE_PRIVATE).edit();
+
+		for (int i = 0; i < 9; i++)
+		{
+			editor.remove(KEY_MATRIX + i);
+		}
+
+		editor.commit();
+	}
+
+	/**
+	 * Start a new capture. Call this on the handler's thread.
+	 *
+	 * @return false if the device doesn't have the sensors.
+	 */
+	public boolean start()
+	{
+		stop();
+
+		estimator = new MountEstimator();
+		hasGravity = false;
+
+		Sensor gravitySensor = sensorManager
+				.getDefaultSensor(Sensor.TYPE_GRAVITY);
+		Sensor linearAccelerationSensor = sensorManager
+				.getDefaultSensor(Sensor.TYPE_LINEAR_ACCELERATION);
+
+		if (gravitySensor == null || linearAccelerationSensor == null)
+		{
+			return false;
+		}
+
+		sensorManager.registerListener(this, gravitySensor,
+				SensorManager.SENSOR_DELAY_GAME, handler);
+		sensorManager.registerListener(this, linearAccelerationSensor,
+				SensorManager.SENSOR_DELAY_GAME, handler);
+
+		return true;
+	}
+
+	/**
+	 * Stop the capture and estimate the mounting. Call this on the handler's
+	 * thread.
+	 *
+	 * @return the remap from the device axes to the vehicle axes, null if
+	 *         the capture wasn't good enough for an estimate.
+	 */
+	public AxisRemap stop()
+	{
+		sensorManager.unregisterListener(this);
+
+		if (estimator == null)
+		{
+			return null;
+		}
+
+		AxisRemap axisRemap = estimator.estimate();
+
+		estimator = null;
+
+		return axisRemap;
+	}
+
+	@Override
+	public void onAccuracyChanged(Sensor sensor, int accuracy)
+	{
+	}
+
+	@Override
+	public void onSensorChanged(SensorEvent event)
+	{
+		if (estimator == null)
+		{
+			return;
+		}
+
+		if (event.sensor.getType() == Sensor.TYPE_GRAVITY)
+		{
+			System.arraycopy(event.values, 0, gravity, 0, 3);
+
+			hasGravity = true;
+		}
+		else if (event.sensor.getType() == Sensor.TYPE_LINEAR_ACCELERATION
+				&& hasGravity)
+		{
+			System.arraycopy(event.values, 0, linearAcceleration, 0, 3);
+
+			estimator.addSample(gravity, linearAcceleration);
+		}
+	}
+}
@@ -0,0 +1,274 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.sensor;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Estimates how a device is mounted in a vehicle from a short capture of
+ * gravity and linear acceleration, both in the axes of the device.
+ *
+ * While the vehicle is still, gravity gives the up axis of the vehicle.
+ * While it drives in a straight line the linear acceleration is mostly along
+ * the forward axis, so the forward axis is the principal axis of the linear
+ * acceleration once it has been projected onto the horizontal plane. The
+ * principal axis can't tell accelerating from braking, so the capture must
+ * start with the vehicle pulling away from a standstill and the first
+ * acceleration picks the sign.
+ *
+ * The result maps the device axes onto the vehicle axes the same way Android
+ * maps a device lying flat with its top pointing forward: x to the right, y
+ * forward and z up.
+ *
+ * @author Kaleb
+ * @version %I%, %G%
+ */
+public class MountEstimator
+{
+	// Linear acceleration below this, in m/s^2, counts as standing still.
+	private static final float STILL_THRESHOLD = 0.15f;
+
+	// Linear acceleration above this, in m/s^2, counts as driving.
+	private static final float DRIVE_THRESHOLD = 0.8f;
+
+	// The number of drive samples that decide which way is forward.
+	private static final int SIGN_SAMPLE_COUNT = 25;
+
+	// The number of still and drive samples an estimate needs.
+	private static final int MIN_STILL_COUNT = 100;
+	private static final int MIN_DRIVE_COUNT = 100;
+
+	private static final int POWER_ITERATIONS = 50;
+
+	private int stillCount;
+	private int driveCount;
+
+	// The sum of gravity while still.
+	private double[] gravitySum = new double[3];
+
+	// The sum of the outer products of the linear acceleration while
+	// driving, row major.
+	private double[] accelerationMoments = new double[9];
+
+	// The sum of the first linear accelerations while driving.
+	private double[] signSum = new double[3];
+
+	/**
+	 * Add a sample of the capture.
+	 *
+	 * @param gravity
+	 *            the gravity (x, y, z) in m/s^2.
+	 * @param linearAcceleration
+	 *            the linear acceleration (x, y, z) in m/s^2 at the same time.
+	 */
+	public void addSample(float[] gravity, float[] linearAcceleration)
+	{
+		float magnitude = (float) Math.sqrt(linearAcceleration[0]
+				* linearAcceleration[0] + linearAcceleration[1]
+				* linearAcceleration[1] + linearAcceleration[2]
+				* linearAcceleration[2]);
+
+		if (magnitude < STILL_THRESHOLD)
+		{
+			for (int i = 0; i < 3; i++)
+			{
+				gravitySum[i] += gravity[i];
+			}
+
+			stillCount++;
+		}
+		else if (magnitude > DRIVE_THRESHOLD)
+		{
+			for (int i = 0; i < 3; i++)
+			{
+				for (int j = 0; j < 3; j++)
+				{
+					accelerationMoments[i * 3 + j] += linearAcceleration[i]
+							* linearAcceleration[j];
+				}
+
+				if (driveCount < SIGN_SAMPLE_COUNT)
+				{
+					signSum[i] += linearAcceleration[i];
+				}
+			}
+
+			driveCount++;
+		}
+	}
+
+	public int getStillCount()
+	{
+		return stillCount;
+	}
+
+	public int getDriveCount()
+	{
+		return driveCount;
+	}
+
+	/**
+	 * Indicates if enough of the vehicle standing still and driving has been
+	 * captured for an estimate.
+	 *
+	 * @return true if estimate() can succeed.
+	 */
+	public boolean isComplete()
+	{
+		return stillCount >= MIN_STILL_COUNT && driveCount >= MIN_DRIVE_COUNT;
+	}
+
+	/**
+	 * Estimate the mounting of the device.
+	 *
+	 * @return the remap from the device axes to the vehicle axes, null if
+	 *         the capture isn't complete or the vehicle never accelerated
+	 *         horizontally.
+	 */
+	public AxisRemap estimate()
+	{
+		if (!isComplete())
+		{
+			return null;
+		}
+
+		double[] up = gravitySum.clone();
+
+		if (!normalize(up))
+		{
+			return null;
+		}
+
+		// Project the moments onto the horizontal plane, P * M * P with
+		// P = I - up * up^T.
+		double[] projection = new double[9];
+
+		for (int i = 0; i < 3; i++)
+		{
+			for (int j = 0; j < 3; j++)
+			{
+				projection[i * 3 + j] = (i == j ? 1 : 0) - up[i] * up[j];
+			}
+		}
+
+		double[] horizontal = multiply(multiply(projection,
+				accelerationMoments), projection);
+
+		// The principal axis by power iteration, starting from the first
+		// accelerations so it can't start orthogonal to the answer.
+		double[] forward = transform(projection, signSum);
+
+		if (!normalize(forward))
+		{
+			return null;
+		}
+
+		for (int n = 0; n < POWER_ITERATIONS; n++)
+		{
+			forward = transform(horizontal, forward);
+
+			if (!normalize(forward))
+			{
+				return null;
+			}
+		}
+
+		// Keep the numerical drift out of the horizontal plane.
+		forward = transform(projection, forward);
+
+		if (!normalize(forward))
+		{
+			return null;
+		}
+
+		if (dot(forward, signSum) < 0)
+		{
+			for (int i = 0; i < 3; i++)
+			{
+				forward[i] = -forward[i];
+			}
+		}
+
+		// right = forward x up
+		double[] right =
+		{ forward[1] * up[2] - forward[2] * up[1],
+				forward[2] * up[0] - forward[0] * up[2],
+				forward[0] * up[1] - forward[1] * up[0] };
+
+		float[] matrix = new float[9];
+
+		for (int i = 0; i < 3; i++)
+		{
+			matrix[i] = (float) right[i];
+			matrix[3 + i] = (float) forward[i];
+			matrix[6 + i] = (float) up[i];
+		}
+
+		return new AxisRemap(matrix);
+	}
+
+	private static double[] multiply(double[] a, double[] b)
+	{
+		double[] result = new double[9];
+
+		for (int i = 0; i < 3; i++)
+		{
+			for (int j = 0; j < 3; j++)
+			{
+				result[i * 3 + j] = a[i * 3] * b[j] + a[i * 3 + 1] * b[3 + j]
+						+ a[i * 3 + 2] * b[6 + j];
+			}
+		}
+
+		return result;
+	}
+
+	private static double[] transform(double[] m, double[] v)
+	{
+		return new double[]
+		{ m[0] * v[0] + m[1] * v[1] + m[2] * v[2],
+				m[3] * v[0] + m[4] * v[1] + m[5] * v[2],
+				m[6] * v[0] + m[7] * v[1] + m[8] * v[2] };
+	}
+
+	private static double dot(double[] a, double[] b)
+	{
+		return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+	}
+
+	/**
+	 * Scale a vector to unit length.
+	 *
+	 * @return false if the vector is too short to have a direction.
+	 */
+	private static boolean normalize(double[] v)
+	{
+		double norm = Math.sqrt(dot(v, v));
+
+		if (norm < 1e-9)
+		{
+			return false;
+		}
+
+		for (int i = 0; i < 3; i++)
+		{
+			v[i] /= norm;
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,157 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.sensor;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A copy-on-write list of observers that can be changed from any thread
+ * without locks. The observers are kept in an array that is never modified,
+ * adding or removing an observer builds a new array and swaps it in with a
+ * compare-and-set, retrying if another thread got there first.
+ *
+ * Subjects dispatch over a snapshot of the array with an indexed loop, so a
+ * notification neither allocates nor can fail with a
+ * ConcurrentModificationException. An observer removed while a notification
+ * is in progress may still receive that one notification.
+ *
+ * @author Kaleb
+ * @version %I%, %G%
+ */
+public class ObserverList<T>
+{
+	private final AtomicReference<T[]> observers;
+
+	/**
+	 * Initialize an empty list.
+	 *
+	 * @param empty
+	 *            an empty array of the observer type, Java can't create one
+	 *            from the type parameter.
+	 */
+	public ObserverList(T[] empty)
+	{
+		super();
+
+		if (empty.length != 0)
+		{
+			throw new IllegalArgumentException("The array must be empty");
+		}
+
+		observers = new AtomicReference<T[]>(empty);
+	}
+
+	/**
+	 * Add an observer, unless it is already in the list.
+	 *
+	 * @param observer
+	 *            the observer to add.
+	 * @return true if the observer was added.
+	 */
+	public boolean add(T observer)
+	{
+		if (observer == null)
+		{
+			throw new IllegalArgumentException("Observer must not be null");
+		}
+
+		while (true)
+		{
+			T[] current = observers.get();
+
+			if (indexOf(current, observer) >= 0)
+			{
+				return false;
+			}
+
+			T[] next = Arrays.copyOf(current, current.length + 1);
+			next[current.length] = observer;
+
+			if (observers.compareAndSet(current, next))
+			{
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Remove an observer.
+	 *
+	 * @param observer
+	 *            the observer to remove.
+	 * @return true if the observer was in the list.
+	 */
+	public boolean remove(T observer)
+	{
+		while (true)
+		{
+			T[] current = observers.get();
+
+			int i = indexOf(current, observer);
+
+			if (i < 0)
+			{
+				return false;
+			}
+
+			T[] next = Arrays.copyOf(current, current.length - 1);
+			System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+
+			if (observers.compareAndSet(current, next))
+			{
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Get a snapshot of the observers to notify. The array must not be
+	 * modified.
+	 *
+	 * @return the observers at the time of the call.
+	 */
+	public T[] getObservers()
+	{
+		return observers.get();
+	}
+
+	public boolean isEmpty()
+	{
+		return observers.get().length == 0;
+	}
+
+	public int size()
+	{
+		return observers.get().length;
+	}
+
+	private static int indexOf(Object[] observers, Object observer)
+	{
+		for (int i = 0; i < observers.length; i++)
+		{
+			if (observers[i].equals(observer))
+			{
+				return i;
+			}
+		}
+
+		return -1;
+	}
+}
@@ -0,0 +1,346 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.sensor;
+
+import com.kircherelectronics.fusedgyroscopeexplorer.fusion.RotationMath;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.FusedGyroscopeSensorObserver;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Runs two OrientationSources side by side and measures how far apart they
+ * are and what each of them costs.
+ *
+ * Each orientation of the candidate is compared with the orientation of the
+ * reference nearest to it in time, as long as that is close enough. The
+ * sources don't have to be equally fast: a reference that holds its
+ * measurements back to synchronize them, like a FusedGyroscopeSensor with a
+ * synchronization delay, delivers its orientations later than the
+ * candidate, so the recent orientations of both are kept and a candidate
+ * waits until the reference has caught up with it. That way the comparison
+ * measures how far apart the sources are, not how far one lags the other.
+ * The difference is the angle of the rotation that takes one orientation
+ * onto the other, so it doesn't depend on how the error is split between
+ * azimuth, pitch and roll.
+ *
+ * Both sources must deliver their orientations on the same thread, and the
+ * comparison must be started, stopped and read on that thread.
+ *
+ * @author Kaleb
+ * @version %I%, %G%
+ * @see OrientationSource
+ */
+public class OrientationComparison
+{
+	// Orientations further apart in time than this, in nanoseconds, are not
+	// compared.
+	private static final long MAX_TIME_DIFFERENCE_NS = 20000000;
+
+	// The number of recent orientations kept of each source, enough for a
+	// reference at SENSOR_DELAY_FASTEST to be 100 ms behind. A power of two.
+	private static final int BUFFER_SIZE = 64;
+
+	private OrientationSource reference;
+	private OrientationSource candidate;
+
+	private FusedGyroscopeSensorObserver referenceObserver;
+	private FusedGyroscopeSensorObserver candidateObserver;
+
+	// The recent orientations of the reference as rotation matrices.
+	private OrientationBuffer references = new OrientationBuffer();
+
+	// The orientations of the candidate waiting for the reference to catch
+	// up, oldest first.
+	private OrientationBuffer candidates = new OrientationBuffer();
+
+	private int sampleCount;
+	private double sumSquaredDifference;
+	private double maxDifference;
+
+	/**
+	 * Initialize a comparison.
+	 *
+	 * @param reference
+	 *            the source the candidate is measured against.
+	 * @param candidate
+	 *            the source being measured.
+	 */
+	public OrientationComparison(OrientationSource reference,
+			OrientationSource candidate)
+	{
+		super();
+
+		this.reference = reference;
+		this.candidate = candidate;
+
+		referenceObserver = new FusedGyroscopeSensorObserver()
+		{
+			@Override
+			public void onAngularVelocitySensorChanged(float[] orientation,
+					long timeStamp)
+			{
+				onReferenceChanged(orientation, timeStamp);
+			}
+		};
+
+		candidateObserver = new FusedGyroscopeSensorObserver()
+		{
+			@Override
+			public void onAngularVelocitySensorChanged(float[] orientation,
+					long timeStamp)
+			{
+				onCandidateChanged(orientation, timeStamp);
+			}
+		};
+	}
+
+	/**
+	 * Clear the results and start observing and timing both sources.
+	 */
+	public void start()
+	{
+		sampleCount = 0;
+		sumSquaredDifference = 0;
+		maxDifference = 0;
+
+		references.clear();
+		candidates.clear();
+
+		reference.setProfilingEnabled(true);
+		candidate.setProfilingEnabled(true);
+
+		reference.registerObserver(referenceObserver);
+		candidate.registerObserver(candidateObserver);
+	}
+
+	/**
+	 * Stop observing and timing both sources. The results are kept.
+	 */
+	public void stop()
+	{
+		reference.removeObserver(referenceObserver);
+		candidate.removeObserver(candidateObserver);
+
+		reference.setProfilingEnabled(false);
+		candidate.setProfilingEnabled(false);
+	}
+
+	/**
+	 * Get the number of orientations that have been compared.
+	 *
+	 * @return the number of orientations.
+	 */
+	public int getSampleCount()
+	{
+		return sampleCount;
+	}
+
+	/**
+	 * Get the root mean square of the angle between the sources.
+	 *
+	 * @return the angle in radians, 0 if nothing has been compared.
+	 */
+	public double getRmsDifference()
+	{
+		return sampleCount > 0 ? Math.sqrt(sumSquaredDifference / sampleCount)
+				: 0;
+	}
+
+	/**
+	 * Get the largest angle between the sources.
+	 *
+	 * @return the angle in radians.
+	 */
+	public double getMaxDifference()
+	{
+		return maxDifference;
+	}
+
+	/**
+	 * Get the time the reference spends per orientation.
+	 *
+	 * @return the time in nanoseconds, 0 if it produced no orientation.
+	 */
+	public long getReferenceNanosPerSample()
+	{
+		return getNanosPerSample(reference);
+	}
+
+	/**
+	 * Get the time the candidate spends per orientation.
+	 *
+	 * @return the time in nanoseconds, 0 if it produced no orientation.
+	 */
+	public long getCandidateNanosPerSample()
+	{
+		return getNanosPerSample(candidate);
+	}
+
+	private void onReferenceChanged(float[] orientation, long timeStamp)
+	{
+		references.add(orientation, timeStamp);
+
+		compare();
+	}
+
+	private void onCandidateChanged(float[] orientation, long timeStamp)
+	{
+		candidates.add(orientation, timeStamp);
+
+		compare();
+	}
+
+	/**
+	 * Compare the waiting candidate orientations the reference has caught up
+	 * with.
+	 */
+	private void compare()
+	{
+		while (candidates.size() > 0)
+		{
+			long timeStamp = candidates.getTimeStamp(candidates.first);
+
+			if (references.size() == 0
+					|| references.getTimeStamp(references.count - 1) < timeStamp)
+			{
+				return;
+			}
+
+			int reference = references.findNearest(timeStamp);
+			long difference = references.getTimeStamp(reference) - timeStamp;
+
+			if (Math.abs(difference) <= MAX_TIME_DIFFERENCE_NS)
+			{
+				addDifference(reference & (BUFFER_SIZE - 1), candidates.first
+						& (BUFFER_SIZE - 1));
+			}
+
+			candidates.first++;
+		}
+	}
+
+	/**
+	 * Add the angle between an orientation of each source, given by their
+	 * index in the buffers.
+	 */
+	private void addDifference(int reference, int candidate)
+	{
+		// The trace of referenceMatrix^T * candidateMatrix is
+		// 1 + 2 * cos(angle).
+		double trace = 0;
+
+		for (int i = 0; i < 9; i++)
+		{
+			trace += references.matrices[reference * 9 + i]
+					* candidates.matrices[candidate * 9 + i];
+		}
+
+		double cos = Math.max(-1, Math.min(1, (trace - 1) / 2));
+		double difference = Math.acos(cos);
+
+		sumSquaredDifference += difference * difference;
+		maxDifference = Math.max(maxDifference, difference);
+		sampleCount++;
+	}
+
+	private static long getNanosPerSample(OrientationSource source)
+	{
+		int count = source.getProfiledCount();
+
+		return count > 0 ? source.getProfiledNanos() / count : 0;
+	}
+
+	/**
+	 * A ring of the most recent orientations of one source as rotation
+	 * matrices. Orientations are numbered in the order they were added, the
+	 * one numbered n is at index n modulo BUFFER_SIZE.
+	 */
+	private static class OrientationBuffer
+	{
+		private long[] timeStamps = new long[BUFFER_SIZE];
+		private float[] matrices = new float[BUFFER_SIZE * 9];
+
+		private float[] matrix = new float[9];
+
+		// The number of orientations added since the buffer was cleared.
+		private int count;
+
+		// The number of the oldest orientation still kept.
+		private int first;
+
+		private void clear()
+		{
+			count = 0;
+			first = 0;
+		}
+
+		private int size()
+		{
+			return count - first;
+		}
+
+		private long getTimeStamp(int sequence)
+		{
+			return timeStamps[sequence & (BUFFER_SIZE - 1)];
+		}
+
+		private void add(float[] orientation, long timeStamp)
+		{
+			int index = count & (BUFFER_SIZE - 1);
+
+			RotationMath.getRotationMatrixFromOrientation(orientation, matrix);
+
+			System.arraycopy(matrix, 0, matrices, index * 9, 9);
+
+			timeStamps[index] = timeStamp;
+
+			count++;
+
+			// The oldest orientation has been overwritten.
+			if (count - first > BUFFER_SIZE)
+			{
+				first = count - BUFFER_SIZE;
+			}
+		}
+
+		/**
+		 * Find the orientation nearest in time to a time stamp at or before
+		 * the newest one.
+		 *
+		 * @return the number of the orientation.
+		 */
+		private int findNearest(long timeStamp)
+		{
+			int sequence = count - 1;
+
+			while (sequence > first
+					&& getTimeStamp(sequence - 1) >= timeStamp)
+			{
+				sequence--;
+			}
+
+			// The orientation at or after the time stamp, or the one before.
+			if (sequence > first
+					&& timeStamp - getTimeStamp(sequence - 1) < getTimeStamp(sequence) - timeStamp)
+			{
+				sequence--;
+			}
+
+			return sequence;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.sensor;
+
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.FusedGyroscopeSensorObserver;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A subject for the absolute orientation of the device, (azimuth, pitch,
+ * roll) in radians. The orientation may be fused in Java from the raw
+ * sensors, as FusedGyroscopeSensor does, or come from the fusion the device
+ * already runs in its sensor hub or HAL, as RotationVectorSensor does.
+ *
+ * A source can time how long the application spends producing each
+ * orientation, so sources can be compared by what they cost as well as by
+ * what they output.
+ *
+ * @author Kaleb
+ * @version %I%, %G%
+ * @see FusedGyroscopeSensor
+ * @see RotationVectorSensor
+ */
+public interface OrientationSource
+{
+	/**
+	 * Register an observer for every orientation.
+	 *
+	 * @param observer
+	 *            the observer.
+	 */
+	public void registerObserver(FusedGyroscopeSensorObserver observer);
+
+	/**
+	 * Remove an observer.
+	 *
+	 * @param observer
+	 *            the observer.
+	 */
+	public void removeObserver(FusedGyroscopeSensorObserver observer);
+
+	/**
+	 * Reset the source to its initial state.
+	 */
+	public void reset();
+
+	/**
+	 * Start or stop timing the source. Starting clears the totals. Only call
+	 * this on the thread that delivers the orientations.
+	 *
+	 * @param enabled
+	 *            true to time the source.
+	 */
+	public void setProfilingEnabled(boolean enabled);
+
+	/**
+	 * Get the time spent on the thread that delivers the orientations since
+	 * profiling was started.
+	 *
+	 * @return the time in nanoseconds.
+	 */
+	public long getProfiledNanos();
+
+	/**
+	 * Get the number of orientations produced since profiling was started.
+	 *
+	 * @return the number of orientations.
+	 */
+	public int getProfiledCount();
+}
@@ -0,0 +1,380 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.sensor;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.kircherelectronics.fusedgyroscopeexplorer.fusion.RotationMath;
+import com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer.FusedGyroscopeSensorObserver;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Rotation Vector Sensor is an OrientationSource backed by the fusion the
+ * device vendor provides, Sensor.TYPE_ROTATION_VECTOR or, on Jelly Bean MR2
+ * and later, optionally Sensor.TYPE_GAME_ROTATION_VECTOR. On many devices
+ * that fusion runs in a sensor hub or the HAL, so all the application pays
+ * for is turning the rotation vector into Euler angles.
+ *
+ * Sensor.TYPE_GAME_ROTATION_VECTOR leaves out the magnetometer, so it isn't
+ * disturbed by magnetic fields but its azimuth is relative to wherever the
+ * device pointed when it started rather than to magnetic north.
+ *
+ * Not every device has a rotation vector sensor, check isAvailable() and
+ * fall back to FusedGyroscopeSensor when it doesn't.
+ *
+ * @author Kaleb
+ * @version %I%, %G%
+ * @see FusedGyroscopeSensor
+ */
+public class RotationVectorSensor implements SensorEventListener,
+		OrientationSource
+{
+	private static final String tag = RotationVectorSensor.class
+			.getSimpleName();
+
+	// Keep track of observers.
+	private ObserverList<FusedGyroscopeSensorObserver> observers;
+
+	// True while registered for Sensor Events, only touched on the handler's
+	// thread.
+	private boolean registered = false;
+
+	// Sensor Events are delivered on the thread of this handler.
+	private Handler handler;
+
+	// Registers for Sensor Events on the handler's thread after the observers
+	// have changed.
+	private Runnable updateRegistration;
+
+	// Rotates the orientation into the axes the device is mounted in, null to
+	// leave it in the device axes. Set from any thread.
+	private volatile AxisRemap axisRemap;
+
+	// We need the SensorManager to register for Sensor Events.
+	private SensorManager sensorManager;
+
+	// The rotation vector sensor, null if the device doesn't have one.
+	private Sensor sensor;
+
+	// The rotation vector (x, y, z, w) copied from the sensor event.
+	private float[] rotationVector = new float[4];
+
+	private float[] rotationMatrix = new float[9];
+	private float[] remapMatrix = new float[9];
+	private float[] remappedMatrix = new float[9];
+
+	private float[] orientation = new float[3];
+
+	// How regularly the Sensor Events arrive, only touched on the handler's
+	// thread.
+	private SensorMetrics metrics = new SensorMetrics();
+
+	// Time the conversion, only touched on the handler's thread.
+	private boolean profiling = false;
+	private long profiledNanos;
+	private int profiledCount;
+
+	/**
+	 * Initialize the state with Sensor.TYPE_ROTATION_VECTOR, which is
+	 * referenced to magnetic north. Sensor Events are delivered on the
+	 * thread of the handler and observers are notified on that thread.
+	 * Observers can be registered and removed from any thread.
+	 *
+	 * @param context
+	 *            the Activities context.
+	 * @param handler
+	 *            the Handler of the thread that processes the Sensor Events.
+	 */
+	public RotationVectorSensor(Context context, Handler handler)
+	{
+		this(context, handler, false);
+	}
+
+	/**
+	 * Initialize the state.
+	 *
+	 * @param context
+	 *            the Activities context.
+	 * @param handler
+	 *            the Handler of the thread that processes the Sensor Events.
+	 * @param game
+	 *            true to prefer Sensor.TYPE_GAME_ROTATION_VECTOR where the
+	 *            device has it.
+	 */
+	public RotationVectorSensor(Context context, Handler handler, boolean game)
+	{
+		super();
+
+		this.handler = handler;
+
+		observers = new ObserverList<FusedGyroscopeSensorObserver>(
+				new FusedGyroscopeSensorObserver[0]);
+
+		updateRegistration = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				updateRegistration();
+			}
+		};
+
+		sensorManager = (SensorManager) context
+				.getSystemService(Context.SENSOR_SERVICE);
+
+		if (game && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
+		{
+			sensor = getGameRotationVectorSensor();
+		}
+
+		if (sensor == null)
+		{
+			sensor = sensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
+		}
+	}
+
+	/**
+	 * Indicates if the device has a rotation vector sensor.
+	 *
+	 * @return true if the device has the sensor.
+	 */
+	public boolean isAvailable()
+	{
+		return sensor != null;
+	}
+
+	/**
+	 * Get the type of the sensor the orientation comes from.
+	 *
+	 * @return Sensor.TYPE_ROTATION_VECTOR or
+	 *         Sensor.TYPE_GAME_ROTATION_VECTOR, -1 if the device has neither.
+	 */
+	public int getSensorType()
+	{
+		return sensor != null ? sensor.getType() : -1;
+	}
+
+	@Override
+	public void registerObserver(FusedGyroscopeSensorObserver observer)
+	{
+		// Only registers the observer if it is not already registered.
+		observers.add(observer);
+
+		requestRegistrationUpdate();
+	}
+
+	@Override
+	public void removeObserver(FusedGyroscopeSensorObserver observer)
+	{
+		observers.remove(observer);
+
+		// If there are no observers, then don't listen for Sensor Events.
+		requestRegistrationUpdate();
+	}
+
+	@Override
+	public void reset()
+	{
+		// The vendor fusion keeps its own state, there is nothing to reset.
+	}
+
+	@Override
+	public void setProfilingEnabled(boolean enabled)
+	{
+		profiling = enabled;
+
+		profiledNanos = 0;
+		profiledCount = 0;
+	}
+
+	@Override
+	public long getProfiledNanos()
+	{
+		return profiledNanos;
+	}
+
+	@Override
+	public int getProfiledCount()
+	{
+		return profiledCount;
+	}
+
+	/**
+	 * Get the metrics of the Sensor Events. Only read them on the thread of
+	 * the handler.
+	 *
+	 * @return the metrics.
+	 */
+	public SensorMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	/**
+	 * Rotate the orientation into the axes the device is mounted in.
+	 *
+	 * @param axisRemap
+	 *            the rotation into the mounting axes, null to leave the
+	 *            orientation in the device axes.
+	 */
+	public void setAxisRemap(AxisRemap axisRemap)
+	{
+		this.axisRemap = axisRemap;
+	}
+
+	@Override
+	public void onAccuracyChanged(Sensor sensor, int accuracy)
+	{
+		// Do nothing.
+	}
+
+	@Override
+	public void onSensorChanged(SensorEvent event)
+	{
+		if (event.sensor != sensor)
+		{
+			return;
+		}
+
+		metrics.add(event.timestamp);
+
+		long start = profiling ? System.nanoTime() : 0;
+
+		System.arraycopy(event.values, 0, rotationVector, 0, 3);
+
+		// Before Jelly Bean MR2 the scalar part is left for us to work out.
+		if (event.values.length >= 4)
+		{
+			rotationVector[3] = event.values[3];
+		}
+		else
+		{
+			float w = 1 - rotationVector[0] * rotationVector[0]
+					- rotationVector[1] * rotationVector[1]
+					- rotationVector[2] * rotationVector[2];
+
+			rotationVector[3] = (w > 0) ? (float) Math.sqrt(w) : 0;
+		}
+
+		RotationMath.getRotationMatrixFromVector(rotationMatrix,
+				rotationVector);
+
+		AxisRemap axisRemap = this.axisRemap;
+
+		if (axisRemap != null)
+		{
+			remap(axisRemap);
+		}
+
+		RotationMath.getOrientation(rotationMatrix, orientation);
+
+		FusedGyroscopeSensorObserver[] observers = this.observers
+				.getObservers();
+
+		for (int i = 0; i < observers.length; i++)
+		{
+			observers[i].onAngularVelocitySensorChanged(orientation,
+					event.timestamp);
+		}
+
+		if (profiling)
+		{
+			profiledNanos += System.nanoTime() - start;
+			profiledCount++;
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+	private Sensor getGameRotationVectorSensor()
+	{
+		return sensorManager.getDefaultSensor(Sensor.TYPE_GAME_ROTATION_VECTOR);
+	}
+
+	/**
+	 * Express the rotation matrix in the mounting axes. The matrix takes the
+	 * device axes to the world and the remap takes the device axes to the
+	 * mounting axes, so the result is the matrix times the transposed remap.
+	 */
+	private void remap(AxisRemap axisRemap)
+	{
+		axisRemap.getMatrix(remapMatrix);
+
+		for (int i = 0; i < 3; i++)
+		{
+			for (int j = 0; j < 3; j++)
+			{
+				remappedMatrix[i * 3 + j] = rotationMatrix[i * 3]
+						* remapMatrix[j * 3] + rotationMatrix[i * 3 + 1]
+						* remapMatrix[j * 3 + 1] + rotationMatrix[i * 3 + 2]
+						* remapMatrix[j * 3 + 2];
+			}
+		}
+
+		System.arraycopy(remappedMatrix, 0, rotationMatrix, 0, 9);
+	}
+
+	/**
+	 * Update the Sensor Event registration on the handler's thread, which
+	 * owns it, once the observers have changed.
+	 */
+	private void requestRegistrationUpdate()
+	{
+		if (Looper.myLooper() == handler.getLooper())
+		{
+			updateRegistration();
+		}
+		else
+		{
+			handler.removeCallbacks(updateRegistration);
+			handler.post(updateRegistration);
+		}
+	}
+
+	/**
+	 * Listen for Sensor Events while there are observers.
+	 */
+	private void updateRegistration()
+	{
+		boolean needed = sensor != null && !observers.isEmpty();
+
+		if (needed == registered)
+		{
+			return;
+		}
+
+		if (needed)
+		{
+			SensorRegistration.registerListener(sensorManager, this, sensor,
+					0, handler);
+		}
+		else
+		{
+			sensorManager.unregisterListener(this);
+		}
+
+		registered = needed;
+	}
+}
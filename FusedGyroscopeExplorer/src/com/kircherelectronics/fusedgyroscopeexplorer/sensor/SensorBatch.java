@@ -0,0 +1,105 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.sensor;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A fixed size buffer of three axis sensor measurements and their time
+ * stamps, kept in primitive arrays so collecting a batch never allocates.
+ * 
+ * @author Kaleb
+ * @version %I%, %G%
+ */
+public class SensorBatch
+{
+	// The number of measurements a batch holds by default.
+	public static final int DEFAULT_CAPACITY = 256;
+
+	private final int capacity;
+
+	private int count = 0;
+
+	// The (x, y, z) of each measurement one after another.
+	private final float[] values;
+
+	private final long[] timeStamps;
+
+	/**
+	 * Initialize a new batch.
+	 * 
+	 * @param capacity
+	 *            the number of measurements the batch can hold.
+	 */
+	public SensorBatch(int capacity)
+	{
+		this.capacity = capacity;
+
+		values = new float[capacity * 3];
+		timeStamps = new long[capacity];
+	}
+
+	/**
+	 * Add a measurement to the batch.
+	 * 
+	 * @param values
+	 *            the measurement (x, y, z).
+	 * @param timeStamp
+	 *            the time stamp of the measurement.
+	 * @return true if the batch is now full.
+	 */
+	public boolean add(float[] values, long timeStamp)
+	{
+		int offset = count * 3;
+
+		this.values[offset] = values[0];
+		this.values[offset + 1] = values[1];
+		this.values[offset + 2] = values[2];
+
+		timeStamps[count] = timeStamp;
+
+		return ++count == capacity;
+	}
+
+	/**
+	 * Empty the batch.
+	 */
+	public void clear()
+	{
+		count = 0;
+	}
+
+	public int getCount()
+	{
+		return count;
+	}
+
+	public boolean isEmpty()
+	{
+		return count == 0;
+	}
+
+	public float[] getValues()
+	{
+		return values;
+	}
+
+	public long[] getTimeStamps()
+	{
+		return timeStamps;
+	}
+}
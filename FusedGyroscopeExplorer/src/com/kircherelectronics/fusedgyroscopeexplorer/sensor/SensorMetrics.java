@@ -0,0 +1,363 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.sensor;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.SystemClock;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Sensor Metrics keeps track of how regularly a sensor delivers its Sensor
+ * Events: the effective rate, a histogram of the intervals between the
+ * event time stamps, the number of gaps where measurements were dropped,
+ * the number of events whose time stamp went backwards and the latency from
+ * the measurement to the callback. A HAL that drops or bunches measurements
+ * under load feeds the fusion a bad dT, and this is where it shows.
+ *
+ * The histograms are HDR style, four buckets per power of two of
+ * microseconds, so they resolve an interval to within 25% anywhere from a
+ * microsecond to two hours in a fixed 128 buckets. Adding an event costs a
+ * few arithmetic operations and never allocates.
+ *
+ * An interval counts as a gap when it is more than GAP_FACTOR times the
+ * usual interval, an exponential average of the intervals that weren't
+ * gaps. The latency needs the event time stamps to be on the
+ * SystemClock.elapsedRealtimeNanos() clock, which is only guaranteed from
+ * Jelly Bean MR1; latencies that are negative or longer than MAX_LATENCY_NS
+ * mean the clocks don't match and are left out.
+ *
+ * Events are added on the thread that delivers them, and the metrics must be
+ * read and reset on that thread too.
+ *
+ * @author Kaleb
+ * @version %I%, %G%
+ */
+public class SensorMetrics
+{
+	// An interval this many times the usual interval is a gap, so a single
+	// dropped measurement is counted.
+	public static final float GAP_FACTOR = 1.5f;
+
+	// Latencies longer than this, in nanoseconds, mean the event time stamps
+	// are on a different clock.
+	public static final long MAX_LATENCY_NS = 10000000000L;
+
+	// The weight of the newest interval in the usual interval.
+	private static final float INTERVAL_ALPHA = 0.01f;
+
+	private Histogram intervals = new Histogram();
+	private Histogram latencies = new Histogram();
+
+	// The number of events with a time stamp after the previous one.
+	private int count;
+
+	private long firstTimeStamp;
+	private long lastTimeStamp;
+
+	// The usual interval in nanoseconds, 0 until there has been one.
+	private float meanInterval;
+
+	private int gapCount;
+	private int outOfOrderCount;
+
+	/**
+	 * Initialize a new instance.
+	 */
+	public SensorMetrics()
+	{
+		super();
+	}
+
+	/**
+	 * Forget everything and start over.
+	 */
+	public void reset()
+	{
+		intervals.clear();
+		latencies.clear();
+
+		count = 0;
+		meanInterval = 0;
+		gapCount = 0;
+		outOfOrderCount = 0;
+	}
+
+	/**
+	 * Add a Sensor Event as soon as it has been received.
+	 *
+	 * @param timeStamp
+	 *            the time stamp of the event in nanoseconds.
+	 */
+	public void add(long timeStamp)
+	{
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1)
+		{
+			long latency = getElapsedRealtimeNanos() - timeStamp;
+
+			if (latency >= 0 && latency <= MAX_LATENCY_NS)
+			{
+				latencies.add(latency);
+			}
+		}
+
+		if (count == 0)
+		{
+			firstTimeStamp = timeStamp;
+			lastTimeStamp = timeStamp;
+			count = 1;
+
+			return;
+		}
+
+		long interval = timeStamp - lastTimeStamp;
+
+		if (interval <= 0)
+		{
+			outOfOrderCount++;
+
+			return;
+		}
+
+		intervals.add(interval);
+
+		if (meanInterval == 0)
+		{
+			meanInterval = interval;
+		}
+		else if (interval > GAP_FACTOR * meanInterval)
+		{
+			gapCount++;
+		}
+		else
+		{
+			meanInterval += INTERVAL_ALPHA * (interval - meanInterval);
+		}
+
+		lastTimeStamp = timeStamp;
+		count++;
+	}
+
+	/**
+	 * Get the number of events in order since the metrics were reset.
+	 *
+	 * @return the number of events.
+	 */
+	public int getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Get the rate the events were measured at, from the time stamps of the
+	 * first and the last of them.
+	 *
+	 * @return the rate in Hz, 0 until there have been two events.
+	 */
+	public float getRate()
+	{
+		if (count < 2)
+		{
+			return 0;
+		}
+
+		return (count - 1) * 1e9f / (lastTimeStamp - firstTimeStamp);
+	}
+
+	/**
+	 * Get the number of intervals that were long enough for measurements to
+	 * have been dropped.
+	 *
+	 * @return the number of gaps.
+	 */
+	public int getGapCount()
+	{
+		return gapCount;
+	}
+
+	/**
+	 * Get the number of events whose time stamp was not after the one
+	 * before. They are not counted in the rate or the intervals.
+	 *
+	 * @return the number of events.
+	 */
+	public int getOutOfOrderCount()
+	{
+		return outOfOrderCount;
+	}
+
+	/**
+	 * Get a percentile of the intervals between the event time stamps.
+	 *
+	 * @param percentile
+	 *            between 0 and 100.
+	 * @return the interval in nanoseconds, rounded up to its bucket, 0 if
+	 *         there have been no intervals.
+	 */
+	public long getIntervalPercentile(float percentile)
+	{
+		return intervals.getPercentile(percentile);
+	}
+
+	/**
+	 * Get the longest interval between the event time stamps.
+	 *
+	 * @return the interval in nanoseconds, rounded up to its bucket.
+	 */
+	public long getMaxInterval()
+	{
+		return intervals.getPercentile(100);
+	}
+
+	/**
+	 * Get a percentile of the latencies from the measurement to the callback.
+	 *
+	 * @param percentile
+	 *            between 0 and 100.
+	 * @return the latency in nanoseconds, rounded up to its bucket, 0 if the
+	 *         latency couldn't be measured.
+	 */
+	public long getLatencyPercentile(float percentile)
+	{
+		return latencies.getPercentile(percentile);
+	}
+
+	/**
+	 * Copy the interval histogram.
+	 *
+	 * @param counts
+	 *            receives the number of intervals in each bucket, at least
+	 *            Histogram.BUCKET_COUNT long.
+	 */
+	public void getIntervalHistogram(int[] counts)
+	{
+		System.arraycopy(intervals.counts, 0, counts, 0,
+				Histogram.BUCKET_COUNT);
+	}
+
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+	private static long getElapsedRealtimeNanos()
+	{
+		return SystemClock.elapsedRealtimeNanos();
+	}
+
+	/**
+	 * A histogram of durations with fixed memory. Durations are bucketed in
+	 * microseconds: below SUB_BUCKETS each microsecond has its own bucket,
+	 * above that each power of two is split into SUB_BUCKETS buckets.
+	 */
+	public static class Histogram
+	{
+		// The number of buckets per power of two.
+		private static final int SUB_BITS = 2;
+		private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+		// Enough buckets for about two hours.
+		public static final int BUCKET_COUNT = 128;
+
+		private int[] counts = new int[BUCKET_COUNT];
+		private int total;
+
+		/**
+		 * Get the bucket a duration falls into.
+		 *
+		 * @param nanos
+		 *            the duration in nanoseconds.
+		 * @return the bucket.
+		 */
+		public static int getBucket(long nanos)
+		{
+			long micros = nanos / 1000;
+
+			if (micros < SUB_BUCKETS)
+			{
+				return (int) Math.max(micros, 0);
+			}
+
+			int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+			int sub = (int) (micros >>> (magnitude - SUB_BITS))
+					& (SUB_BUCKETS - 1);
+
+			return Math.min((magnitude - SUB_BITS + 1) * SUB_BUCKETS + sub,
+					BUCKET_COUNT - 1);
+		}
+
+		/**
+		 * Get the shortest duration that falls into a bucket.
+		 *
+		 * @param bucket
+		 *            the bucket.
+		 * @return the duration in nanoseconds.
+		 */
+		public static long getLowerBound(int bucket)
+		{
+			if (bucket < SUB_BUCKETS)
+			{
+				return bucket * 1000L;
+			}
+
+			int magnitude = bucket / SUB_BUCKETS + SUB_BITS - 1;
+			long micros = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (magnitude
+					- SUB_BITS);
+
+			return micros * 1000;
+		}
+
+		private void clear()
+		{
+			for (int i = 0; i < BUCKET_COUNT; i++)
+			{
+				counts[i] = 0;
+			}
+
+			total = 0;
+		}
+
+		private void add(long nanos)
+		{
+			counts[getBucket(nanos)]++;
+			total++;
+		}
+
+		/**
+		 * Get a percentile, rounded up to the end of its bucket.
+		 */
+		private long getPercentile(float percentile)
+		{
+			if (total == 0)
+			{
+				return 0;
+			}
+
+			long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+			long seen = 0;
+
+			for (int i = 0; i < BUCKET_COUNT; i++)
+			{
+				seen += counts[i];
+
+				if (seen >= rank)
+				{
+					return getLowerBound(i + 1) - 1;
+				}
+			}
+
+			return getLowerBound(BUCKET_COUNT) - 1;
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.sensor;
+
+import android.annotation.TargetApi;
+import android.hardware.Sensor;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Registers the sensor wrappers for Sensor Events. When a maximum report
+ * latency is requested and the device runs KitKat or later, the sensor is
+ * allowed to collect measurements in its hardware FIFO and deliver them in
+ * batches, which lets the CPU sleep in between. Older devices, and sensors
+ * without a FIFO, simply deliver every measurement as it happens. The Sensor
+ * Events are delivered on the thread of the given Handler.
+ * 
+ * @author Kaleb
+ * @version %I%, %G%
+ */
+public final class SensorRegistration
+{
+	private SensorRegistration()
+	{
+	}
+
+	/**
+	 * Register a listener for a sensor at the fastest rate.
+	 * 
+	 * @param sensorManager
+	 *            the sensor manager.
+	 * @param listener
+	 *            the listener.
+	 * @param sensor
+	 *            the sensor.
+	 * @param maxReportLatencyUs
+	 *            the longest time measurements may be held in the hardware
+	 *            FIFO before they are delivered, 0 to deliver them right
+	 *            away.
+	 * @param handler
+	 *            the Handler the Sensor Events will be delivered to.
+	 * @return true if the sensor is supported and enabled.
+	 */
+	public static boolean registerListener(SensorManager sensorManager,
+			SensorEventListener listener, Sensor sensor,
+			int maxReportLatencyUs, Handler handler)
+	{
+		if (maxReportLatencyUs > 0
+				&& Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+		{
+			return registerListenerBatched(sensorManager, listener, sensor,
+					maxReportLatencyUs, handler);
+		}
+
+		return sensorManager.registerListener(listener, sensor,
+				SensorManager.SENSOR_DELAY_FASTEST, handler);
+	}
+
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private static boolean registerListenerBatched(
+			SensorManager sensorManager, SensorEventListener listener,
+			Sensor sensor, int maxReportLatencyUs, Handler handler)
+	{
+		return sensorManager.registerListener(listener, sensor,
+				SensorManager.SENSOR_DELAY_FASTEST, maxReportLatencyUs,
+				handler);
+	}
+}
@@ -0,0 +1,46 @@
+package com.kircherelectronics.fusedgyroscopeexplorer.sensor.observer;
+
+/*
+ * Fused Gyroscope Explorer
+ * Copyright (C) 2013, Kaleb Kircher - Kircher Engineering, LLC
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A gyroscope sensor batch observer interface. Classes that want to consume
+ * gyroscope measurements several at a time, as the sensor hardware delivers
+ * them when batching is enabled, should do so with this interface.
+ * 
+ * @author Kaleb
+ * @version %I%, %G%
+ */
+public interface GyroscopeSensorBatchObserver
+{
+	/**
+	 * Notify observers when a batch of new gyroscope measurements is
+	 * available. The arrays are reused for the next batch, copy anything that
+	 * needs to be kept.
+	 * 
+	 * @param gyroscope
+	 *            the rotation values, (x, y, z) of each measurement one after
+	 *            another.
+	 * @param timeStamps
+	 *            the time stamp of each measurement.
+	 * @param count
+	 *            the number of measurements in the batch.
+	 */
+	public void onGyroscopeSensorBatch(float[] gyroscope, long[] timeStamps,
+			int count);
+}